@@ -0,0 +1,39 @@
+package chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Servers for benchmarks: ephemeral port, history, mailbox and search index in a temporary
+ * directory, and no per-connection rate limits, which a benchmark's single sender would run into at once.
+ */
+final class BenchServers {
+    private BenchServers() { }
+
+    /** Creates (but does not start) a server; extra {@code --name=value} options are appended. */
+    static ChatServer create(Path dir, String... options) throws IOException {
+        List<String> args = new ArrayList<>(Arrays.asList("0", "--fsync=none", "--rate-msgs=0", "--rate-bytes=0",
+                "--history=" + dir.resolve("chat_history.txt"), "--history-dir=" + dir.resolve("history"),
+                "--mailbox-dir=" + dir.resolve("mailbox"), "--search-dir=" + dir.resolve("search")));
+        args.addAll(Arrays.asList(options));
+        return new ChatServer(ServerConfig.parse(args.toArray(new String[0])));
+    }
+
+    static Path tempDir() throws IOException {
+        return Files.createTempDirectory("chat-bench");
+    }
+
+    static void delete(Path dir) throws IOException {
+        if (dir == null || !Files.exists(dir)) return;
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package chat;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Inbound line dispatch through {@link ClientHandler#handleLine(byte[], int, int)}
+ * for a logged-in user with no socket: a chat line (broadcast to the one user in
+ * the room), a private message to themselves, /list and /quit.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+    private static final byte[] CHAT = utf8("hello everyone, how is it going today?");
+    private static final byte[] PM = utf8("/pm alice hello there, just you this time");
+    private static final byte[] LIST = utf8("/list");
+    private static final byte[] QUIT = utf8("/QUIT");
+
+    private Path dir;
+    private ChatServer server;
+    private ClientHandler handler;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = BenchServers.tempDir();
+        server = BenchServers.create(dir, "--replay=0");
+        handler = new ClientHandler(server, (Socket) null);
+        handler.handleLine(utf8("alice"), 0, 5);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.stop();
+        BenchServers.delete(dir);
+    }
+
+    @Benchmark
+    public void chat(Blackhole bh) {
+        handler.handleLine(CHAT, 0, CHAT.length);
+        drain(bh);
+    }
+
+    @Benchmark
+    public void privateMessage(Blackhole bh) {
+        handler.handleLine(PM, 0, PM.length);
+        drain(bh);
+    }
+
+    @Benchmark
+    public void list(Blackhole bh) {
+        handler.handleLine(LIST, 0, LIST.length);
+        drain(bh);
+    }
+
+    @Benchmark
+    public boolean quit() {
+        return handler.handleLine(QUIT, 0, QUIT.length);
+    }
+
+    private void drain(Blackhole bh) {
+        Frame f;
+        while ((f = handler.outbound().poll()) != null) bh.consume(f.bytes(false));
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,144 @@
+package chat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * CPU against bytes for {@link Compression}: one chat line from a busy room,
+ * encoded for every recipient the way each connection's writer would.
+ *
+ * {@code off} sends the frame as is, {@code stream} runs it through each
+ * recipient's own Deflater (one chunk per message, the worst case for batching),
+ * and {@code shared} compresses it once and sends everyone the same chunk. The
+ * {@code rawBytes} and {@code wireBytes} counters give the compression ratio.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+    private static final String[] WORDS = ("hello everyone how is it going today I think we should ship the release "
+            + "after lunch does anybody know why the build is red again yes no maybe later thanks lol that was "
+            + "quick can you look at my review when you have a minute").split(" ");
+    private static final int LINES = 4096;
+
+    @Param({ "1", "100" })
+    public int recipients;
+
+    @Param({ "false", "true" })
+    public boolean binary;
+
+    private byte[][] lines;
+    private int[] nameLengths;
+    private int[] payloadLengths;
+    private long[] times;
+    private Compression.Encoder[] encoders;
+    private final OutboundQueue empty = new OutboundQueue(1, OutboundQueue.Overflow.DROP_OLDEST);
+    private int next;
+
+    /** Bytes before and after compression, summed over all recipients. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Bytes {
+        public long rawBytes;
+        public long wireBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            rawBytes = 0;
+            wireBytes = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        long now = System.currentTimeMillis();
+        lines = new byte[LINES][];
+        nameLengths = new int[LINES];
+        payloadLengths = new int[LINES];
+        times = new long[LINES];
+        for (int i = 0; i < LINES; i++) {
+            byte[] sender = ("user" + random.nextInt(50)).getBytes(StandardCharsets.UTF_8);
+            StringBuilder msg = new StringBuilder();
+            for (int w = 3 + random.nextInt(10); w > 0; w--) msg.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            byte[] m = msg.toString().trim().getBytes(StandardCharsets.UTF_8);
+            now += random.nextInt(2000);
+            lines[i] = TextProtocol.formatChat(now, sender, null, m, 0, m.length);
+            nameLengths[i] = sender.length;
+            payloadLengths[i] = m.length;
+            times[i] = now;
+        }
+        encoders = new Compression.Encoder[recipients];
+        for (int r = 0; r < recipients; r++) {
+            Frame ack = Frame.wrap(("OK " + Compression.DEFLATE + "\n").getBytes(StandardCharsets.UTF_8));
+            encoders[r] = new Compression.Encoder(ack, Compression.Mode.STREAM);
+            encoders[r].encode(ack, empty, binary);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (Compression.Encoder e : encoders) e.end();
+    }
+
+    /** The next line, as a new Frame so nothing is cached from an earlier round. */
+    private Frame nextLine() {
+        int i = next++ & (LINES - 1);
+        return Frame.line(BinaryProtocol.CHAT, next, times[i], lines[i], nameLengths[i], payloadLengths[i]);
+    }
+
+    @Benchmark
+    public void off(Bytes bytes, Blackhole bh) {
+        Frame f = nextLine();
+        for (int r = 0; r < recipients; r++) {
+            byte[] b = f.bytes(binary);
+            bytes.rawBytes += b.length;
+            bytes.wireBytes += b.length;
+            bh.consume(b);
+        }
+    }
+
+    @Benchmark
+    public void stream(Bytes bytes, Blackhole bh) {
+        Frame f = nextLine();
+        int raw = f.bytes(binary).length;
+        for (int r = 0; r < recipients; r++) {
+            byte[] b = encoders[r].encode(f, empty, binary);
+            bytes.rawBytes += raw;
+            bytes.wireBytes += b.length;
+            bh.consume(b);
+        }
+    }
+
+    @Benchmark
+    public void shared(Bytes bytes, Blackhole bh) {
+        Frame f = nextLine();
+        int raw = f.bytes(binary).length;
+        for (int r = 0; r < recipients; r++) {
+            byte[] b = f.chunk(binary);
+            bytes.rawBytes += raw;
+            bytes.wireBytes += b.length;
+            bh.consume(b);
+        }
+    }
+}
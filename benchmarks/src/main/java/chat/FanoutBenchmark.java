@@ -0,0 +1,95 @@
+package chat;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * One broadcast fanned out to N in-memory recipients. The recipients are real
+ * {@link ClientHandler}s without a socket, so send() only queues; each operation
+ * then drains every queue the way a writer would.
+ *
+ * {@code broadcast} is the full ChatServer path (format, fan-out to the lobby, journal);
+ * {@code perRecipient} and {@code shared} isolate the fan-out itself, encoding once
+ * per recipient (the old send(String) path) versus one shared {@link Frame}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanoutBenchmark {
+    private static final String LINE = "2024-01-01 12:00:00 [alice]: hello everyone, how is it going today?";
+    private static final byte[] SENDER = "alice".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] MESSAGE = "hello everyone, how is it going today?".getBytes(StandardCharsets.UTF_8);
+
+    @Param({ "10", "100", "1000", "5000" })
+    public int recipients;
+
+    private Path dir;
+    private ChatServer server;
+    /** The lobby's members, all of them recipients. */
+    private ClientHandler[] room;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = BenchServers.tempDir();
+        server = BenchServers.create(dir, "--replay=0");
+        // Logged in like a client, which also puts each one in the lobby.
+        for (int i = 0; i < recipients; i++) new ClientHandler(server, (Socket) null).handleLine("user" + i);
+        room = server.lobby().members();
+        // Welcome lines and join notices.
+        for (ClientHandler h : room) {
+            while (h.outbound().poll() != null) { }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.stop();
+        BenchServers.delete(dir);
+    }
+
+    @Benchmark
+    public void broadcast(Blackhole bh) {
+        server.broadcast(server.lobby(), SENDER, MESSAGE, 0, MESSAGE.length);
+        drain(bh);
+    }
+
+    @Benchmark
+    public void perRecipient(Blackhole bh) {
+        for (ClientHandler h : room) h.send(LINE);
+        drain(bh);
+    }
+
+    @Benchmark
+    public void shared(Blackhole bh) {
+        Frame frame = Frame.text(LINE);
+        for (ClientHandler h : room) h.send(frame);
+        drain(bh);
+    }
+
+    private void drain(Blackhole bh) {
+        Frame f;
+        for (ClientHandler h : room) {
+            while ((f = h.outbound().poll()) != null) bh.consume(f.bytes(false));
+        }
+    }
+}
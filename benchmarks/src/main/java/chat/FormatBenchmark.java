@@ -0,0 +1,59 @@
+package chat;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing and formatting one inbound chat line into the frame that is fanned out
+ * and journaled. {@code string} is the old path (decode to a String,
+ * equalsIgnoreCase/startsWith, LocalDateTime formatting, concatenation, getBytes);
+ * {@code bytes} is the one ClientHandler and ChatServer use now. Run with
+ * {@code -prof gc} for allocation per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatBenchmark {
+    private static final DateTimeFormatter FMT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final String SENDER = "alice";
+    private static final byte[] SENDER_BYTES = SENDER.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] INBOUND = "xx hello everyone, how is it going today?\r\n".getBytes(StandardCharsets.UTF_8);
+    private static final int OFF = 3;
+    private static final int LEN = INBOUND.length - OFF - 2;
+
+    private long id;
+
+    @Benchmark
+    public byte[] string() {
+        String line = new String(INBOUND, OFF, LEN, StandardCharsets.UTF_8);
+        if (line.equalsIgnoreCase("/quit") || line.equalsIgnoreCase("/list") || line.startsWith("/pm ")) return null;
+        String formatted = LocalDateTime.now().format(FMT) + " [" + SENDER + "]: " + line;
+        Frame frame = Frame.message(BinaryProtocol.CHAT, ++id, System.currentTimeMillis(), SENDER, line, formatted);
+        return frame.bytes(false);
+    }
+
+    @Benchmark
+    public byte[] bytes() {
+        if (TextProtocol.equalsIgnoreCase(INBOUND, OFF, LEN, "/quit")
+                || TextProtocol.startsWith(INBOUND, OFF, LEN, "/pm ")) return null;
+        long now = System.currentTimeMillis();
+        byte[] line = TextProtocol.formatChat(now, SENDER_BYTES, null, INBOUND, OFF, LEN);
+        Frame frame = Frame.line(BinaryProtocol.CHAT, ++id, now, line, SENDER_BYTES.length, LEN);
+        return frame.bytes(false);
+    }
+}
@@ -0,0 +1,67 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The history write and replay paths of {@link HistoryStore}: appending a record
+ * (flushed whenever the write buffer fills, as the journal thread does) and
+ * replaying the last 20 lines on login. The store is recreated every iteration
+ * so appends do not fill the disk.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryBenchmark {
+    private static final byte[] LINE =
+            "2024-01-01 12:00:00 [alice]: hello everyone, how is it going today?".getBytes(StandardCharsets.UTF_8);
+
+    private Path dir;
+    private HistoryStore store;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        dir = BenchServers.tempDir();
+        store = new HistoryStore(dir, 64L * 1024 * 1024, TimeUnit.DAYS.toMillis(1));
+        long ts = System.currentTimeMillis() - 100_000;
+        for (int i = 0; i < 100_000; i++) store.append(ts + i, LINE);
+        store.flush();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        store.close();
+        BenchServers.delete(dir);
+    }
+
+    @Benchmark
+    public void append() throws IOException {
+        store.append(System.currentTimeMillis(), LINE);
+    }
+
+    @Benchmark
+    public void replay(Blackhole bh) {
+        Iterator<byte[]> it = store.tail(20);
+        while (it.hasNext()) bh.consume(it.next());
+    }
+}
@@ -0,0 +1,226 @@
+package chat;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Headless load generator for a running ChatServer, speaking the text line protocol.
+ *
+ * Opens {@code --clients} connections and logs each one in. Sender threads then
+ * send at a fixed total {@code --rate} for {@code --duration} seconds, a
+ * {@code --pm} fraction of them as /pm to a random user and the rest as
+ * broadcasts. Every message carries its intended send time (System.nanoTime), and
+ * every delivery is recorded as latency from that time. Measuring from the
+ * schedule rather than the actual write means a stalled server shows up as
+ * latency instead of a lower send rate (no coordinated omission).
+ *
+ * Prints sent/delivered rates and latency percentiles once per second and a
+ * summary at the end; the first {@code --warmup} seconds are not recorded.
+ *
+ * Usage: java -cp benchmarks.jar chat.LoadGenerator [--host=localhost] [--port=12345]
+ *        [--clients=1000] [--rate=1000] [--pm=0.1] [--duration=30] [--warmup=5] [--senders=4]
+ */
+public class LoadGenerator {
+    /** Tags this run's messages so history replayed from earlier runs is not counted. */
+    private final String tag = "lg" + Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36);
+    private final String mark = "]: " + tag + " ";
+
+    private String host = "localhost";
+    private int port = ServerConfig.DEFAULT_PORT;
+    private int clients = 1000;
+    private int rate = 1000;
+    private double pmFraction = 0.1;
+    private int durationSeconds = 30;
+    private int warmupSeconds = 5;
+    private int senders = 4;
+
+    private final List<Session> sessions = new ArrayList<>();
+    private final Recorder recorder = new Recorder(3);
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong sendErrors = new AtomicLong();
+    private final AtomicInteger disconnected = new AtomicInteger();
+    private volatile boolean running = true;
+
+    /** One logged-in connection with its own reader thread. */
+    private final class Session implements Runnable {
+        final String name;
+        final Socket socket;
+        final BufferedReader in;
+        final OutputStream out;
+
+        Session(String name) throws IOException {
+            this.name = name;
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = socket.getOutputStream();
+            in.readLine();
+            send(name);
+            String line;
+            while ((line = in.readLine()) != null && !line.startsWith("Welcome")) {
+                if (line.startsWith("Invalid")) throw new IOException("login refused for " + name + ": " + line);
+            }
+            if (line == null) throw new IOException("connection closed during login of " + name);
+        }
+
+        void send(String line) throws IOException {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void run() {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    int i = line.indexOf(mark);
+                    if (i < 0) continue;
+                    long latency = System.nanoTime() - Long.parseLong(line.substring(i + mark.length()));
+                    recorder.recordValue(Math.max(0, latency));
+                    delivered.incrementAndGet();
+                }
+            } catch (IOException | NumberFormatException ignored) {
+            }
+            if (running) disconnected.incrementAndGet();
+        }
+
+        void close() {
+            try { socket.close(); } catch (IOException ignored) { }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator g = new LoadGenerator();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) throw new IllegalArgumentException("Expected --name=value: " + arg);
+            g.set(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        g.run();
+    }
+
+    private void set(String name, String value) {
+        switch (name) {
+            case "host": host = value; break;
+            case "port": port = Integer.parseInt(value); break;
+            case "clients": clients = Math.max(2, Integer.parseInt(value)); break;
+            case "rate": rate = Math.max(1, Integer.parseInt(value)); break;
+            case "pm": pmFraction = Double.parseDouble(value); break;
+            case "duration": durationSeconds = Integer.parseInt(value); break;
+            case "warmup": warmupSeconds = Integer.parseInt(value); break;
+            case "senders": senders = Math.max(1, Integer.parseInt(value)); break;
+            default: throw new IllegalArgumentException("Unknown option --" + name);
+        }
+    }
+
+    private void run() throws Exception {
+        long t0 = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            Session s = new Session("lg" + i);
+            sessions.add(s);
+            // Small stacks: one reader per connection, thousands of them.
+            Thread reader = new Thread(null, s, "lg-reader-" + i, 256 * 1024);
+            reader.setDaemon(true);
+            reader.start();
+        }
+        System.out.printf("%d clients logged in to %s:%d in %.1f s%n",
+                clients, host, port, (System.nanoTime() - t0) / 1e9);
+
+        int senderCount = Math.min(senders, clients);
+        List<Thread> threads = new ArrayList<>();
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(warmupSeconds + durationSeconds);
+        for (int i = 0; i < senderCount; i++) {
+            final int index = i;
+            Thread t = new Thread(() -> sendLoop(index, senderCount, start, end), "lg-sender-" + i);
+            t.start();
+            threads.add(t);
+        }
+
+        report(start);
+        for (Thread t : threads) t.join();
+        running = false;
+        for (Session s : sessions) s.close();
+    }
+
+    /** Paces this sender's share of the rate over its share of the sessions. */
+    private void sendLoop(int index, int senderCount, long start, long end) {
+        List<Session> mine = new ArrayList<>();
+        for (int i = index; i < sessions.size(); i++) {
+            if (i % senderCount == index) mine.add(sessions.get(i));
+        }
+        long interval = TimeUnit.SECONDS.toNanos(1) * senderCount / rate;
+        long intended = start + index * interval / senderCount;
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        for (long n = 0; intended < end; n++, intended += interval) {
+            long wait = intended - System.nanoTime();
+            if (wait > 0) LockSupport.parkNanos(wait);
+            Session s = mine.get((int) (n % mine.size()));
+            try {
+                if (rnd.nextDouble() < pmFraction) {
+                    Session to = sessions.get(rnd.nextInt(sessions.size()));
+                    s.send("/pm " + to.name + " " + tag + " " + intended);
+                } else {
+                    s.send(tag + " " + intended);
+                }
+                sent.incrementAndGet();
+            } catch (IOException e) {
+                sendErrors.incrementAndGet();
+            }
+        }
+    }
+
+    private void report(long start) throws InterruptedException {
+        Histogram total = null;
+        Histogram interval = null;
+        long lastSent = 0, lastDelivered = 0;
+        System.out.printf("%6s %10s %12s %9s %9s %9s %9s %6s%n",
+                "sec", "sent/s", "delivered/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "lost");
+        for (int sec = 1; sec <= warmupSeconds + durationSeconds; sec++) {
+            long next = start + TimeUnit.SECONDS.toNanos(sec);
+            long wait;
+            while ((wait = next - System.nanoTime()) > 0) TimeUnit.NANOSECONDS.sleep(wait);
+
+            interval = recorder.getIntervalHistogram(interval);
+            long s = sent.get(), d = delivered.get();
+            boolean warm = sec > warmupSeconds;
+            if (warm) {
+                if (total == null) total = interval.copy();
+                else total.add(interval);
+            }
+            System.out.printf("%6s %,10d %,12d %9.2f %9.2f %9.2f %9.2f %6d%n",
+                    warm ? String.valueOf(sec - warmupSeconds) : "warm",
+                    s - lastSent, d - lastDelivered,
+                    ms(interval.getValueAtPercentile(50)), ms(interval.getValueAtPercentile(99)),
+                    ms(interval.getValueAtPercentile(99.9)), ms(interval.getMaxValue()), disconnected.get());
+            lastSent = s;
+            lastDelivered = d;
+        }
+        if (total == null) return;
+        System.out.printf("%nsummary over %d s: %,d deliveries (%,.0f/s), %d send errors, %d connections lost%n",
+                durationSeconds, total.getTotalCount(), total.getTotalCount() / (double) durationSeconds,
+                sendErrors.get(), disconnected.get());
+        System.out.printf("latency ms: p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  p99.99 %.2f  max %.2f%n",
+                ms(total.getValueAtPercentile(50)), ms(total.getValueAtPercentile(90)),
+                ms(total.getValueAtPercentile(99)), ms(total.getValueAtPercentile(99.9)),
+                ms(total.getValueAtPercentile(99.99)), ms(total.getMaxValue()));
+    }
+
+    private static double ms(long nanos) {
+        return nanos / 1e6;
+    }
+}
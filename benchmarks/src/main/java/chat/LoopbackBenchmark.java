@@ -0,0 +1,114 @@
+package chat;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end over loopback: a real {@link ChatServer} on an ephemeral port, one
+ * sender and {@code listeners} passive text clients. Each operation sends a chat
+ * line and waits for the sender's own copy of the broadcast, so throughput is
+ * round trips per second and the sample-time mode gives the latency percentiles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+    @Param({ "blocking", "nio" })
+    public String mode;
+
+    @Param({ "10" })
+    public int listeners;
+
+    private Path dir;
+    private ChatServer server;
+    private Socket sender;
+    private InputStream in;
+    private OutputStream out;
+    private final List<Socket> passive = new ArrayList<>();
+    private long seq;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = BenchServers.tempDir();
+        server = BenchServers.create(dir, "--mode=" + mode, "--replay=0");
+        Thread accept = new Thread(server::start, "bench-server");
+        accept.setDaemon(true);
+        accept.start();
+
+        for (int i = 0; i < listeners; i++) {
+            final Socket s = login("listener" + i);
+            passive.add(s);
+            Thread reader = new Thread(() -> discard(s), "bench-listener-" + i);
+            reader.setDaemon(true);
+            reader.start();
+        }
+        sender = login("sender");
+        in = new BufferedInputStream(sender.getInputStream());
+        out = sender.getOutputStream();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        sender.close();
+        for (Socket s : passive) s.close();
+        server.stop();
+        BenchServers.delete(dir);
+    }
+
+    @Benchmark
+    public String roundTrip() throws IOException {
+        String body = "message " + (++seq);
+        out.write((body + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        String line;
+        while ((line = BinaryProtocol.readLine(in)) != null) {
+            if (line.endsWith("]: " + body)) return line;
+        }
+        throw new IOException("server closed the connection");
+    }
+
+    private Socket login(String name) throws IOException {
+        Socket s = new Socket("localhost", server.getPort());
+        s.setTcpNoDelay(true);
+        InputStream raw = s.getInputStream();
+        BinaryProtocol.readLine(raw);
+        s.getOutputStream().write((name + "\n").getBytes(StandardCharsets.UTF_8));
+        String line;
+        while ((line = BinaryProtocol.readLine(raw)) != null) {
+            if (line.startsWith("Welcome")) return s;
+        }
+        throw new IOException("login failed for " + name);
+    }
+
+    private static void discard(Socket s) {
+        byte[] buf = new byte[8192];
+        try {
+            InputStream in = s.getInputStream();
+            while (in.read(buf) >= 0) { }
+        } catch (IOException ignored) { }
+    }
+}
@@ -0,0 +1,60 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the text line protocol with the binary frame protocol for one chat
+ * message: server-side encoding plus the client-side decode each protocol needs
+ * (the GUI's handleIncoming split on ':' for text, fixed offsets for binary).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+    private static final DateTimeFormatter FMT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final String SENDER = "alice";
+    private static final String BODY = "hello everyone, how is it going today?";
+
+    private long id;
+
+    @Benchmark
+    public void text(Blackhole bh) {
+        String line = LocalDateTime.now().format(FMT) + " [" + SENDER + "]: " + BODY;
+        byte[] wire = (line + "\n").getBytes(StandardCharsets.UTF_8);
+
+        String raw = new String(wire, 0, wire.length - 1, StandardCharsets.UTF_8);
+        int idx = raw.indexOf(':');
+        bh.consume(raw.substring(0, idx).trim());
+        bh.consume(raw.substring(idx + 1).trim());
+    }
+
+    @Benchmark
+    public void binary(Blackhole bh) {
+        byte[] wire = BinaryProtocol.encode(BinaryProtocol.CHAT, ++id, System.currentTimeMillis(), SENDER, BODY);
+
+        ByteBuffer buf = ByteBuffer.wrap(wire);
+        int length = buf.getInt();
+        BinaryProtocol.Message m = BinaryProtocol.decode(buf, length);
+        bh.consume(m.name);
+        bh.consume(m.payload);
+        bh.consume(m.timestamp);
+    }
+}
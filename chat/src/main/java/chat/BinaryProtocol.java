@@ -0,0 +1,182 @@
+package chat;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Opt-in length-prefixed binary wire format, shared by the server and both clients.
+ *
+ * A client that wants it answers the server's first prompt with {@link #HELLO};
+ * the server replies with the text line {@link #HELLO_OK} and from then on both
+ * sides exchange frames of the form
+ *
+ * <pre>
+ *   int   length     bytes that follow this field
+ *   byte  type       one of the constants below
+ *   long  id         server-assigned message id (0 when unused)
+ *   long  timestamp  epoch millis (0 when unused)
+ *   short nameLength
+ *   byte[nameLength] name     utf-8; sender for server frames, target user for PM/LOGIN
+ *   byte[]           payload  utf-8, the rest of the frame
+ * </pre>
+ *
+ * Clients that never send the hello keep using the newline-terminated text protocol.
+ */
+public final class BinaryProtocol {
+    public static final String HELLO = "/hello binary";
+    public static final String HELLO_OK = "OK binary";
+
+    /**
+     * Chat message; client to server needs only the payload. From the server, the
+     * id is the message's sequence number in the recipient's current room.
+     */
+    public static final byte CHAT = 1;
+    /** Private message; name is the sender (server to client) or the target (client to server). */
+    public static final byte PM = 2;
+    /** Server notice or command reply; payload only. */
+    public static final byte SYSTEM = 3;
+    /** Client login request, and the server's confirmation; name is the username. */
+    public static final byte LOGIN = 4;
+    /** Any text-protocol line, handled exactly as if it had been sent in text mode. */
+    public static final byte COMMAND = 5;
+    /** A replayed history line; payload only. */
+    public static final byte HISTORY = 6;
+    /** Typing indicator: no fields from the client, name is the typist from the server. Never stored. */
+    public static final byte TYPING = 7;
+    /** Heartbeat from the server; the client answers with PONG. No fields. */
+    public static final byte PING = 8;
+    /** A client's answer to PING. No fields. */
+    public static final byte PONG = 9;
+    /**
+     * Resume point, from the server after login, room changes and resumes: name is
+     * the session token, payload the room, id the room's latest sequence number.
+     */
+    public static final byte SESSION = 10;
+    /**
+     * Sent instead of LOGIN to take over a dropped session: name is the token,
+     * payload the last sequence number seen. The server answers with LOGIN, the
+     * missed messages and a new SESSION, or with an empty RESUME if it cannot.
+     */
+    public static final byte RESUME = 11;
+
+    static final int HEADER = 1 + 8 + 8 + 2;
+    static final int MAX_FRAME = 64 * 1024;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private BinaryProtocol() { }
+
+    public static byte[] encode(byte type, long id, long timestamp, String name, String payload) {
+        return encode(type, id, timestamp, utf8(name), utf8(payload));
+    }
+
+    public static byte[] encode(byte type, long id, long timestamp, byte[] name, byte[] payload) {
+        return encode(type, id, timestamp, name, 0, name.length, payload, 0, payload.length);
+    }
+
+    /** Encodes name and payload taken as slices of {@code src}. */
+    public static byte[] encode(byte type, long id, long timestamp, byte[] src, int nameOffset, int nameLength,
+                                int payloadOffset, int payloadLength) {
+        return encode(type, id, timestamp, src, nameOffset, nameLength, src, payloadOffset, payloadLength);
+    }
+
+    private static byte[] encode(byte type, long id, long timestamp, byte[] name, int nameOffset, int nameLength,
+                                 byte[] payload, int payloadOffset, int payloadLength) {
+        int length = HEADER + nameLength + payloadLength;
+        byte[] frame = new byte[4 + length];
+        ByteBuffer buf = ByteBuffer.wrap(frame);
+        buf.putInt(length).put(type).putLong(id).putLong(timestamp).putShort((short) nameLength)
+                .put(name, nameOffset, nameLength).put(payload, payloadOffset, payloadLength);
+        return frame;
+    }
+
+    public static void write(OutputStream out, byte type, String name, String payload) throws IOException {
+        out.write(encode(type, 0, 0, name, payload));
+        out.flush();
+    }
+
+    private static byte[] utf8(String s) {
+        return s == null || s.isEmpty() ? EMPTY : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads one newline-terminated text line straight from the stream, without any
+     * read-ahead, so the stream can switch to binary frames right after the handshake.
+     */
+    public static String readLine(InputStream in) throws IOException {
+        byte[] buf = new byte[128];
+        int n = 0, b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                if (n == 0) return null;
+                break;
+            }
+            if (n == buf.length) buf = Arrays.copyOf(buf, n * 2);
+            buf[n++] = (byte) b;
+        }
+        if (n > 0 && buf[n - 1] == '\r') n--;
+        return new String(buf, 0, n, StandardCharsets.UTF_8);
+    }
+
+    /** One decoded frame, as seen by a client. */
+    public static final class Message {
+        public final byte type;
+        public final long id;
+        public final long timestamp;
+        public final String name;
+        public final String payload;
+
+        Message(byte type, long id, long timestamp, String name, String payload) {
+            this.type = type;
+            this.id = id;
+            this.timestamp = timestamp;
+            this.name = name;
+            this.payload = payload;
+        }
+    }
+
+    /** Blocks for the next frame; returns null at end of stream. */
+    public static Message read(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < HEADER || length > MAX_FRAME) throw new IOException("bad frame length " + length);
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        try {
+            return decode(ByteBuffer.wrap(frame), length);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Decodes a frame body (everything after the length field) of {@code length} bytes.
+     * Throws IllegalArgumentException if the name length does not fit the frame.
+     */
+    static Message decode(ByteBuffer buf, int length) {
+        int start = buf.position();
+        byte type = buf.get();
+        long id = buf.getLong();
+        long timestamp = buf.getLong();
+        int nameLength = buf.getShort() & 0xFFFF;
+        if (nameLength > length - HEADER) throw new IllegalArgumentException("bad name length " + nameLength);
+        byte[] arr = buf.array();
+        int nameStart = buf.arrayOffset() + buf.position();
+        String name = new String(arr, nameStart, nameLength, StandardCharsets.UTF_8);
+        int payloadStart = nameStart + nameLength;
+        int payloadLength = length - HEADER - nameLength;
+        String payload = new String(arr, payloadStart, payloadLength, StandardCharsets.UTF_8);
+        buf.position(start + length);
+        return new Message(type, id, timestamp, name, payload);
+    }
+}
@@ -0,0 +1,259 @@
+package chat;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Scanner;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class ChatClient {
+    /** Reconnect delays double from the first up to the last, each with random jitter. */
+    static final long RECONNECT_MIN_MILLIS = 500;
+    static final long RECONNECT_MAX_MILLIS = 30_000;
+
+    private final String host;
+    private final int port;
+    private volatile Socket socket;
+    private BufferedReader in;
+    private volatile PrintWriter out;
+    private Scanner scanner = new Scanner(System.in);
+    private final boolean binary;
+    /** Whether to ask the server to compress what it sends. */
+    private final boolean deflate;
+    private DataInputStream binIn;
+    private volatile OutputStream binOut;
+    /** Guards writes to {@link #binOut}: the input thread and the reader (heartbeats, rejoining) share it. */
+    private final Object writeLock = new Object();
+    private volatile boolean loggedIn;
+    private volatile boolean quitting;
+    /** The name last confirmed by the server, used to log in again after reconnecting. */
+    private volatile String username;
+    /** Text mode: the last name offered before login, confirmed by the welcome line. */
+    private volatile String offeredName;
+    /** Binary mode: the resumable session, its room, and the last sequence number seen there. */
+    private String sessionToken;
+    private String sessionRoom;
+    private long lastSeq;
+    private final SimpleDateFormat timeFmt = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+    public ChatClient(String serverAddress, int port) throws IOException {
+        this(serverAddress, port, false);
+    }
+
+    public ChatClient(String serverAddress, int port, boolean binary) throws IOException {
+        this(serverAddress, port, binary, false);
+    }
+
+    public ChatClient(String serverAddress, int port, boolean binary, boolean deflate) throws IOException {
+        this.host = serverAddress;
+        this.port = port;
+        this.binary = binary;
+        this.deflate = deflate;
+        connect(true);
+    }
+
+    private void connect(boolean first) throws IOException {
+        Socket s = new Socket(host, port);
+        if (binary || deflate) {
+            InputStream raw = s.getInputStream();
+            OutputStream o = new BufferedOutputStream(s.getOutputStream());
+            // Server prompt, then the handshake; both are still text lines.
+            String prompt = BinaryProtocol.readLine(raw);
+            if (first) System.out.println(prompt);
+            // Binary clients always get heartbeats; a text client asks for them.
+            String hello = binary ? (deflate ? Compression.HELLO_BINARY : BinaryProtocol.HELLO)
+                    : Compression.HELLO + " " + TextProtocol.HEARTBEAT;
+            o.write((hello + "\n").getBytes(StandardCharsets.UTF_8));
+            o.flush();
+            String ack = BinaryProtocol.readLine(raw);
+            if (ack == null || !ack.startsWith(binary ? BinaryProtocol.HELLO_OK : "OK")) {
+                s.close();
+                throw new IOException("Server refused " + hello + ": " + ack);
+            }
+            // A server with compression off just leaves it out of the acknowledgement.
+            InputStream from = Compression.accepted(ack) ? new Compression.InflatingInputStream(raw) : raw;
+            if (binary) {
+                binIn = new DataInputStream(new BufferedInputStream(from));
+                binOut = o;
+            } else {
+                in = new BufferedReader(new InputStreamReader(from, StandardCharsets.UTF_8));
+                out = new PrintWriter(new OutputStreamWriter(o, StandardCharsets.UTF_8), true);
+            }
+        } else {
+            in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+            out = new PrintWriter(s.getOutputStream(), true);
+        }
+        socket = s;
+    }
+
+    public void start() {
+        // Thread to read messages from server and print them
+        new Thread(this::receive).start();
+
+        // Main thread reads user input and sends to server
+        while (true) {
+            String input = scanner.nextLine();
+            if (input.equalsIgnoreCase("/quit")) quitting = true;
+            if (binary) sendFrame(input);
+            else {
+                if (!loggedIn) offeredName = input.trim();
+                out.println(input);
+            }
+            if (quitting) break;
+        }
+        close();
+    }
+
+    /** Reads until the connection drops, then reconnects and picks up where it left off, until /quit. */
+    private void receive() {
+        while (true) {
+            try {
+                if (binary) readFrames();
+                else readLines();
+            } catch (IOException e) {
+                // handled below, like a clean close
+            }
+            loggedIn = false;
+            if (quitting) return;
+            System.out.println("Disconnected from server; reconnecting...");
+            if (!reconnect()) return;
+        }
+    }
+
+    /**
+     * Retries with exponential backoff and random jitter, so clients dropped by the
+     * same network blip do not all come back in the same instant. Then resumes the
+     * session (binary) or logs in again under the same name.
+     */
+    private boolean reconnect() {
+        for (long delay = RECONNECT_MIN_MILLIS; !quitting; delay = Math.min(2 * delay, RECONNECT_MAX_MILLIS)) {
+            try {
+                Thread.sleep(delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+                connect(false);
+            } catch (IOException e) {
+                continue;
+            } catch (InterruptedException e) {
+                return false;
+            }
+            System.out.println("Reconnected.");
+            if (binary) rejoin();
+            else if (username != null) out.println(username);
+            return true;
+        }
+        return false;
+    }
+
+    /** Binary mode: resumes the session if there is one, otherwise logs in again. */
+    private void rejoin() {
+        try {
+            synchronized (writeLock) {
+                if (sessionToken != null) {
+                    BinaryProtocol.write(binOut, BinaryProtocol.RESUME, sessionToken, String.valueOf(lastSeq));
+                } else if (username != null) {
+                    BinaryProtocol.write(binOut, BinaryProtocol.LOGIN, username, "");
+                }
+            }
+        } catch (IOException e) {
+            // the reader notices and reconnects again
+        }
+    }
+
+    private void readLines() throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.equals(TextProtocol.PING)) {
+                out.println(TextProtocol.PONG);
+                continue;
+            }
+            if (!loggedIn && line.startsWith("Welcome ")) {
+                loggedIn = true;
+                username = offeredName != null ? offeredName : username;
+            }
+            System.out.println(line);
+        }
+    }
+
+    private void readFrames() throws IOException {
+        BinaryProtocol.Message m;
+        while ((m = BinaryProtocol.read(binIn)) != null) {
+            switch (m.type) {
+                case BinaryProtocol.CHAT:
+                    lastSeq = Math.max(lastSeq, m.id);
+                    System.out.println(timeFmt.format(new Date(m.timestamp)) + " [" + m.name + "]: " + m.payload);
+                    break;
+                case BinaryProtocol.PM:
+                    System.out.println(timeFmt.format(new Date(m.timestamp)) + " [" + m.name + " (private)]: " + m.payload);
+                    break;
+                case BinaryProtocol.LOGIN:
+                    username = m.name;
+                    loggedIn = true;
+                    break;
+                case BinaryProtocol.SESSION:
+                    // Sequence numbers are per room; a new room starts from its own.
+                    lastSeq = m.payload.equals(sessionRoom) ? Math.max(lastSeq, m.id) : m.id;
+                    sessionRoom = m.payload;
+                    sessionToken = m.name;
+                    break;
+                case BinaryProtocol.RESUME:
+                    System.out.println("Session expired; logging in again.");
+                    sessionToken = null;
+                    rejoin();
+                    break;
+                case BinaryProtocol.PING:
+                    synchronized (writeLock) {
+                        BinaryProtocol.write(binOut, BinaryProtocol.PONG, "", "");
+                    }
+                    break;
+                default:
+                    System.out.println(m.payload);
+            }
+        }
+    }
+
+    private void sendFrame(String input) {
+        // The reader thread answers heartbeats on the same stream.
+        synchronized (writeLock) {
+            sendFrameLocked(input);
+        }
+    }
+
+    private void sendFrameLocked(String input) {
+        try {
+            if (!loggedIn) {
+                BinaryProtocol.write(binOut, BinaryProtocol.LOGIN, input, "");
+            } else if (input.startsWith("/pm ")) {
+                String[] parts = input.split(" ", 3);
+                if (parts.length >= 3) BinaryProtocol.write(binOut, BinaryProtocol.PM, parts[1], parts[2]);
+                else System.out.println("Invalid /pm usage. Use: /pm username message");
+            } else if (input.startsWith("/")) {
+                BinaryProtocol.write(binOut, BinaryProtocol.COMMAND, "", input);
+            } else {
+                BinaryProtocol.write(binOut, BinaryProtocol.CHAT, "", input);
+            }
+        } catch (IOException e) {
+            System.out.println("Not connected; message not sent.");
+        }
+    }
+
+    private void close() {
+        try { socket.close(); } catch (IOException ignored) { }
+    }
+
+    public static void main(String[] args) throws IOException {
+        String server = "localhost";
+        int port = 12345;
+        boolean binary = false;
+        boolean deflate = false;
+        int positional = 0;
+        for (String arg : args) {
+            if (arg.equals("--binary")) binary = true;
+            else if (arg.equals("--deflate")) deflate = true;
+            else if (positional++ == 0) server = arg;
+            else port = Integer.parseInt(arg);
+        }
+        ChatClient client = new ChatClient(server, port, binary, deflate);
+        client.start();
+    }
+}
@@ -0,0 +1,855 @@
+package chat;
+
+import javax.swing.*;
+import javax.swing.border.EmptyBorder;
+import java.awt.*;
+import java.awt.event.*;
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class ChatClientGUI {
+
+    private JFrame frame;
+    private MessageListModel messages;
+    private JList<ChatMessage> chatList;
+    private JScrollPane chatScroll;
+    private boolean paging;
+    private final int scrollback;
+    private JTextField inputField;
+    private JButton sendButton, themeToggle;
+    private JLabel typingLabel;
+    private final UserListModel userListModel = new UserListModel();
+    /** A snapshot was asked for after a gap in presence deltas; EDT only. */
+    private boolean presenceResync;
+    private JList<String> userList;
+
+    private String host;
+    private int port;
+    private volatile Socket socket;
+    private BufferedReader reader;
+    private volatile PrintWriter writer;
+    private final boolean binary;
+    /** Whether to ask the server to compress what it sends. */
+    private final boolean deflate;
+    /** The server agreed to compress; set by each connect. */
+    private volatile boolean compressed;
+    private DataInputStream binIn;
+    private volatile OutputStream binOut;
+    /** Guards writes to {@link #binOut}, shared by the EDT and the reader thread (heartbeats, rejoining). */
+    private final Object writeLock = new Object();
+    /** Binary mode, reader thread only: the resumable session, its room, and the last sequence number seen there. */
+    private String sessionToken;
+    private String sessionRoom;
+    private long lastSeq;
+    /** Set by each login until the server's welcome line; the typing and presence opt-ins wait for it. */
+    private volatile boolean awaitingWelcome;
+
+    private String username;
+    private final Map<String, Color> userColors = new HashMap<>();
+    private final SimpleDateFormat timeFmt = new SimpleDateFormat("HH:mm");
+
+    private boolean dark = false;
+    private Color bgLight = new Color(246, 247, 251);
+    private Color bgDark = new Color(26, 27, 30);
+    private Color meLight = new Color(208, 241, 255);
+    private Color otherLight = new Color(232, 232, 255);
+    private Color sysLight = new Color(235, 235, 235);
+    private Color meDark = new Color(34, 85, 119);
+    private Color otherDark = new Color(54, 54, 79);
+    private Color sysDark = new Color(50, 50, 55);
+    private Color fgLight = Color.BLACK;
+    private Color fgDark = new Color(230, 230, 230);
+
+    /** Least time between our own typing signals; the server drops extras anyway. */
+    private static final long TYPING_RESEND_MILLIS = 2000;
+    /** How long a typing event is shown unless refreshed or ended by a message. */
+    private static final long TYPING_SHOW_MILLIS = 5000;
+    private long lastTypingSent;
+    /** Who is typing, with when each indicator expires; EDT only. */
+    private final Map<String, Long> typingUntil = new LinkedHashMap<>();
+
+    /** Frames per second at which incoming messages are applied to the view. */
+    public static final int DISPATCH_FPS = 60;
+    /** Most queued events applied in one frame; the rest wait for the next one. */
+    private static final int MAX_BATCH = 2000;
+    private static final long STATS_INTERVAL_MILLIS = 5000;
+
+    /** Filled by the reader thread, drained on the EDT by {@link #dispatchTimer}. */
+    private final Queue<Incoming> incoming = new ConcurrentLinkedQueue<>();
+    private javax.swing.Timer dispatchTimer;
+    private final DispatchStats stats = new DispatchStats();
+    private final boolean printStats;
+    private long lastStatsPrint = System.currentTimeMillis();
+
+    private final Set<String> systemMessagesShown = new HashSet<>();
+
+    public static final int DEFAULT_SCROLLBACK = 500;
+
+    public ChatClientGUI(String serverIP, int serverPort) {
+        this(serverIP, serverPort, false);
+    }
+
+    public ChatClientGUI(String serverIP, int serverPort, boolean binary) {
+        this(serverIP, serverPort, binary, DEFAULT_SCROLLBACK);
+    }
+
+    /** {@code scrollback} is the most messages kept in memory; older ones are paged in from disk. */
+    public ChatClientGUI(String serverIP, int serverPort, boolean binary, int scrollback) {
+        this(serverIP, serverPort, binary, scrollback, false);
+    }
+
+    /** With {@code printStats}, batch sizes and EDT lag are printed to stderr every few seconds. */
+    public ChatClientGUI(String serverIP, int serverPort, boolean binary, int scrollback, boolean printStats) {
+        this(serverIP, serverPort, binary, scrollback, printStats, false);
+    }
+
+    /** With {@code deflate}, asks the server to compress its side of the connection. */
+    public ChatClientGUI(String serverIP, int serverPort, boolean binary, int scrollback, boolean printStats,
+                         boolean deflate) {
+        this.binary = binary;
+        this.deflate = deflate;
+        this.scrollback = scrollback;
+        this.printStats = printStats;
+        askUsername();
+        buildUI();
+        dispatchTimer = new javax.swing.Timer(1000 / DISPATCH_FPS, e -> drainIncoming());
+        dispatchTimer.start();
+        connect(serverIP, serverPort);
+        startReaderThread();
+        sendJoinOnce();
+    }
+
+    public static void main(String[] args) {
+        boolean binary = false;
+        boolean uiStats = false;
+        boolean deflate = false;
+        int scrollback = DEFAULT_SCROLLBACK;
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--binary")) binary = true;
+            else if (arg.equals("--ui-stats")) uiStats = true;
+            else if (arg.equals("--deflate")) deflate = true;
+            else if (arg.startsWith("--scrollback=")) scrollback = Integer.parseInt(arg.substring(13));
+            else positional.add(arg);
+        }
+        if (positional.size() != 2) {
+            System.out.println("Usage: java ChatClientGUI <server-ip> <port> [--binary] [--deflate] [--scrollback=N] [--ui-stats]");
+            return;
+        }
+        String host = positional.get(0);
+        int port = Integer.parseInt(positional.get(1));
+        boolean useBinary = binary;
+        boolean printStats = uiStats;
+        int lines = scrollback;
+        boolean compress = deflate;
+        SwingUtilities.invokeLater(() -> new ChatClientGUI(host, port, useBinary, lines, printStats, compress));
+    }
+
+    private void askUsername() {
+        while (true) {
+            username = JOptionPane.showInputDialog(null, "Choose a username:", "Login", JOptionPane.PLAIN_MESSAGE);
+            if (username == null) System.exit(0);
+            username = username.trim();
+            if (!username.isEmpty()) break;
+        }
+        assignColor(username);
+    }
+
+    private void buildUI() {
+        frame = new JFrame("Chat – " + username);
+        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) { messages.close(); }
+        });
+
+        JPanel topBar = new JPanel(new BorderLayout());
+        topBar.setBorder(new EmptyBorder(8,10,8,10));
+        JLabel title = new JLabel("Realtime Chat");
+        title.setFont(title.getFont().deriveFont(Font.BOLD, 16f));
+        themeToggle = new JButton("Dark");
+        themeToggle.setFocusable(false);
+        themeToggle.addActionListener(e -> toggleTheme());
+        topBar.add(title, BorderLayout.WEST);
+        topBar.add(themeToggle, BorderLayout.EAST);
+
+        try {
+            messages = new MessageListModel(scrollback, Math.max(50, scrollback / 5));
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(null, "Cannot create scrollback file: " + e.getMessage(), "Error",
+                    JOptionPane.ERROR_MESSAGE);
+            System.exit(0);
+        }
+        // Only the visible rows are rendered, all through one reused renderer.
+        chatList = new JList<>(messages);
+        chatList.setCellRenderer(new MessageRenderer());
+        chatList.setOpaque(false);
+        chatList.setFocusable(false);
+
+        chatScroll = new JScrollPane(chatList);
+        chatScroll.setBorder(null);
+        chatScroll.getVerticalScrollBar().setUnitIncrement(16);
+        chatScroll.getVerticalScrollBar().addAdjustmentListener(e -> pageOnScroll());
+
+        userList = new JList<>(userListModel);
+        userList.setBorder(new EmptyBorder(8,8,8,8));
+        userList.setFixedCellHeight(22);
+        JScrollPane usersScroll = new JScrollPane(userList);
+        usersScroll.setPreferredSize(new Dimension(180, 0));
+        usersScroll.setBorder(BorderFactory.createTitledBorder("Online"));
+
+        JSplitPane split = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, chatScroll, usersScroll);
+        split.setResizeWeight(1.0);
+        split.setDividerLocation(0.78);
+
+        JPanel inputRow = new JPanel(new BorderLayout(8,0));
+        inputRow.setBorder(new EmptyBorder(8,10,10,10));
+        inputField = new JTextField();
+        sendButton = new JButton("Send");
+        sendButton.setFocusable(false);
+        inputRow.add(inputField, BorderLayout.CENTER);
+        inputRow.add(sendButton, BorderLayout.EAST);
+
+        typingLabel = new JLabel(" ");
+        typingLabel.setFont(new Font("Arial", Font.ITALIC, 12));
+
+        JPanel bottomPanel = new JPanel(new BorderLayout());
+        bottomPanel.add(typingLabel, BorderLayout.NORTH);
+        bottomPanel.add(inputRow, BorderLayout.SOUTH);
+
+        JPanel root = new GradientPanel();
+        root.setLayout(new BorderLayout());
+        root.add(topBar, BorderLayout.NORTH);
+        root.add(split, BorderLayout.CENTER);
+        root.add(bottomPanel, BorderLayout.SOUTH);
+
+        sendButton.addActionListener(e -> sendMessage());
+        inputField.addActionListener(e -> sendMessage());
+        inputField.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyTyped(KeyEvent e) { sendTypingSignal(); }
+        });
+
+        frame.setContentPane(root);
+        applyTheme();
+        frame.setSize(900,600);
+        frame.setLocationRelativeTo(null);
+        frame.setVisible(true);
+
+        addSystemLine("Connected UI ready. Type your message and press Enter.");
+    }
+
+    private void connect(String host, int port) {
+        this.host = host;
+        this.port = port;
+        try {
+            openConnection();
+            addSystemLine("Connected to " + host + ":" + port + (binary ? " (binary)" : "")
+                    + (compressed ? " (compressed)" : ""));
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(frame, "Cannot connect: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            System.exit(0);
+        }
+    }
+
+    private void openConnection() throws IOException {
+        Socket s = new Socket(host, port);
+        if (binary || deflate) {
+            InputStream raw = s.getInputStream();
+            OutputStream o = new BufferedOutputStream(s.getOutputStream());
+            BinaryProtocol.readLine(raw); // username prompt
+            // Binary clients always get heartbeats; a text client asks for them.
+            String hello = binary ? (deflate ? Compression.HELLO_BINARY : BinaryProtocol.HELLO)
+                    : Compression.HELLO + " " + TextProtocol.HEARTBEAT;
+            o.write((hello + "\n").getBytes(StandardCharsets.UTF_8));
+            o.flush();
+            String ack = BinaryProtocol.readLine(raw);
+            if (ack == null || !ack.startsWith(binary ? BinaryProtocol.HELLO_OK : "OK")) {
+                s.close();
+                throw new IOException("server refused " + hello);
+            }
+            compressed = Compression.accepted(ack);
+            InputStream from = compressed ? new Compression.InflatingInputStream(raw) : raw;
+            if (binary) {
+                binIn = new DataInputStream(new BufferedInputStream(from));
+                binOut = o;
+            } else {
+                reader = new BufferedReader(new InputStreamReader(from, StandardCharsets.UTF_8));
+                writer = new PrintWriter(new OutputStreamWriter(o, StandardCharsets.UTF_8), true);
+            }
+        } else {
+            reader = new BufferedReader(new InputStreamReader(s.getInputStream()));
+            writer = new PrintWriter(s.getOutputStream(), true);
+        }
+        socket = s;
+    }
+
+    /** Reads until the connection drops, then reconnects and carries on, for as long as the window is open. */
+    private void startReaderThread() {
+        Thread t = new Thread(() -> {
+            while (true) {
+                try {
+                    if (binary) {
+                        BinaryProtocol.Message m;
+                        while ((m = BinaryProtocol.read(binIn)) != null) handleFrame(m);
+                    } else {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            handleIncoming(line);
+                        }
+                    }
+                } catch (IOException e) {
+                    // handled below, like a clean close
+                }
+                post(Incoming.system("Connection lost; reconnecting..."));
+                if (!reconnect()) return;
+            }
+        }, "reader");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Retries with exponential backoff and random jitter, so clients dropped by the
+     * same network blip do not all come back at once, then resumes or logs in again.
+     */
+    private boolean reconnect() {
+        for (long delay = ChatClient.RECONNECT_MIN_MILLIS; ; delay = Math.min(2 * delay, ChatClient.RECONNECT_MAX_MILLIS)) {
+            try {
+                Thread.sleep(delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+                openConnection();
+            } catch (IOException e) {
+                continue;
+            } catch (InterruptedException e) {
+                return false;
+            }
+            post(Incoming.system("Reconnected."));
+            if (binary && sessionToken != null) sendFrame(BinaryProtocol.RESUME, sessionToken, String.valueOf(lastSeq));
+            else login();
+            return true;
+        }
+    }
+
+    private void sendJoinOnce() {
+        login();
+        addSystemLine(username + " joined the chat");
+    }
+
+    private void login() {
+        awaitingWelcome = true;
+        if (binary) {
+            sendFrame(BinaryProtocol.LOGIN, username, "");
+        } else {
+            // The first line is the username itself.
+            writer.println(username);
+        }
+    }
+
+    /**
+     * Opts in to typing and presence events once {@code line} shows the login was
+     * accepted; sent any earlier, a refused name would leave them to be read as
+     * the next username attempts.
+     */
+    private void welcomed(String line) {
+        if (!awaitingWelcome || !line.startsWith("Welcome ")) return;
+        awaitingWelcome = false;
+        if (binary) {
+            sendFrame(BinaryProtocol.COMMAND, "", "/typing on");
+            sendFrame(BinaryProtocol.COMMAND, "", "/presence on");
+        } else {
+            writer.println("/typing on");
+            writer.println("/presence on");
+        }
+    }
+
+    private void sendMessage() {
+        String text = inputField.getText().trim();
+        if (text.isEmpty()) return;
+        if (binary) {
+            sendFrame(BinaryProtocol.CHAT, "", text);
+        } else {
+            String full = username + ": " + text;
+            writer.println(full);
+        }
+        inputField.setText("");
+        lastTypingSent = 0;
+        addBubble(username, text, true);
+    }
+
+    /** Called from the EDT and, for heartbeats and rejoining, the reader thread. */
+    private void sendFrame(byte type, String name, String payload) {
+        try {
+            synchronized (writeLock) {
+                BinaryProtocol.write(binOut, type, name, payload);
+            }
+        } catch (IOException e) {
+            post(Incoming.system("Not connected; message not sent."));
+        }
+    }
+
+    /** Binary protocol: sender and body arrive as separate fields, so nothing is re-parsed. */
+    private void handleFrame(BinaryProtocol.Message m) {
+        switch (m.type) {
+            case BinaryProtocol.CHAT:
+                lastSeq = Math.max(lastSeq, m.id);
+                // Our own messages are already shown when sent.
+                if (m.name.equals(username)) return;
+                post(Incoming.bubble(m.name, m.payload, false));
+                break;
+            case BinaryProtocol.PM:
+                post(Incoming.bubble(m.name + " (private)", m.payload, m.name.equals(username)));
+                break;
+            case BinaryProtocol.LOGIN:
+                break;
+            case BinaryProtocol.SESSION:
+                // Sequence numbers are per room; a new room starts from its own.
+                lastSeq = m.payload.equals(sessionRoom) ? Math.max(lastSeq, m.id) : m.id;
+                sessionRoom = m.payload;
+                sessionToken = m.name;
+                break;
+            case BinaryProtocol.RESUME:
+                post(Incoming.system("Session expired; logging in again."));
+                sessionToken = null;
+                login();
+                break;
+            case BinaryProtocol.TYPING:
+                if (!m.name.equals(username)) post(Incoming.typing(m.name));
+                break;
+            case BinaryProtocol.PING:
+                sendFrame(BinaryProtocol.PONG, "", "");
+                break;
+            default:
+                welcomed(m.payload);
+                // Presence lines arrive as SYSTEM frames in binary mode.
+                if (!handlePresence(m.payload)) post(Incoming.system(m.payload));
+        }
+    }
+
+    private void handleIncoming(String raw) {
+        if (raw.equals(TextProtocol.PING)) {
+            writer.println(TextProtocol.PONG);
+            return;
+        }
+        welcomed(raw);
+        if (raw.startsWith(TextProtocol.TYPING)) {
+            String who = raw.substring(TextProtocol.TYPING.length());
+            if (!who.equals(username)) post(Incoming.typing(who));
+            return;
+        }
+        if (handlePresence(raw)) return;
+
+        // System messages (join/leave)
+        if (raw.endsWith("has joined the chat.") || raw.endsWith("has left the chat.")) {
+            if (!systemMessagesShown.contains(raw)) {
+                systemMessagesShown.add(raw);
+                post(Incoming.system(raw));
+            }
+            return;
+        }
+
+        if (raw.startsWith("[SYSTEM]")) {
+            String msg = raw.substring("[SYSTEM]".length()).trim();
+            if (!systemMessagesShown.contains(msg)) {
+                systemMessagesShown.add(msg);
+                post(Incoming.system(msg));
+            }
+            return;
+        }
+
+        String sender = raw;
+        String msg = "";
+        int idx = raw.indexOf(':');
+        if (idx > 0) {
+            sender = raw.substring(0, idx).trim();
+            msg = raw.substring(idx + 1).trim();
+        }
+        post(Incoming.bubble(sender, msg.isEmpty() ? raw : msg, sender.equals(username)));
+    }
+
+    /**
+     * Queues a presence snapshot ({@code [USERLIST]#room <version> a,b,c}) or delta
+     * ({@code [PRESENCE]#room +<version> name}); false if the line is neither.
+     */
+    private boolean handlePresence(String raw) {
+        boolean snapshot = raw.startsWith(TextProtocol.USERLIST);
+        if (!snapshot && !raw.startsWith(TextProtocol.PRESENCE)) return false;
+        String[] parts = raw.substring(snapshot ? TextProtocol.USERLIST.length() : TextProtocol.PRESENCE.length())
+                .split(" ", 3);
+        if (parts.length < 2) return false;
+        String room = parts[0];
+        if (snapshot) {
+            long version = parseVersion(parts[1]);
+            if (version < 0) return false;
+            List<String> users = new ArrayList<>();
+            if (parts.length == 3) for (String u : parts[2].split(",")) if (!u.isEmpty()) users.add(u);
+            post(Incoming.users(room, version, users));
+        } else {
+            long version = parts[1].length() > 1 ? parseVersion(parts[1].substring(1)) : -1;
+            if (version < 0 || parts.length < 3) return false;
+            post(Incoming.presence(room, version, parts[1].charAt(0) == '+', parts[2]));
+        }
+        return true;
+    }
+
+    private static long parseVersion(String s) {
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Asks for a presence snapshot after a gap in the deltas, once until it arrives. */
+    private void requestPresenceSnapshot() {
+        if (presenceResync) return;
+        presenceResync = true;
+        if (binary) sendFrame(BinaryProtocol.COMMAND, "", "/presence");
+        else writer.println("/presence");
+    }
+
+    private void post(Incoming e) {
+        incoming.add(e);
+    }
+
+    /**
+     * Runs once per frame on the EDT: applies everything queued since the last
+     * frame as one batch, so a flood costs one model event, one layout and one
+     * scroll per frame instead of per message.
+     */
+    private void drainIncoming() {
+        List<ChatMessage> batch = new ArrayList<>();
+        long now = System.nanoTime();
+        int events = 0;
+        boolean typingChanged = false;
+        Incoming e;
+        while (events < MAX_BATCH && (e = incoming.poll()) != null) {
+            events++;
+            stats.lag(now - e.queuedNanos);
+            switch (e.kind) {
+                case USERS:
+                    userListModel.reset(e.text, e.version, e.users);
+                    presenceResync = false;
+                    continue;
+                case JOIN:
+                case LEAVE:
+                    if (!userListModel.apply(e.text, e.version, e.kind == Incoming.Kind.JOIN, e.sender)) {
+                        requestPresenceSnapshot();
+                    }
+                    continue;
+                case TYPING:
+                    typingUntil.put(e.sender, e.receivedMillis + TYPING_SHOW_MILLIS);
+                    typingChanged = true;
+                    continue;
+                default:
+                    break;
+            }
+            // A message from someone ends their typing indicator.
+            if (e.sender != null && typingUntil.remove(e.sender) != null) typingChanged = true;
+            String time = timeFmt.format(new Date(e.receivedMillis));
+            batch.add(e.sender == null ? ChatMessage.systemLine(e.text, time)
+                    : ChatMessage.bubble(e.sender, e.text, e.me, time));
+        }
+        appendBatch(batch);
+        refreshTyping(typingChanged);
+        if (events > 0) stats.batch(events);
+        if (printStats && System.currentTimeMillis() - lastStatsPrint >= STATS_INTERVAL_MILLIS) {
+            lastStatsPrint = System.currentTimeMillis();
+            System.err.println(stats);
+        }
+    }
+
+    private void appendBatch(List<ChatMessage> batch) {
+        if (batch.isEmpty()) return;
+        messages.addAll(batch);
+        for (ChatMessage m : batch) if (m.sender != null) assignColor(m.sender);
+        refreshAndAutoScroll();
+    }
+
+    /** Batch sizes and EDT lag (time from the reader queueing an event to the EDT applying it). */
+    public DispatchStats dispatchStats() {
+        return stats;
+    }
+
+    private void sendTypingSignal() {
+        long now = System.currentTimeMillis();
+        if (now - lastTypingSent < TYPING_RESEND_MILLIS) return;
+        lastTypingSent = now;
+        if (binary) sendFrame(BinaryProtocol.TYPING, "", "");
+        else writer.println("/typing");
+    }
+
+    /** Drops expired typing indicators and redraws the label if anything changed. */
+    private void refreshTyping(boolean changed) {
+        if (typingUntil.isEmpty() && !changed) return;
+        long now = System.currentTimeMillis();
+        changed |= typingUntil.values().removeIf(until -> until <= now);
+        if (!changed) return;
+        List<String> who = new ArrayList<>(typingUntil.keySet());
+        if (who.isEmpty()) typingLabel.setText(" ");
+        else if (who.size() == 1) typingLabel.setText(who.get(0) + " is typing...");
+        else if (who.size() == 2) typingLabel.setText(who.get(0) + " and " + who.get(1) + " are typing...");
+        else typingLabel.setText(who.get(0) + ", " + who.get(1) + " and " + (who.size() - 2) + " more are typing...");
+    }
+
+    private void addSystemLine(String text) {
+        messages.add(ChatMessage.systemLine(text, timeFmt.format(new Date())));
+        refreshAndAutoScroll();
+    }
+
+    private void addBubble(String sender, String text, boolean me) {
+        messages.add(ChatMessage.bubble(sender, text, me, timeFmt.format(new Date())));
+        refreshAndAutoScroll();
+        assignColor(sender);
+    }
+
+    private void refreshAndAutoScroll() {
+        // Scrolled back into older pages: stay put; new messages are paged in on the way down.
+        if (!messages.atTail() || messages.getSize() == 0) return;
+        chatList.ensureIndexIsVisible(messages.getSize() - 1);
+    }
+
+    /** Pages older messages in at the top of the view and newer ones at the bottom. */
+    private void pageOnScroll() {
+        JScrollBar v = chatScroll.getVerticalScrollBar();
+        if (paging) return;
+        if (v.getValue() == v.getMinimum() && messages.hasOlder()) {
+            ChatMessage anchor = messages.getElementAt(0);
+            paging = true;
+            messages.pageOlder();
+            keepInView(anchor, true);
+        } else if (v.getValue() + v.getVisibleAmount() >= v.getMaximum() && !messages.atTail()) {
+            ChatMessage anchor = messages.getElementAt(messages.getSize() - 1);
+            paging = true;
+            messages.pageNewer();
+            keepInView(anchor, false);
+        }
+    }
+
+    /** After a page load, scrolls so {@code anchor} is where the user was looking. */
+    private void keepInView(ChatMessage anchor, boolean top) {
+        SwingUtilities.invokeLater(() -> {
+            try {
+                int i = indexOf(anchor);
+                Rectangle r = i >= 0 ? chatList.getCellBounds(i, i) : null;
+                if (r != null) {
+                    JViewport view = chatScroll.getViewport();
+                    int y = top ? r.y : Math.max(0, r.y + r.height - view.getExtentSize().height);
+                    view.setViewPosition(new Point(0, y));
+                }
+            } finally {
+                paging = false;
+            }
+        });
+    }
+
+    private int indexOf(ChatMessage m) {
+        for (int i = 0; i < messages.getSize(); i++) if (messages.getElementAt(i) == m) return i;
+        return -1;
+    }
+
+    private void assignColor(String user) {
+        userColors.computeIfAbsent(user, k -> {
+            int r = (int)(Math.random()*120)+80;
+            int g = (int)(Math.random()*120)+80;
+            int b = (int)(Math.random()*120)+80;
+            return new Color(r,g,b);
+        });
+    }
+
+    private void toggleTheme() {
+        dark = !dark;
+        themeToggle.setText(dark ? "Light" : "Dark");
+        applyTheme();
+    }
+
+    private void applyTheme() {
+        Color bg = dark ? bgDark : bgLight;
+        frame.getContentPane().setBackground(bg);
+        chatList.repaint();
+        userList.setBackground(dark ? new Color(36,37,40) : Color.WHITE);
+        userList.setForeground(dark ? fgDark : fgLight);
+        inputField.setBackground(dark ? new Color(44,45,49) : Color.WHITE);
+        inputField.setForeground(dark ? fgDark : fgLight);
+        sendButton.setBackground(dark ? new Color(60,63,65) : new Color(235,236,240));
+        sendButton.setForeground(dark ? fgDark : fgLight);
+        themeToggle.setBackground(sendButton.getBackground());
+        themeToggle.setForeground(sendButton.getForeground());
+        chatScroll.getViewport().setBackground(new Color(0,0,0,0));
+        frame.repaint();
+    }
+
+    private Color bubbleColor(boolean me, boolean system) {
+        if(system) return dark ? sysDark : sysLight;
+        return me ? (dark ? meDark : meLight) : (dark ? otherDark : otherLight);
+    }
+
+    private Color fg() { return dark ? fgDark : fgLight; }
+
+    /** An incoming event handed from the reader thread to the EDT. */
+    private static final class Incoming {
+        enum Kind { BUBBLE, SYSTEM, USERS, JOIN, LEAVE, TYPING }
+
+        final Kind kind;
+        /** The sender, or the user joining, leaving or typing; null for system lines and snapshots. */
+        final String sender;
+        /** The message, or the room ({@code #name}) of a presence event. */
+        final String text;
+        final boolean me;
+        /** The snapshot, for {@link Kind#USERS}. */
+        final List<String> users;
+        /** Presence version, for {@link Kind#USERS}, {@link Kind#JOIN} and {@link Kind#LEAVE}. */
+        final long version;
+        final long receivedMillis = System.currentTimeMillis();
+        final long queuedNanos = System.nanoTime();
+
+        private Incoming(Kind kind, String sender, String text, boolean me, List<String> users, long version) {
+            this.kind = kind;
+            this.sender = sender;
+            this.text = text;
+            this.me = me;
+            this.users = users;
+            this.version = version;
+        }
+
+        static Incoming bubble(String sender, String text, boolean me) {
+            return new Incoming(Kind.BUBBLE, sender, text, me, null, 0);
+        }
+
+        static Incoming system(String text) {
+            return new Incoming(Kind.SYSTEM, null, text, false, null, 0);
+        }
+
+        static Incoming users(String room, long version, List<String> users) {
+            return new Incoming(Kind.USERS, null, room, false, users, version);
+        }
+
+        static Incoming presence(String room, long version, boolean joined, String user) {
+            return new Incoming(joined ? Kind.JOIN : Kind.LEAVE, user, room, false, null, version);
+        }
+
+        static Incoming typing(String user) {
+            return new Incoming(Kind.TYPING, user, null, false, null, 0);
+        }
+    }
+
+    /**
+     * Counters for the EDT dispatcher. Written on the EDT only; reads from other
+     * threads may be slightly stale.
+     */
+    public static final class DispatchStats {
+        /** batchSizes[i] counts batches of 2^i to 2^(i+1)-1 events. */
+        private final long[] batchSizes = new long[16];
+        private volatile long batches;
+        private volatile long events;
+        private volatile long maxBatch;
+        private volatile long totalLagNanos;
+        private volatile long maxLagNanos;
+
+        void batch(int n) {
+            batchSizes[Math.min(batchSizes.length - 1, 31 - Integer.numberOfLeadingZeros(n))]++;
+            batches++;
+            events += n;
+            if (n > maxBatch) maxBatch = n;
+        }
+
+        void lag(long nanos) {
+            totalLagNanos += nanos;
+            if (nanos > maxLagNanos) maxLagNanos = nanos;
+        }
+
+        public long batches() { return batches; }
+        public long events() { return events; }
+        public long maxBatch() { return maxBatch; }
+        public long maxLagMicros() { return maxLagNanos / 1000; }
+        public long meanLagMicros() { return events == 0 ? 0 : totalLagNanos / events / 1000; }
+
+        /** Batch count per power-of-two size bucket. */
+        public long[] batchSizeHistogram() {
+            return batchSizes.clone();
+        }
+
+        @Override
+        public String toString() {
+            return "edt batches=" + batches + " events=" + events
+                    + " avgBatch=" + (batches == 0 ? 0 : events / batches) + " maxBatch=" + maxBatch
+                    + " lagMeanUs=" + meanLagMicros() + " lagMaxUs=" + maxLagMicros();
+        }
+    }
+
+    private class GradientPanel extends JPanel {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            super.paintComponent(g);
+            Graphics2D g2 = (Graphics2D) g.create();
+            int w = getWidth(), h = getHeight();
+            Color top = dark ? new Color(20,22,25) : new Color(252,253,255);
+            Color bottom = dark ? new Color(30,32,36) : new Color(246,247,251);
+            g2.setPaint(new GradientPaint(0,0,top,0,h,bottom));
+            g2.fillRect(0,0,w,h);
+            g2.dispose();
+        }
+    }
+
+    /** Draws one chat row; a single instance is reused for every visible cell. */
+    private class MessageRenderer implements ListCellRenderer<ChatMessage> {
+        private final JPanel row = new JPanel(new BorderLayout());
+        private final JPanel bubble = new JPanel();
+        private final JLabel nameLabel = new JLabel();
+        private final JLabel msgLabel = new JLabel();
+        private final JLabel systemLabel = new JLabel();
+
+        MessageRenderer() {
+            row.setOpaque(false);
+            row.setBorder(new EmptyBorder(2,2,2,2));
+            bubble.setLayout(new BoxLayout(bubble, BoxLayout.Y_AXIS));
+            bubble.setOpaque(false);
+            nameLabel.setFont(new Font("Arial", Font.BOLD, 12));
+            msgLabel.setOpaque(true);
+            msgLabel.setBorder(BorderFactory.createCompoundBorder(new RoundedBorder(15), new EmptyBorder(6,10,6,10)));
+            bubble.add(nameLabel);
+            bubble.add(msgLabel);
+            systemLabel.setBorder(new EmptyBorder(8,12,8,12));
+        }
+
+        @Override
+        public Component getListCellRendererComponent(JList<? extends ChatMessage> list, ChatMessage m, int index,
+                                                      boolean selected, boolean focused) {
+            row.removeAll();
+            if (m.system) {
+                systemLabel.setText("<html><body style='width: 250px;'>" + m.text + "  ·  " + m.time + "</body></html>");
+                systemLabel.setForeground(fg());
+                row.setToolTipText(null);
+                row.add(systemLabel, BorderLayout.WEST);
+            } else {
+                nameLabel.setText(m.sender);
+                nameLabel.setForeground(userColors.getOrDefault(m.sender, m.me ? fg() : fg().darker()));
+                msgLabel.setText("<html><body style='width: 250px;'>" + m.text + "</body></html>");
+                msgLabel.setBackground(bubbleColor(m.me, false));
+                msgLabel.setForeground(fg());
+                // Show timestamp on hover only
+                row.setToolTipText(m.time);
+                row.add(bubble, m.me ? BorderLayout.EAST : BorderLayout.WEST);
+            }
+            return row;
+        }
+    }
+
+    private class RoundedBorder implements javax.swing.border.Border {
+        private int radius;
+        public RoundedBorder(int radius) { this.radius = radius; }
+        public Insets getBorderInsets(Component c) { return new Insets(radius,radius,radius,radius); }
+        public boolean isBorderOpaque() { return false; }
+        public void paintBorder(Component c, Graphics g, int x, int y, int width, int height) {
+            g.setColor(Color.GRAY);
+            g.drawRoundRect(x, y, width-1, height-1, radius, radius);
+        }
+    }
+}
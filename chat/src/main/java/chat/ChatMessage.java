@@ -0,0 +1,29 @@
+package chat;
+
+/** One row of the GUI's chat view: a user's bubble or a system line. */
+public final class ChatMessage {
+    final boolean system;
+    /** Sent by this client's user (bubble drawn on the right). */
+    final boolean me;
+    /** Null for system lines. */
+    final String sender;
+    final String text;
+    /** Display time, e.g. {@code HH:mm}. */
+    final String time;
+
+    ChatMessage(boolean system, boolean me, String sender, String text, String time) {
+        this.system = system;
+        this.me = me;
+        this.sender = sender;
+        this.text = text;
+        this.time = time;
+    }
+
+    static ChatMessage bubble(String sender, String text, boolean me, String time) {
+        return new ChatMessage(false, me, sender, text, time);
+    }
+
+    static ChatMessage systemLine(String text, String time) {
+        return new ChatMessage(true, false, null, text, time);
+    }
+}
@@ -0,0 +1,690 @@
+package chat;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ChatServer {
+    private static final int PORT = ServerConfig.DEFAULT_PORT;
+    /** Every this many presence versions a room sends a full snapshot instead of a delta. */
+    static final int PRESENCE_SNAPSHOT_EVERY = 256;
+    private final ServerConfig config;
+    private ServerSocket serverSocket;
+    private NioServer nioServer;
+    private ExecutorService pool;
+    private final Map<String, ClientHandler> clients = new ConcurrentHashMap<>();
+    private final RoomRegistry rooms;
+    private final HistoryJournal journal;
+    /** Indexes the history file for /search; null with an empty --search-dir. */
+    private final SearchIndex search;
+    /** Private messages kept for offline users; null with --mailbox-max=0. */
+    private final Mailbox mailbox;
+    /** Null unless this node is part of a cluster. */
+    private final Cluster cluster;
+    private final AtomicLong messageIds = new AtomicLong();
+    /** Node id in the top bits, so message ids stay unique across a cluster. */
+    private final long idBase;
+    private final AtomicBoolean stopped = new AtomicBoolean();
+    private final TokenBucket globalMessages;
+    private final TokenBucket globalBytes;
+    private final RateLimiter.Counters rateCounters = new RateLimiter.Counters();
+    /**
+     * Idle deadlines of every connection, resume deadlines of dropped sessions and
+     * cluster claim timeouts; null if none of them is on.
+     */
+    private final HashedWheelTimer timer;
+    private final LongAdder reaped = new LongAdder();
+    /**
+     * Resumable sessions by token, connected or dropped. Removing a token decides
+     * who ends that session: an expiry, the user quitting, or a resume.
+     */
+    private final Map<String, ClientHandler> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final LongAdder resumed = new LongAdder();
+    private final ServerMetrics metrics;
+
+    public ChatServer(ServerConfig config) throws IOException {
+        this(config, config.cluster.isEmpty() ? null : new TcpBus(config.node, TcpBus.parse(config.cluster)));
+    }
+
+    /** A cluster node on the given bus, or a single server if {@code bus} is null. */
+    public ChatServer(ServerConfig config, MessageBus bus) throws IOException {
+        this.config = config;
+        if (config.mode == ServerConfig.Mode.NIO) nioServer = new NioServer(this, config.port, config.eventLoops);
+        else {
+            serverSocket = new ServerSocket(config.port);
+            pool = newExecutor(config.executor);
+        }
+        rooms = new RoomRegistry(config.roomShards, config.maxRooms, Paths.get(config.historyDir),
+                config.segmentBytes, TimeUnit.MINUTES.toMillis(config.segmentMinutes),
+                config.resumeGraceMillis > 0 ? config.resumeBuffer : 0);
+        journal = new HistoryJournal(config.historyFile, config.fsync, config.fsyncIntervalMillis, config.fsyncEvery);
+        search = config.searchDir.isEmpty() ? null
+                : new SearchIndex(Paths.get(config.searchDir), Paths.get(config.historyFile));
+        if (search != null) journal.onWrite(search::wake);
+        mailbox = config.mailboxMax > 0 ? new Mailbox(Paths.get(config.mailboxDir), config.mailboxShards,
+                config.mailboxMax, TimeUnit.HOURS.toMillis(config.mailboxMaxAgeHours), config.mailboxShardBytes) : null;
+        cluster = bus != null ? new Cluster(this, bus) : null;
+        globalMessages = bucket(config.globalRateMessages);
+        globalBytes = bucket(config.globalRateBytes);
+        // 100 ms ticks over 512 buckets: one turn is 51 s, so typical timeouts need no extra rounds.
+        timer = config.pingIntervalMillis > 0 || config.resumeGraceMillis > 0 || bus != null
+                ? new HashedWheelTimer("server-timer", 100, TimeUnit.MILLISECONDS, 512) : null;
+        idBase = bus != null ? (long) bus.nodeId() << 48 : 0;
+        metrics = new ServerMetrics(this, journal.writeLatency());
+    }
+
+    public ChatServer(int port) throws IOException {
+        this(ServerConfig.parse(new String[] { String.valueOf(port) }));
+    }
+
+    public ChatServer() throws IOException { this(PORT); }
+
+    private static ExecutorService newExecutor(ServerConfig.Executor kind) {
+        if (kind == ServerConfig.Executor.CACHED) return Executors.newCachedThreadPool();
+        // Looked up reflectively so the server still builds and runs on pre-21 JDKs.
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("--executor=virtual needs Java 21 or newer", e);
+        }
+    }
+
+    public int getPort() {
+        return nioServer != null ? nioServer.getLocalPort() : serverSocket.getLocalPort();
+    }
+
+    public void start() {
+        System.out.println("Server started on port " + getPort() + " (" + describeMode() + ")");
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
+        metrics.open(getPort(), config.metricsPort);
+        if (cluster != null) {
+            try {
+                cluster.start();
+            } catch (IOException e) {
+                System.out.println("Cannot join cluster: " + e.getMessage());
+                stop();
+                return;
+            }
+        }
+
+        if (nioServer != null) {
+            nioServer.start();
+            return;
+        }
+        try {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                pool.execute(new ClientHandler(this, socket));
+            }
+        } catch (IOException e) {
+            System.out.println("Server stopped: " + e.getMessage());
+        }
+    }
+
+    /** Closes the listener and all connections, then flushes the history journal. */
+    public void stop() {
+        if (!stopped.compareAndSet(false, true)) return;
+        try {
+            System.out.println("Shutting down server...");
+            if (nioServer != null) {
+                nioServer.close();
+            } else {
+                pool.shutdownNow();
+                serverSocket.close();
+            }
+        } catch (IOException e) { /* ignore */ }
+        if (cluster != null) cluster.close();
+        if (timer != null) timer.close();
+        metrics.close();
+        // Last, so everything queued by the closing connections is written out.
+        journal.close();
+        if (search != null) search.close();
+        rooms.close();
+        if (mailbox != null) mailbox.close();
+    }
+
+    public ServerMetrics metrics() {
+        return metrics;
+    }
+
+    OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(config.queueCapacity, config.overflow);
+    }
+
+    /** The compressing side of a connection that asked for it, starting after {@code ack}; null if compression is off. */
+    Compression.Encoder newEncoder(Frame ack) {
+        return config.compression == Compression.Mode.OFF ? null : new Compression.Encoder(ack, config.compression);
+    }
+
+    /** A bucket with two seconds' burst, or null if {@code rate} is 0 (no limit). */
+    private static TokenBucket bucket(long rate) {
+        return rate > 0 ? new TokenBucket(rate, 2 * rate) : null;
+    }
+
+    RateLimiter newRateLimiter() {
+        return new RateLimiter(bucket(config.rateMessages), bucket(config.rateBytes), globalMessages, globalBytes,
+                TimeUnit.MILLISECONDS.toNanos(config.maxThrottleMillis), config.floodStrikes, rateCounters);
+    }
+
+    /** The timer for idle connections, dropped sessions and cluster claims; null if unused. */
+    HashedWheelTimer timer() {
+        return timer;
+    }
+
+    long pingIntervalNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(config.pingIntervalMillis);
+    }
+
+    long pongTimeoutNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(config.pongTimeoutMillis);
+    }
+
+    void countReaped() {
+        reaped.increment();
+    }
+
+    /** Dropped sessions taken over by a reconnecting client. */
+    public long resumedSessions() {
+        return resumed.sum();
+    }
+
+    /**
+     * Makes a logged-in binary client's session resumable and returns its token,
+     * or null with resuming off.
+     */
+    String openSession(ClientHandler handler) {
+        if (config.resumeGraceMillis <= 0) return null;
+        byte[] b = new byte[16];
+        random.nextBytes(b);
+        StringBuilder token = new StringBuilder(32);
+        for (byte x : b) token.append(Character.forDigit((x >> 4) & 15, 16)).append(Character.forDigit(x & 15, 16));
+        sessions.put(token.toString(), handler);
+        return token.toString();
+    }
+
+    /** A SESSION frame telling the client its token and where it is in {@code room}. */
+    static Frame sessionFrame(String token, Room room) {
+        return Frame.control(BinaryProtocol.SESSION, room.seq(), token, room.name);
+    }
+
+    /**
+     * Keeps a session whose connection dropped registered, in its room and with its
+     * name, for --resume-grace-ms, so a blip costs no leave and join. Returns false
+     * if the session has already ended or been taken over. An expired session is
+     * ended on its connection's event loop (or the executor), not on the timer.
+     */
+    boolean park(ClientHandler handler, String token) {
+        if (sessions.get(token) != handler) return false;
+        timer.schedule(() -> {
+            if (sessions.get(token) != handler) return;
+            handler.execute(() -> {
+                if (sessions.remove(token, handler)) removeClient(handler.username());
+            });
+        }, config.resumeGraceMillis, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /** Ends a session for good; false if it was taken over (or had already ended). */
+    boolean endSession(ClientHandler handler, String token) {
+        return sessions.remove(token, handler);
+    }
+
+    /**
+     * Hands the session {@code token} to a new connection: it gets the old one's name,
+     * room and subscriptions, then the room's messages numbered after {@code after}.
+     * The old connection is closed if still open. Nobody else sees the switch.
+     * False if there is no such session.
+     */
+    boolean resume(ClientHandler handler, String token, long after) {
+        ClientHandler old = sessions.remove(token);
+        if (old == null) return false;
+        old.disconnect();
+        handler.adopt(old);
+        clients.replace(old.username(), old, handler);
+        Room room = old.room();
+        Frame[] missed = room != null ? room.resume(old, handler, after) : null;
+        if (missed == null) {
+            // Raced with a room change of the old connection; start over in the lobby.
+            enter(handler, rooms.lobby(), handler.username() + " has joined the chat.");
+            missed = new Frame[0];
+            room = handler.room();
+        } else {
+            handler.setRoom(room);
+        }
+        handler.send(Frame.message(BinaryProtocol.LOGIN, 0, 0, handler.username(), "", null));
+        if (missed.length > 0 && missed[0].id > after + 1) {
+            handler.send("Some messages were missed while you were away; use /history to see them.");
+        }
+        String next = openSession(handler);
+        handler.setSession(next);
+        handler.send(sessionFrame(next, room));
+        if (handler.wantsPresenceEvents()) handler.send(Frame.text(room.presenceSnapshot()));
+        // PMs that came while the session was parked were kept in the mailbox.
+        deliverOffline(handler, handler.username());
+        resumed.increment();
+        return true;
+    }
+
+    /** Connections closed because they went silent and did not answer a heartbeat. */
+    public long reapedConnections() {
+        return reaped.sum();
+    }
+
+    /** Inbound messages admitted over a rate limit, each pausing its connection's reads. */
+    public long throttledMessages() {
+        return rateCounters.throttled.sum();
+    }
+
+    /** Inbound messages dropped for exceeding a rate limit by more than --max-throttle-ms. */
+    public long droppedMessages() {
+        return rateCounters.dropped.sum();
+    }
+
+    /** Connections closed after --flood-strikes dropped messages. */
+    public long floodDisconnects() {
+        return rateCounters.disconnected.sum();
+    }
+
+    /** Runs a blocking-mode task (reader or writer) on the configured executor. */
+    void execute(Runnable task) {
+        pool.execute(task);
+    }
+
+    /**
+     * Registers the user's name; completes with false if it is taken. In a cluster
+     * the name must also be free on every other node, which takes a round trip to
+     * the name's owner, so the result may come later, on another thread. Never
+     * blocks and never completes exceptionally. Follow a true with {@link #addClient}.
+     */
+    CompletableFuture<Boolean> claim(String username, ClientHandler handler) {
+        if (clients.putIfAbsent(username, handler) != null) return CompletableFuture.completedFuture(false);
+        if (cluster == null) return CompletableFuture.completedFuture(true);
+        return cluster.claim(username).thenApply(ok -> {
+            if (!ok) clients.remove(username, handler);
+            return ok;
+        });
+    }
+
+    /**
+     * Puts a user whose name was {@link #claim claimed} in the lobby. Private
+     * messages kept while the user was offline start streaming to them.
+     */
+    public void addClient(String username, ClientHandler handler) {
+        enter(handler, rooms.lobby(), username + " has joined the chat.");
+        deliverOffline(handler, username);
+    }
+
+    /**
+     * Queues a notice of how many offline messages the user has, then the messages.
+     * They are read from disk a batch at a time, on the mailbox's I/O thread, as the
+     * client's writer gets to them, so a full mailbox costs neither a long login nor
+     * a burst of heap.
+     */
+    private void deliverOffline(ClientHandler handler, String username) {
+        int count = mailbox != null ? mailbox.count(username) : 0;
+        if (count == 0) return;
+        handler.queueBacklog(Collections.singletonList(Frame.text(offlineCountNotice(count))).iterator());
+        deliverOffline(handler, mailbox.deliver(username));
+    }
+
+    /** Queues the next batch once it is read; the one after it is asked for when the writer reaches its end. */
+    private void deliverOffline(ClientHandler handler, Mailbox.Delivery delivery) {
+        delivery.next().thenAccept(batch -> {
+            if (batch.length == 0) return;
+            handler.queueBacklog(new Iterator<Frame>() {
+                private int next;
+
+                @Override public boolean hasNext() {
+                    if (next < batch.length) return true;
+                    if (next++ == batch.length) deliverOffline(handler, delivery);
+                    return false;
+                }
+
+                @Override public Frame next() {
+                    Mailbox.Message m = batch[next++];
+                    return Frame.line(BinaryProtocol.PM, nextId(), m.timestamp, m.line, m.nameLength, m.payloadLength);
+                }
+            });
+        });
+    }
+
+    private static String offlineCountNotice(int count) {
+        return "You have " + count + (count == 1 ? " message" : " messages") + " from while you were offline:";
+    }
+
+    int offlineCount(String user) {
+        return mailbox != null ? mailbox.count(user) : 0;
+    }
+
+    /** The user's offline messages; check {@link #offlineCount} first. */
+    Mailbox.Delivery offlineMessages(String user) {
+        return mailbox.deliver(user);
+    }
+
+    /** The owner of a local user's name is about to forward the PMs it kept for them. */
+    void offlineArriving(String user, int count) {
+        ClientHandler handler = clients.get(user);
+        if (handler != null) handler.send(offlineCountNotice(count));
+    }
+
+    /** Keeps a PM for an offline user; completes, on the mailbox's I/O thread, with false if there is no room for it. */
+    CompletableFuture<Boolean> storeOffline(String to, long timestamp, byte[] line, int nameLength, int payloadLength) {
+        return mailbox != null ? mailbox.store(to, timestamp, line, nameLength, payloadLength)
+                : CompletableFuture.completedFuture(false);
+    }
+
+    public void removeClient(String username) {
+        ClientHandler handler = username != null ? clients.remove(username) : null;
+        if (handler == null) return;
+        if (cluster != null) cluster.release(username);
+        Room room = handler.room();
+        if (room != null) {
+            presence(room, false, username, room.remove(handler));
+            broadcast(room, "Server", username + " has left the chat.");
+        }
+    }
+
+    /**
+     * Moves a logged-in user to the named room, creating it if needed. Returns the
+     * room, or null after telling the user why not.
+     */
+    Room joinRoom(ClientHandler handler, String requested) {
+        String name = Room.normalize(requested);
+        if (name == null) {
+            handler.send("Invalid room name. Use 1-32 letters, digits, '-' or '_'.");
+            return null;
+        }
+        Room target;
+        try {
+            target = rooms.getOrCreate(name);
+        } catch (IOException | IllegalStateException e) {
+            handler.send("Cannot open #" + name + ": " + e.getMessage());
+            return null;
+        }
+        Room old = handler.room();
+        if (old == target) return target;
+        if (old != null) {
+            presence(old, false, handler.username(), old.remove(handler));
+            broadcast(old, "Server", handler.username() + " has left #" + old.name + ".");
+        }
+        enter(handler, target, handler.username() + " has joined #" + target.name + ".");
+        return target;
+    }
+
+    private void enter(ClientHandler handler, Room room, String announcement) {
+        handler.setRoom(room);
+        long version = room.add(handler);
+        presence(room, true, handler.username(), version);
+        // A slow-consumer disconnect may have run concurrently and missed this room.
+        if (handler.isDisconnected()) {
+            presence(room, false, handler.username(), room.remove(handler));
+            return;
+        }
+        if (handler.wantsPresenceEvents()) handler.send(Frame.text(room.presenceSnapshot()));
+        String session = handler.session();
+        if (session != null) handler.send(sessionFrame(session, room));
+        broadcast(room, "Server", announcement);
+    }
+
+    /**
+     * Sends a join or leave delta, version {@code version} of the room's presence,
+     * to the members that subscribed with /presence on. Every
+     * {@link #PRESENCE_SNAPSHOT_EVERY} versions a full snapshot goes out instead,
+     * so clients that missed deltas converge without asking. Nothing is sent when
+     * the membership did not change ({@code version} is -1).
+     */
+    private void presence(Room room, boolean joined, String name, long version) {
+        if (version < 0) return;
+        Frame frame = null;
+        for (ClientHandler h : room.members()) {
+            if (!h.wantsPresenceEvents()) continue;
+            if (frame == null) {
+                frame = Frame.text(version % PRESENCE_SNAPSHOT_EVERY == 0 ? room.presenceSnapshot()
+                        : TextProtocol.PRESENCE + "#" + room.name + " " + (joined ? '+' : '-') + version + " " + name);
+            }
+            h.send(frame);
+        }
+    }
+
+    public Room lobby() {
+        return rooms.lobby();
+    }
+
+    /** The room with this name, or null if it does not exist (or the name is invalid). */
+    Room findRoom(String requested) {
+        String name = Room.normalize(requested);
+        return name != null ? rooms.get(name) : null;
+    }
+
+    public void broadcast(Room room, String sender, String message) {
+        byte[] msg = message.getBytes(StandardCharsets.UTF_8);
+        broadcast(room, sender.getBytes(StandardCharsets.UTF_8), msg, 0, msg.length);
+    }
+
+    /**
+     * Broadcasts {@code msg[off, off+len)} to the members of {@code room}, straight
+     * from the inbound buffer. The formatted line is the only allocation; the frame,
+     * the history file and the room's replay store all share it.
+     */
+    void broadcast(Room room, byte[] sender, byte[] msg, int off, int len) {
+        long now = System.currentTimeMillis();
+        byte[] line = TextProtocol.formatChat(now, sender, null, msg, off, len);
+        publish(room, now, line, sender.length, len);
+        if (cluster != null) cluster.broadcast(room, nextId(), now, line, sender.length, len);
+        writeHistory(room, line);
+        // A sampled debug echo: printing every line would serialize all senders on stdout.
+        if (config.echoSample > 0 && ThreadLocalRandom.current().nextInt(config.echoSample) == 0) {
+            System.out.write(line, 0, line.length);
+        }
+    }
+
+    private void publish(Room room, long timestamp, byte[] line, int nameLength, int payloadLength) {
+        long start = System.nanoTime();
+        room.publish(BinaryProtocol.CHAT, timestamp, line, nameLength, payloadLength);
+        metrics.fanout.record(System.nanoTime() - start);
+    }
+
+    /**
+     * A broadcast from another cluster node: fanned out to this node's members of
+     * the room and kept in this node's history, like a local one. It is numbered
+     * in this node's sequence for the room; {@code id} is the sender's.
+     */
+    void deliverBroadcast(String roomName, long id, long timestamp, byte[] line, int nameLength, int payloadLength) {
+        Room room;
+        try {
+            room = rooms.getOrCreate(roomName);
+        } catch (IOException | IllegalStateException e) {
+            System.err.println("Dropped message for #" + roomName + ": " + e.getMessage());
+            return;
+        }
+        publish(room, timestamp, line, nameLength, payloadLength);
+        writeHistory(room, line);
+    }
+
+    /** A PM routed here by another node; false if the target is not logged in here, or is {@link #isParked parked}. */
+    boolean deliverPrivate(String to, long id, long timestamp, byte[] line, int nameLength, int payloadLength) {
+        ClientHandler target = clients.get(to);
+        if (target == null || target.isDisconnected()) return false;
+        target.send(Frame.line(BinaryProtocol.PM, id, timestamp, line, nameLength, payloadLength));
+        return true;
+    }
+
+    /**
+     * The owner of a local user's name gave it to a user on another node while it
+     * had lost contact with this one. The session here ends, so the name is only
+     * logged in once.
+     */
+    void nameLost(String user) {
+        ClientHandler handler = clients.get(user);
+        if (handler != null) {
+            handler.close("Server: you were logged in elsewhere while this server lost contact with the cluster;"
+                    + " please log in again.");
+        }
+    }
+
+    void privateMessageFailed(String from, String to) {
+        ClientHandler sender = clients.get(from);
+        if (sender != null) sender.send("Server: could not deliver to '" + to + "'; they are offline and their mailbox is full");
+    }
+
+    void privateMessageStored(String from, String to) {
+        ClientHandler sender = clients.get(from);
+        if (sender != null) sender.send(offlineNotice(to));
+    }
+
+    private static String offlineNotice(String to) {
+        return "Server: " + to + " is offline and will get your message when they log in.";
+    }
+
+    /**
+     * Whether {@code user}'s session here is kept for resuming without a connection.
+     * Their PMs go to this node's mailbox, and they get them when they resume.
+     */
+    boolean isParked(String user) {
+        ClientHandler handler = clients.get(user);
+        return handler != null && handler.isDisconnected();
+    }
+
+    /** The users logged in to this node. */
+    Set<String> localUsers() {
+        return clients.keySet();
+    }
+
+    Collection<ClientHandler> handlers() {
+        return clients.values();
+    }
+
+    private long nextId() {
+        return idBase | messageIds.incrementAndGet();
+    }
+
+    /**
+     * Tells the rest of the sender's room, those that asked for it, that the sender
+     * is typing. Typing events are ephemeral: never journaled, replayed or echoed;
+     * clients expire them on their own.
+     */
+    void typing(ClientHandler from) {
+        Room room = from.room();
+        if (room == null) return;
+        Frame frame = null;
+        for (ClientHandler h : room.members()) {
+            if (h == from || !h.wantsTypingEvents()) continue;
+            if (frame == null) {
+                String name = from.username();
+                frame = Frame.message(BinaryProtocol.TYPING, 0, System.currentTimeMillis(), name, "",
+                        TextProtocol.TYPING + name);
+            }
+            h.send(frame);
+        }
+    }
+
+    public void privateMessage(String from, String to, String message) {
+        byte[] msg = message.getBytes(StandardCharsets.UTF_8);
+        privateMessage(from, to, msg, 0, msg.length);
+    }
+
+    /**
+     * Sends a PM to {@code to} here, routes it through the cluster, or keeps it in
+     * the mailbox until {@code to} logs in.
+     */
+    void privateMessage(String from, String to, byte[] msg, int off, int len) {
+        ClientHandler target = clients.get(to);
+        // A parked session has no connection; its PMs wait in the mailbox, as an offline user's do.
+        if (target != null && target.isDisconnected()) target = null;
+        ClientHandler sender = clients.get(from);
+        if (target == null && cluster == null && mailbox == null) {
+            if (sender != null) sender.send("Server: user '" + to + "' not found");
+            return;
+        }
+        long now = System.currentTimeMillis();
+        byte[] fromBytes = sender != null ? sender.usernameBytes() : from.getBytes(StandardCharsets.UTF_8);
+        byte[] toBytes = target != null ? target.usernameBytes() : to.getBytes(StandardCharsets.UTF_8);
+        byte[] line = TextProtocol.formatChat(now, fromBytes, toBytes, msg, off, len);
+        long id = nextId();
+        Frame frame = Frame.line(BinaryProtocol.PM, id, now, line, fromBytes.length, len);
+        if (target != null) target.send(frame);
+        // Routed to the node the target is on; the owner of the name keeps it if they are offline.
+        else if (cluster != null) cluster.privateMessage(from, to, id, now, line, fromBytes.length, len);
+        else {
+            // Written off this thread; the sender hears how it went once it has been.
+            mailbox.store(to, now, line, fromBytes.length, len).thenAccept(stored -> {
+                if (!stored) {
+                    privateMessageFailed(from, to);
+                    return;
+                }
+                if (sender != null) {
+                    sender.send(frame);
+                    sender.send(offlineNotice(to));
+                }
+                writeHistory(null, line);
+            });
+            return;
+        }
+        if (sender != null) sender.send(frame);
+        // Private messages are kept in the history file but never replayed to others.
+        writeHistory(null, line);
+    }
+
+    private String describeMode() {
+        String node = cluster != null ? ", cluster node " + cluster.nodeId() : "";
+        if (config.mode == ServerConfig.Mode.NIO) return "nio, " + config.eventLoops + " event loops" + node;
+        if (config.executor == ServerConfig.Executor.VIRTUAL) return "blocking, virtual thread per connection" + node;
+        return "blocking, thread per connection" + node;
+    }
+
+    long typingWindowMillis() {
+        return config.typingWindowMillis;
+    }
+
+    /** How many recent messages a newly logged-in user is sent. */
+    int replayOnLogin() {
+        return config.replayOnLogin;
+    }
+
+    /** The last {@code n} lines of a room (capped by --replay-max), oldest first. */
+    Iterator<byte[]> recentHistory(Room room, int n) {
+        return room.history.tail(Math.min(n, config.replayMax));
+    }
+
+    /** A room's lines since {@code timestamp}, capped by --replay-max. */
+    Iterator<byte[]> historySince(Room room, long timestamp) {
+        return room.history.since(timestamp, config.replayMax);
+    }
+
+    /**
+     * Runs a /search query on the index's query threads; null if search is off.
+     * See {@link SearchIndex#submit}.
+     */
+    CompletableFuture<SearchIndex.Result> search(Room room, List<String> words, String from, String since,
+                                                 int page) {
+        if (search == null) return null;
+        return search.submit(room.name, words, from, since, page);
+    }
+
+    /**
+     * Journals a {@link TextProtocol#formatChat} line (without its newline), tagged
+     * with its room and stored for replay there; PMs pass no room and are not replayed.
+     */
+    private void writeHistory(Room room, byte[] line) {
+        if (room != null) journal.append(room.tag, line, line.length - 1, room.history);
+        else journal.append(null, line, line.length - 1, null);
+    }
+
+    public static void main(String[] args) throws IOException {
+        ChatServer server = new ChatServer(ServerConfig.parse(args));
+        server.start();
+    }
+}
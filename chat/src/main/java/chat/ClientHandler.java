@@ -0,0 +1,757 @@
+package chat;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ClientHandler implements Runnable {
+    private static final DateTimeFormatter SINCE_FMT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm[:ss]");
+    /** How history lines are stamped, which /search compares against. */
+    private static final DateTimeFormatter STAMP_FMT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final String SEARCH_USAGE =
+            "Use: /search <words> [from:user] [since:yyyy-MM-dd [HH:mm]] [page:n]";
+    /** Names per /list reply. */
+    static final int LIST_PAGE = 50;
+    /** Shared by every connection; encoded once per protocol. */
+    private static final Frame PING = Frame.message(BinaryProtocol.PING, 0, 0, "", "", TextProtocol.PING);
+
+    private ChatServer server;
+    private Socket socket;
+    private NioConnection conn;
+    private OutputStream out;
+    private final WireDecoder decoder = new WireDecoder(this);
+    private final OutboundQueue outbound;
+    private final RateLimiter limiter;
+    private final ServerMetrics metrics;
+    private volatile String username;
+    /** UTF-8 form of {@link #username}, encoded once at login for the broadcast path. */
+    private volatile byte[] usernameBytes;
+    /** The one room this user is in; set by the server. */
+    private volatile Room room;
+    private volatile boolean binary;
+    /** Whether this client answers pings: it speaks binary, or said so in its hello. */
+    private volatile boolean heartbeats;
+    /** Compresses what this client is sent, if it asked for that in its hello; null otherwise. */
+    private volatile Compression.Encoder encoder;
+    /** Whether this client asked for typing events with {@code /typing on}. */
+    private volatile boolean typingEvents;
+    /** Whether this client asked for the presence feed with {@code /presence on}. */
+    private volatile boolean presenceEvents;
+    /** When this user's last typing signal was passed on; only touched by this connection's reader. */
+    private long lastTyping;
+    private final AtomicBoolean disconnected = new AtomicBoolean();
+    /** Token of this binary client's resumable session; null for text clients or with resuming off. */
+    private volatile String session;
+    /** The connection is ending on purpose (quit, flooding, too slow), so it is not kept for resuming. */
+    private volatile boolean ending;
+    /** System.nanoTime of the last read from the client; any traffic counts as alive. */
+    private volatile long lastRead = System.nanoTime();
+    /**
+     * A login waiting for its cluster claim. Until it is answered nothing more is
+     * decoded; the rest of the login is then finished on this connection's own
+     * thread, its reader or its event loop. Null otherwise.
+     */
+    private volatile CompletableFuture<Boolean> pendingClaim;
+    /** History to replay once {@link #pendingClaim} succeeds. */
+    private Iterator<byte[]> pendingReplay;
+    /** A heartbeat is out and unanswered; idle timer thread only. */
+    private boolean pinged;
+    private final Runnable idleCheck = this::checkIdle;
+
+    public ClientHandler(ChatServer server, Socket socket) {
+        this.server = server;
+        this.socket = socket;
+        this.outbound = server.newOutboundQueue();
+        this.limiter = server.newRateLimiter();
+        this.metrics = server.metrics();
+        metrics.accepted.increment();
+    }
+
+    ClientHandler(ChatServer server, NioConnection conn) {
+        this.server = server;
+        this.conn = conn;
+        this.outbound = server.newOutboundQueue();
+        this.limiter = server.newRateLimiter();
+        this.metrics = server.metrics();
+        metrics.accepted.increment();
+    }
+
+    @Override
+    public void run() {
+        try {
+            socket.setKeepAlive(true);
+            out = new BufferedOutputStream(socket.getOutputStream());
+            InputStream in = socket.getInputStream();
+            server.execute(this::writeLoop);
+
+            start();
+            while (true) {
+                ByteBuffer b = decoder.buffer();
+                int n = in.read(b.array(), b.arrayOffset() + b.position(), b.remaining());
+                if (n < 0) break;
+                touch();
+                b.position(b.position() + n);
+                boolean open = decoder.decode();
+                // This thread is the connection's own: wait out a login's claim, then decode what came after it.
+                while (open && awaitLogin()) open = decoder.decode();
+                if (!open) break;
+                // Over a rate limit: stop reading for a while and let TCP push back.
+                long pause = limiter.pauseNanos();
+                if (pause > 0) TimeUnit.NANOSECONDS.sleep(pause);
+            }
+        } catch (IOException e) {
+            System.err.println("Connection error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            // server shutting down
+        } finally {
+            disconnect();
+        }
+    }
+
+    /** Sends the login prompt and starts watching for idleness; called once the transport is ready. */
+    void start() {
+        send("Enter username:");
+        if (server.pingIntervalNanos() > 0) watchIdle(server.pingIntervalNanos());
+    }
+
+    /** Records inbound traffic; called by the transport on every read. */
+    void touch() {
+        lastRead = System.nanoTime();
+    }
+
+    private void watchIdle(long delayNanos) {
+        server.timer().schedule(idleCheck, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Runs on the idle timer when this connection's deadline comes up. Reads never
+     * touch the timer; instead each check re-arms it from the last read, so a busy
+     * connection costs one timer entry per interval. A connection quiet for
+     * --ping-interval-ms is pinged; with no traffic for --pong-timeout-ms more it
+     * is closed, which frees its username unless the session can be resumed.
+     * Not-yet-logged-in ones are not pinged. Logged-in clients that never asked for
+     * heartbeats, such as older text clients, would not answer, so they are left to
+     * TCP keepalive instead. The close itself, with its leave notice to the room,
+     * runs off the timer thread.
+     */
+    private void checkIdle() {
+        if (disconnected.get() || username != null && !heartbeats) return;
+        long idle = System.nanoTime() - lastRead;
+        long interval = server.pingIntervalNanos();
+        long limit = interval + server.pongTimeoutNanos();
+        if (idle < interval) {
+            pinged = false;
+            watchIdle(interval - idle);
+        } else if (username != null && !pinged) {
+            pinged = true;
+            send(PING);
+            watchIdle(server.pongTimeoutNanos());
+        } else if (idle < limit) {
+            watchIdle(limit - idle);
+        } else {
+            System.err.println("Closing idle connection" + (username != null ? " " + username : ""));
+            server.countReaped();
+            execute(this::disconnect);
+        }
+    }
+
+    /** Runs {@code task} on this connection's event loop, or on the server's executor in blocking mode. */
+    void execute(Runnable task) {
+        if (conn != null) conn.execute(task);
+        else server.execute(task);
+    }
+
+    /**
+     * Processes one inbound text line, {@code b[off, off+len)} without the newline,
+     * in either server mode. Chat lines, /quit and /pm are handled on the bytes;
+     * only login and the rarer commands are decoded to a String.
+     * Returns false when the client asked to quit.
+     */
+    boolean handleLine(byte[] b, int off, int len) {
+        if (username != null) {
+            RateLimiter.Verdict verdict = admit(len);
+            if (verdict != RateLimiter.Verdict.ADMIT) return flooded(verdict);
+            if (len == 0 || b[off] != '/') {
+                if (len > 0 && b[off] == '[' && TextProtocol.startsWith(b, off, len, TextProtocol.TYPING)) typing();
+                else chat(b, off, len);
+                return true;
+            }
+            if (TextProtocol.equalsIgnoreCase(b, off, len, "/quit")) return end();
+            if (TextProtocol.startsWith(b, off, len, "/pm ")) {
+                privateMessage(b, off + 4, off + len);
+                return true;
+            }
+        }
+        return handleLine(new String(b, off, len, StandardCharsets.UTF_8));
+    }
+
+    /** Counts an inbound message and checks it against the rate limits. */
+    private RateLimiter.Verdict admit(int bytes) {
+        metrics.inbound.increment();
+        return limiter.admit(bytes);
+    }
+
+    /** How long this connection's reader should pause before reading on; 0 if not throttled. */
+    long readPauseNanos() {
+        return limiter.pauseNanos();
+    }
+
+    /** A message over the rate limits was dropped; returns false if the client is to be disconnected. */
+    private boolean flooded(RateLimiter.Verdict verdict) {
+        if (verdict == RateLimiter.Verdict.DISCONNECT) {
+            send("Disconnected for flooding.");
+            return end();
+        }
+        if (limiter.firstStrike()) send("Server: you are sending too fast; messages are being dropped.");
+        return true;
+    }
+
+    /** {@code /pm <user> <message>} with the arguments in {@code b[from, end)}. */
+    private void privateMessage(byte[] b, int from, int end) {
+        int space = TextProtocol.indexOf(b, from, end, (byte) ' ');
+        if (space < 0) {
+            send("Invalid /pm usage. Use: /pm username message");
+            return;
+        }
+        String to = new String(b, from, space - from, StandardCharsets.UTF_8);
+        server.privateMessage(username, to, b, space + 1, end - space - 1);
+    }
+
+    /**
+     * Processes one inbound line given as a String (binary COMMAND frames and the
+     * cold paths of {@link #handleLine(byte[], int, int)}).
+     * Returns false when the client asked to quit.
+     */
+    boolean handleLine(String line) {
+        if (username == null) {
+            if (line.startsWith("/hello ") && !binary && encoder == null && hello(line)) return true;
+            login(line);
+            return true;
+        }
+
+        if (line.equalsIgnoreCase("/quit")) return end();
+        else if (line.equalsIgnoreCase(TextProtocol.PONG)) { /* the read itself counted as activity */ }
+        else if (line.equalsIgnoreCase("/typing")) typing();
+        else if (line.equalsIgnoreCase("/typing on")) typingEvents = true;
+        else if (line.equalsIgnoreCase("/typing off")) typingEvents = false;
+        else if (line.equalsIgnoreCase("/list")) list("");
+        else if (line.startsWith("/list ")) list(line.substring(6).trim());
+        else if (line.equalsIgnoreCase("/presence on")) {
+            presenceEvents = true;
+            send(Frame.text(room.presenceSnapshot()));
+        } else if (line.equalsIgnoreCase("/presence off")) presenceEvents = false;
+        else if (line.equalsIgnoreCase("/presence")) send(Frame.text(room.presenceSnapshot()));
+        else if (line.startsWith("/join ")) join(line.substring(6).trim());
+        else if (line.equalsIgnoreCase("/leave")) leave();
+        else if (line.equalsIgnoreCase("/history") || line.startsWith("/history ")) history(line.substring(8).trim());
+        else if (line.equalsIgnoreCase("/search") || line.startsWith("/search ")) search(line.substring(7).trim());
+        else if (line.startsWith("/pm ")) {
+            String[] parts = line.split(" ", 3);
+            if (parts.length >= 3) server.privateMessage(username, parts[1], parts[2]);
+            else send("Invalid /pm usage. Use: /pm username message");
+        } else {
+            lastTyping = 0;
+            server.broadcast(room, username, line);
+        }
+        return true;
+    }
+
+    private void chat(byte[] b, int off, int len) {
+        // A sent message ends the typing spell, so the next keystroke is announced at once.
+        lastTyping = 0;
+        server.broadcast(room, usernameBytes, b, off, len);
+    }
+
+    /**
+     * A typing signal. At most one per --typing-window-ms is passed on; the rest
+     * are dropped here, so keystroke-rate signals cost nothing past this point.
+     */
+    private void typing() {
+        long now = System.currentTimeMillis();
+        if (lastTyping != 0 && now - lastTyping < server.typingWindowMillis()) return;
+        lastTyping = now;
+        server.typing(this);
+    }
+
+    /**
+     * {@code /list [room] [prefix*] [page]}: one page of a room's members (this
+     * room by default) in name order, optionally only names starting with prefix.
+     * A room named only by digits needs its '#'.
+     */
+    private void list(String args) {
+        Room r = room;
+        String prefix = "";
+        int page = 1;
+        for (String arg : args.split("\\s+")) {
+            if (arg.isEmpty()) continue;
+            if (arg.endsWith("*")) prefix = arg.substring(0, arg.length() - 1);
+            else if (arg.matches("\\d{1,9}")) page = Math.max(1, Integer.parseInt(arg));
+            else if ((r = server.findRoom(arg)) == null) {
+                send("No such room: " + arg);
+                return;
+            }
+        }
+        int total = prefix.isEmpty() ? r.size() : r.names(prefix).size();
+        int pages = Math.max(1, (total + LIST_PAGE - 1) / LIST_PAGE);
+        StringBuilder reply = new StringBuilder("Users in #").append(r.name);
+        if (!prefix.isEmpty()) reply.append(" matching ").append(prefix).append('*');
+        if (pages > 1) reply.append(" (page ").append(page).append(" of ").append(pages)
+                .append(", ").append(total).append(" users)");
+        reply.append(": ").append(String.join(", ", r.page(prefix, page - 1, LIST_PAGE)));
+        send(reply.toString());
+    }
+
+    private void join(String roomName) {
+        Room current = room;
+        // Taken before joining so the replay stops short of our own join message.
+        Room target = server.findRoom(roomName);
+        Iterator<byte[]> recent = target != null && target != current && server.replayOnLogin() > 0
+                ? server.recentHistory(target, server.replayOnLogin()) : null;
+        target = server.joinRoom(this, roomName);
+        if (target == null) return;
+        if (target == current) {
+            send("You are already in #" + target.name + ".");
+            return;
+        }
+        send("Now in #" + target.name + " (" + target.size() + " users).");
+        if (recent != null) replay(recent);
+    }
+
+    private void leave() {
+        if (room == server.lobby()) send("You are in #" + Room.LOBBY + "; use /quit to disconnect.");
+        else join(Room.LOBBY);
+    }
+
+    /** A binary CHAT frame's payload, handed over in place by the decoder. */
+    boolean handleChat(byte[] b, int off, int len) {
+        if (username == null) {
+            send("Please log in first.");
+            return true;
+        }
+        RateLimiter.Verdict verdict = admit(len);
+        if (verdict != RateLimiter.Verdict.ADMIT) return flooded(verdict);
+        chat(b, off, len);
+        return true;
+    }
+
+    /**
+     * Processes one binary-protocol frame.
+     * Returns false when the client asked to quit.
+     */
+    boolean handleFrame(byte type, String name, String payload) {
+        if (username == null) {
+            if (type == BinaryProtocol.LOGIN) login(name);
+            else if (type == BinaryProtocol.RESUME) resume(name, payload);
+            else send("Please log in first.");
+            return true;
+        }
+        RateLimiter.Verdict verdict = admit(name.length() + payload.length());
+        if (verdict != RateLimiter.Verdict.ADMIT) return flooded(verdict);
+        switch (type) {
+            case BinaryProtocol.CHAT:
+                lastTyping = 0;
+                server.broadcast(room, username, payload);
+                return true;
+            case BinaryProtocol.TYPING: typing(); return true;
+            case BinaryProtocol.PONG: return true;
+            case BinaryProtocol.PM: server.privateMessage(username, name, payload); return true;
+            case BinaryProtocol.COMMAND: return handleLine(payload);
+            default:
+                send("Unknown frame type " + type);
+                return true;
+        }
+    }
+
+    private void login(String requested) {
+        String name = requested.trim();
+        // Taken before joining so the replay stops short of our own join message.
+        Iterator<byte[]> recent = server.replayOnLogin() > 0
+                ? server.recentHistory(server.lobby(), server.replayOnLogin()) : null;
+        // A name starting with '/' is a command sent before login completed, e.g. after a taken name.
+        if (name.isEmpty() || name.startsWith("/")) {
+            send("Invalid or taken. Enter username:");
+            return;
+        }
+        // Named before joining so the lobby's member list never shows a null name.
+        usernameBytes = name.getBytes(StandardCharsets.UTF_8);
+        username = name;
+        CompletableFuture<Boolean> claim = server.claim(name, this);
+        if (claim.isDone()) {
+            loggedIn(claim.join(), recent);
+            return;
+        }
+        pendingReplay = recent;
+        pendingClaim = claim;
+        if (conn != null) claim.whenComplete((ok, e) -> conn.execute(() -> {
+            finishLogin();
+            conn.loginFinished();
+        }));
+    }
+
+    /** Whether a login is waiting for its cluster claim, so the decoder must hold what follows. */
+    boolean loggingIn() {
+        return pendingClaim != null;
+    }
+
+    /** Blocking mode: waits for a pending login's claim and finishes the login; false if there was none. */
+    private boolean awaitLogin() {
+        CompletableFuture<Boolean> claim = pendingClaim;
+        if (claim == null) return false;
+        // Bounded: the cluster times the claim out.
+        claim.join();
+        finishLogin();
+        return true;
+    }
+
+    /** Finishes a login whose claim has been answered; on this connection's reader or event loop. */
+    private void finishLogin() {
+        boolean ok = pendingClaim.join();
+        Iterator<byte[]> recent = pendingReplay;
+        pendingReplay = null;
+        pendingClaim = null;
+        // Gone while waiting: disconnect() has already given the name back.
+        if (!disconnected.get()) loggedIn(ok, recent);
+    }
+
+    private void loggedIn(boolean ok, Iterator<byte[]> recent) {
+        if (!ok) {
+            username = null;
+            usernameBytes = null;
+            send("Invalid or taken. Enter username:");
+            return;
+        }
+        server.addClient(username, this);
+        if (binary) {
+            send(Frame.message(BinaryProtocol.LOGIN, 0, 0, username, "", null));
+            session = server.openSession(this);
+            if (session != null) send(ChatServer.sessionFrame(session, room));
+        }
+        send("Welcome " + username + "! You are in #" + Room.LOBBY + ". Commands: /quit, /list [room] [prefix*] [page], /join <room>,"
+                + " /leave, /pm <user> <message>, /history [n | since <time>], /search <words>");
+        // Behind the login's notice of offline messages, if any; the messages follow as the mailbox reads them.
+        if (recent != null) queueBacklog(historyFrames(recent));
+    }
+
+    /** A RESUME frame: take over a dropped session, or tell the client to log in afresh. */
+    private void resume(String token, String lastSeen) {
+        long after;
+        try {
+            after = Long.parseLong(lastSeen);
+        } catch (NumberFormatException e) {
+            after = -1;
+        }
+        if (after < 0 || token.isEmpty() || !server.resume(this, token, after)) {
+            send(Frame.control(BinaryProtocol.RESUME, 0, "", ""));
+        }
+    }
+
+    /** Takes over a resumed session's identity and subscriptions from its old connection. */
+    void adopt(ClientHandler old) {
+        usernameBytes = old.usernameBytes;
+        username = old.username;
+        typingEvents = old.typingEvents;
+        presenceEvents = old.presenceEvents;
+    }
+
+    String session() {
+        return session;
+    }
+
+    void setSession(String session) {
+        this.session = session;
+    }
+
+    /** Marks the connection as ending on purpose; returns false so the reader stops. */
+    private boolean end() {
+        ending = true;
+        return false;
+    }
+
+    /**
+     * Switches protocol, compression and heartbeats as a {@link BinaryProtocol#HELLO} or
+     * {@link Compression#HELLO} asks; false if the line is not a hello after all.
+     * Compression with another dictionary version is left out of the acknowledgement.
+     */
+    private boolean hello(String line) {
+        boolean wantBinary = false;
+        boolean wantDeflate = false;
+        boolean wantHeartbeats = false;
+        for (String option : line.substring(7).trim().split(" +")) {
+            if (option.equals("binary")) wantBinary = true;
+            else if (option.equals(TextProtocol.HEARTBEAT)) wantHeartbeats = true;
+            else if (option.equals(Compression.DEFLATE)) wantDeflate = true;
+            else if (!option.equals("deflate") && !option.startsWith("deflate=")) return false;
+        }
+        String reply = wantBinary ? BinaryProtocol.HELLO_OK : "OK";
+        // The acknowledgement is still an uncompressed text line; the switch comes right after it.
+        Frame ack = Frame.control((reply + (wantDeflate ? " " + Compression.DEFLATE : "") + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+        Compression.Encoder e = wantDeflate ? server.newEncoder(ack) : null;
+        if (wantDeflate && e == null) ack = Frame.control((reply + "\n").getBytes(StandardCharsets.UTF_8));
+        // Installed first, so the writer cannot get past the ack without the encoder seeing it.
+        encoder = e;
+        outbound.offer(ack);
+        heartbeats = wantBinary || wantHeartbeats;
+        if (wantBinary) {
+            binary = true;
+            outbound.useBinary();
+        }
+        if (conn != null) conn.requestFlush();
+        return true;
+    }
+
+    boolean wantsPresenceEvents() {
+        return presenceEvents;
+    }
+
+    boolean wantsTypingEvents() {
+        return typingEvents;
+    }
+
+    boolean isBinary() {
+        return binary;
+    }
+
+    /** The wire bytes for {@code next}, compressed if this client asked; may take more frames from the queue with it. */
+    byte[] encode(Frame next) {
+        Compression.Encoder e = encoder;
+        return e == null ? next.bytes(binary) : e.encode(next, outbound, binary);
+    }
+
+    byte[] usernameBytes() {
+        return usernameBytes;
+    }
+
+    String username() {
+        return username;
+    }
+
+    Room room() {
+        return room;
+    }
+
+    void setRoom(Room room) {
+        this.room = room;
+    }
+
+    boolean isDisconnected() {
+        return disconnected.get();
+    }
+
+    WireDecoder decoder() {
+        return decoder;
+    }
+
+    private void history(String arg) {
+        if (arg.isEmpty()) {
+            replay(server.recentHistory(room, server.replayOnLogin()));
+        } else if (arg.startsWith("since ")) {
+            try {
+                LocalDateTime t = LocalDateTime.parse(arg.substring(6).trim(), SINCE_FMT);
+                replay(server.historySince(room, t.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()));
+            } catch (DateTimeParseException e) {
+                send("Invalid time. Use: /history since yyyy-MM-dd HH:mm[:ss]");
+            }
+        } else {
+            try {
+                replay(server.recentHistory(room, Integer.parseInt(arg)));
+            } catch (NumberFormatException e) {
+                send("Invalid /history usage. Use: /history [n | since yyyy-MM-dd HH:mm[:ss]]");
+            }
+        }
+    }
+
+    /**
+     * {@code /search <words> [from:user] [since:date [time]] [page:n]}: messages in
+     * this room with every word, newest first. The query runs off this thread and
+     * the page is sent when it is ready.
+     */
+    private void search(String args) {
+        List<String> words = new ArrayList<>();
+        String from = null;
+        String since = null;
+        int page = 1;
+        String[] parts = args.split("\\s+");
+        for (int i = 0; i < parts.length; i++) {
+            String p = parts[i];
+            if (p.isEmpty()) continue;
+            if (p.startsWith("from:") && p.length() > 5) from = p.substring(5);
+            else if (p.startsWith("page:") && p.substring(5).matches("\\d{1,9}")) {
+                page = Math.max(1, Math.min(SearchIndex.MAX_PAGES, Integer.parseInt(p.substring(5))));
+            } else if (p.startsWith("since:")) {
+                String t = p.substring(6);
+                if (i + 1 < parts.length && parts[i + 1].matches("\\d{1,2}:\\d{2}(:\\d{2})?")) t += " " + parts[++i];
+                else t += " 00:00";
+                try {
+                    since = LocalDateTime.parse(t, SINCE_FMT).format(STAMP_FMT);
+                } catch (DateTimeParseException e) {
+                    send("Invalid time. " + SEARCH_USAGE);
+                    return;
+                }
+            } else {
+                words.addAll(SearchIndex.terms(p));
+            }
+        }
+        if (words.isEmpty() && from == null) {
+            send(SEARCH_USAGE);
+            return;
+        }
+        Room r = room;
+        final int n = page;
+        String query = args.replaceAll("\\s*page:\\d+", "").trim();
+        CompletableFuture<SearchIndex.Result> result = server.search(r, words, from, since, page);
+        if (result == null) {
+            send("Search is not enabled on this server.");
+            return;
+        }
+        result.whenComplete((res, error) -> {
+            if (error instanceof RejectedExecutionException) {
+                send("Search is busy; try again shortly.");
+                return;
+            }
+            if (error != null) {
+                System.err.println("Search failed: " + error);
+                send("Search failed.");
+                return;
+            }
+            if (res.lines.isEmpty()) {
+                send(n == 1 ? "No messages in #" + r.name + " match " + query + "."
+                        : "No more messages in #" + r.name + " match " + query + ".");
+            } else {
+                send("Messages in #" + r.name + " matching " + query + ", newest first (page " + n + "):");
+                for (byte[] line : res.lines) send(Frame.history(line));
+                if (res.more) send("More: /search " + query + " page:" + (n + 1));
+            }
+            if (res.partial) send("The search index is still being built; older messages may be missing.");
+        });
+    }
+
+    /** Queues messages missed while disconnected ahead of live traffic, after any backlog still being sent; the caller flushes. */
+    void backlog(Frame[] frames) {
+        outbound.addBacklog(Arrays.asList(frames).iterator());
+    }
+
+    /** Streams stored lines to this client ahead of live traffic, one frame at a time, after any backlog still being sent. */
+    private void replay(Iterator<byte[]> lines) {
+        queueBacklog(historyFrames(lines));
+    }
+
+    /** Streams frames to this client ahead of live traffic, after any backlog still being sent. */
+    void queueBacklog(Iterator<Frame> frames) {
+        outbound.addBacklog(frames);
+        flushQueued();
+    }
+
+    private static Iterator<Frame> historyFrames(final Iterator<byte[]> lines) {
+        return new Iterator<Frame>() {
+            @Override public boolean hasNext() { return lines.hasNext(); }
+            @Override public Frame next() { return Frame.history(lines.next()); }
+        };
+    }
+
+    /**
+     * Closes the transport and, unless the session is kept for resuming, unregisters
+     * the user; runs at most once. A session is kept when the connection was lost
+     * rather than ended on purpose, and nothing else has ended or taken it over.
+     */
+    void disconnect() {
+        if (!disconnected.compareAndSet(false, true)) return;
+        metrics.closed.increment();
+        String token = session;
+        if (username != null) {
+            if (token == null) server.removeClient(username);
+            else if (!ending && server.park(this, token)) System.err.println("Keeping session of " + username);
+            else if (server.endSession(this, token)) server.removeClient(username);
+        }
+        outbound.close();
+        Compression.Encoder e = encoder;
+        if (e != null) e.end();
+        if (conn != null) conn.close();
+        else {
+            try { socket.close(); } catch (IOException ignored) { }
+        }
+    }
+
+    /**
+     * Queues a line for this client. Never blocks on the socket: the line is written
+     * later by this client's own writer (or event loop in NIO mode).
+     */
+    public void send(String msg) {
+        send(Frame.text(msg));
+    }
+
+    /** Queues a pre-encoded frame; the same instance may be shared with other clients. */
+    public void send(Frame frame) {
+        if (!offer(frame)) {
+            slowConsumer();
+            return;
+        }
+        flushQueued();
+    }
+
+    /**
+     * Queues a frame without flushing or disconnecting, so it is safe under a room's
+     * lock; false if the queue overflowed and the client must go ({@link #slowConsumer}).
+     */
+    boolean offer(Frame frame) {
+        if (!outbound.offer(frame)) return false;
+        metrics.outbound.increment();
+        return true;
+    }
+
+    /** Gets what {@link #offer} queued written; blocking-mode writers wake on their own. */
+    void flushQueued() {
+        if (conn != null) conn.requestFlush();
+    }
+
+    /** Ends the connection on purpose after telling the client why; the session is not kept for resuming. */
+    void close(String reason) {
+        send(reason);
+        ending = true;
+        disconnect();
+    }
+
+    void slowConsumer() {
+        System.err.println("Disconnecting slow consumer " + username + " (" + outbound.depth() + " frames queued)");
+        ending = true;
+        disconnect();
+    }
+
+    /** Blocking mode: drains the outbound queue, batching whatever is ready into one flush. */
+    private void writeLoop() {
+        try {
+            Frame next;
+            while ((next = outbound.take()) != null) {
+                out.write(encode(next));
+                while ((next = outbound.poll()) != null) out.write(encode(next));
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Closing the socket wakes the reader, which then runs disconnect().
+            try { socket.close(); } catch (IOException ignored) { }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    OutboundQueue outbound() { return outbound; }
+
+    public int queueDepth() { return outbound.depth(); }
+
+    public long droppedMessages() { return outbound.dropped(); }
+
+    public long coalescedMessages() { return outbound.coalesced(); }
+}
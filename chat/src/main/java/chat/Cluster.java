@@ -0,0 +1,304 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One node's view of a chat cluster: a distributed username registry, plus
+ * broadcast and private-message routing over a {@link MessageBus}.
+ *
+ * Every username has an owner node, chosen by hash. The owner records which node
+ * the user is logged in to, so a name is claimed at exactly one place and a login
+ * costs one round trip to the owner (none when this node owns the name). A PM to
+ * a user on another node goes to the owner, which forwards it to the user's node:
+ * at most two hops, never a flood. Broadcasts go to every node, which fans them
+ * out to its own members of the room and keeps them in its own history.
+ *
+ * When a node goes down, owners drop its users. When a link comes (back) up,
+ * this node re-claims its users at that owner, so a restarted owner rebuilds
+ * its part of the registry. A link can also fail while the node behind it is
+ * still serving its users, and meanwhile one of their names may be claimed
+ * elsewhere; the owner then refuses the re-claim and this node ends its session
+ * of that name, so a name is never logged in twice for longer than a redial.
+ *
+ * A PM to a user logged in nowhere is kept in the owner's mailbox. When the user
+ * next claims their name, the owner forwards the kept PMs to their node, a
+ * mailbox batch at a time. The bus may lose messages, and the user may be gone
+ * by the time they arrive, so a batch stays in the mailbox until that node says
+ * it reached the user; only then is the next one sent.
+ */
+final class Cluster implements MessageBus.Listener {
+    private static final long CLAIM_TIMEOUT_MILLIS = 3000;
+
+    private final ChatServer server;
+    private final MessageBus bus;
+    private final int self;
+    private final int nodes;
+    /** For usernames this node owns: the node each is logged in to. */
+    private final Map<String, Integer> registry = new ConcurrentHashMap<>();
+    private final Map<Long, CompletableFuture<Boolean>> pendingClaims = new ConcurrentHashMap<>();
+    private final AtomicLong claimIds = new AtomicLong();
+    private volatile boolean closed;
+    /** For usernames this node owns: kept PMs on their way to the user's node. */
+    private final Map<String, Forward> forwards = new ConcurrentHashMap<>();
+    private final AtomicLong batchIds = new AtomicLong();
+    /**
+     * By user: the forwarded batch that did not all reach them here, which is never
+     * acknowledged. Cleared when the batch's last PM arrives, when a new forward to
+     * the user starts or when they log out, since a lost or abandoned batch's last
+     * PM never comes.
+     */
+    private final Map<String, Long> undelivered = new ConcurrentHashMap<>();
+
+    Cluster(ChatServer server, MessageBus bus) {
+        this.server = server;
+        this.bus = bus;
+        this.self = bus.nodeId();
+        this.nodes = bus.nodeCount();
+    }
+
+    void start() throws IOException {
+        bus.start(this);
+    }
+
+    void close() {
+        closed = true;
+        bus.close();
+        for (CompletableFuture<Boolean> f : pendingClaims.values()) f.complete(false);
+    }
+
+    int nodeId() {
+        return self;
+    }
+
+    private int owner(String user) {
+        return Math.floorMod(user.hashCode(), nodes);
+    }
+
+    /**
+     * Registers {@code user} as logged in here, cluster-wide. Never blocks: the
+     * result is known at once when this node owns the name, and otherwise comes
+     * with the owner's reply, on the bus thread. False if the name is taken or the
+     * owner did not answer within {@link #CLAIM_TIMEOUT_MILLIS}, which the server's
+     * timer enforces. A timed-out claim is released at the owner, so a late grant
+     * does not keep the name registered to a user who never logged in.
+     */
+    CompletableFuture<Boolean> claim(String user) {
+        int owner = owner(user);
+        if (owner == self) return CompletableFuture.completedFuture(register(user, self));
+        CompletableFuture<Boolean> reply = sendClaim(owner, user);
+        server.timer().schedule(() -> {
+            // The bus keeps each link in order, so the release reaches the owner after the claim.
+            if (reply.complete(false)) bus.send(owner, ClusterMessage.release(user));
+        }, CLAIM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        return reply;
+    }
+
+    /** Asks {@code owner} to register {@code user} here; completes with its answer. */
+    private CompletableFuture<Boolean> sendClaim(int owner, String user) {
+        long id = claimIds.incrementAndGet();
+        CompletableFuture<Boolean> reply = new CompletableFuture<>();
+        pendingClaims.put(id, reply);
+        reply.whenComplete((ok, e) -> pendingClaims.remove(id));
+        bus.send(owner, ClusterMessage.claim(id, user));
+        return reply;
+    }
+
+    /**
+     * Claims a name that is already logged in here again, after the link to its
+     * owner came back. If the owner gave the name to another node meanwhile, the
+     * session here ends. No answer within {@link #CLAIM_TIMEOUT_MILLIS} keeps it:
+     * the owner is not known to have given the name away.
+     */
+    private void reclaim(int owner, String user) {
+        CompletableFuture<Boolean> reply = sendClaim(owner, user);
+        server.timer().schedule(() -> reply.complete(true), CLAIM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        reply.thenAccept(ok -> {
+            if (!ok && !closed) server.nameLost(user);
+        });
+    }
+
+    private boolean register(String user, int node) {
+        Integer at = registry.putIfAbsent(user, node);
+        return at == null || at == node;
+    }
+
+    void release(String user) {
+        undelivered.remove(user);
+        int owner = owner(user);
+        if (owner == self) registry.remove(user, self);
+        else bus.send(owner, ClusterMessage.release(user));
+    }
+
+    /** Sends a chat line, already fanned out here, to the room on every other node. */
+    void broadcast(Room room, long id, long timestamp, byte[] line, int nameLength, int payloadLength) {
+        bus.publish(ClusterMessage.broadcast(room.name, id, timestamp, line, nameLength, payloadLength));
+    }
+
+    /** Routes a PM whose target is not logged in to this node. */
+    void privateMessage(String from, String to, long id, long timestamp, byte[] line, int nameLength,
+                        int payloadLength) {
+        route(ClusterMessage.pm(self, from, to, id, timestamp, line, nameLength, payloadLength));
+    }
+
+    private void route(ClusterMessage pm) {
+        int owner = owner(pm.name);
+        if (owner != self) {
+            bus.send(owner, pm);
+            return;
+        }
+        Integer at = registry.get(pm.name);
+        if (at == null) store(pm);
+        else if (at == self) deliver(pm);
+        else bus.send(at, pm);
+    }
+
+    private void deliver(ClusterMessage pm) {
+        if (server.isParked(pm.name)) {
+            // Kept here, where the session resumes, not at the owner.
+            store(pm);
+            return;
+        }
+        if (!server.deliverPrivate(pm.name, pm.id, pm.timestamp, pm.line, pm.nameLength, pm.payloadLength)) {
+            failed(pm);
+        }
+    }
+
+    /** Keeps a PM in this owner's mailbox; the outcome is reported once the mailbox has written it. */
+    private void store(ClusterMessage pm) {
+        server.storeOffline(pm.name, pm.timestamp, pm.line, pm.nameLength, pm.payloadLength).thenAccept(ok -> {
+            if (!ok) failed(pm);
+            else if (pm.origin == self) server.privateMessageStored(pm.from, pm.name);
+            else bus.send(pm.origin, ClusterMessage.pmStored(pm.from, pm.name));
+        });
+    }
+
+    /** PMs kept for a user, on their way to the node the user logged in to. */
+    private static final class Forward {
+        final int node;
+        final Mailbox.Delivery delivery;
+        /** The batch sent last and not yet acknowledged. */
+        volatile long batch;
+
+        Forward(int node, Mailbox.Delivery delivery) {
+            this.node = node;
+            this.delivery = delivery;
+        }
+    }
+
+    /**
+     * Sends the PMs kept for {@code user} to the node they just logged in to, a
+     * mailbox batch at a time, each read on the mailbox's I/O thread. Replaces any
+     * earlier forward to them, whose unacknowledged batch is then sent again.
+     */
+    private void forwardOffline(String user, int node) {
+        int count = server.offlineCount(user);
+        if (count == 0) return;
+        bus.send(node, ClusterMessage.offline(user, count));
+        Forward f = new Forward(node, server.offlineMessages(user));
+        forwards.put(user, f);
+        forwardBatch(user, f);
+    }
+
+    /**
+     * Reads and sends the next batch. Reading it marks the one before delivered,
+     * so this only runs once the user's node has acknowledged that one.
+     */
+    private void forwardBatch(String user, Forward f) {
+        f.delivery.next().thenAccept(batch -> {
+            if (forwards.get(user) != f) return;
+            if (batch.length == 0) {
+                forwards.remove(user, f);
+                return;
+            }
+            long id = batchIds.incrementAndGet();
+            f.batch = id;
+            for (int i = 0; i < batch.length; i++) {
+                Mailbox.Message m = batch[i];
+                String from = new String(m.line, TextProtocol.NAME_OFFSET, m.nameLength, StandardCharsets.UTF_8);
+                bus.send(f.node, ClusterMessage.forwarded(id, i == batch.length - 1, from, user, m.timestamp, m.line,
+                        m.nameLength, m.payloadLength));
+            }
+        });
+    }
+
+    /** A forwarded PM arrived here; the last of a batch is acknowledged if the whole batch reached the user. */
+    private void forwarded(int owner, ClusterMessage m) {
+        boolean delivered = server.deliverPrivate(m.name, 0, m.timestamp, m.line, m.nameLength, m.payloadLength);
+        if (!delivered && !m.ok) undelivered.put(m.name, m.id);
+        if (m.ok && !undelivered.remove(m.name, m.id) && delivered) {
+            bus.send(owner, ClusterMessage.delivered(m.id, m.name));
+        }
+    }
+
+    private void failed(ClusterMessage pm) {
+        if (pm.origin == self) server.privateMessageFailed(pm.from, pm.name);
+        else bus.send(pm.origin, ClusterMessage.pmFailed(pm.from, pm.name));
+    }
+
+    @Override
+    public void onMessage(int fromNode, ClusterMessage m) {
+        switch (m.type) {
+            case ClusterMessage.CLAIM:
+                boolean ok = register(m.name, fromNode);
+                bus.send(fromNode, ClusterMessage.claimReply(m.id, ok));
+                if (ok) forwardOffline(m.name, fromNode);
+                break;
+            case ClusterMessage.CLAIM_REPLY:
+                CompletableFuture<Boolean> reply = pendingClaims.get(m.id);
+                if (reply != null) reply.complete(m.ok);
+                break;
+            case ClusterMessage.RELEASE:
+                registry.remove(m.name, fromNode);
+                Forward gone = forwards.get(m.name);
+                if (gone != null && gone.node == fromNode) forwards.remove(m.name, gone);
+                break;
+            case ClusterMessage.BROADCAST:
+                server.deliverBroadcast(m.room, m.id, m.timestamp, m.line, m.nameLength, m.payloadLength);
+                break;
+            case ClusterMessage.PM:
+                // As the owner we look the user up; otherwise the owner sent it here.
+                if (owner(m.name) == self) route(m);
+                else deliver(m);
+                break;
+            case ClusterMessage.PM_FAILED:
+                server.privateMessageFailed(m.from, m.name);
+                break;
+            case ClusterMessage.PM_STORED:
+                server.privateMessageStored(m.from, m.name);
+                break;
+            case ClusterMessage.OFFLINE:
+                // A new forward starts; whatever an earlier one left unfinished is sent again.
+                undelivered.remove(m.name);
+                server.offlineArriving(m.name, (int) m.id);
+                break;
+            case ClusterMessage.FORWARDED:
+                forwarded(fromNode, m);
+                break;
+            case ClusterMessage.DELIVERED:
+                Forward f = forwards.get(m.name);
+                if (f != null && f.node == fromNode && f.batch == m.id) forwardBatch(m.name, f);
+                break;
+            default:
+                System.err.println("Unknown cluster message type " + m.type + " from node " + fromNode);
+        }
+    }
+
+    @Override
+    public void nodeUp(int node) {
+        for (String user : server.localUsers()) {
+            if (owner(user) == node) reclaim(node, user);
+        }
+    }
+
+    @Override
+    public void nodeDown(int node) {
+        registry.values().removeIf(at -> at == node);
+        forwards.values().removeIf(f -> f.node == node);
+    }
+}
@@ -0,0 +1,68 @@
+package chat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a whole cluster on one host, one {@link ChatServer} node per thread, for
+ * local testing:
+ *
+ * <pre>
+ *   java -cp chat.jar chat.ClusterLauncher nodes [--base-port=12345] [--bus=tcp|loopback] [server options]
+ * </pre>
+ *
+ * Node i takes clients on {@code base-port + i} and writes its history to
+ * {@code history/node<i>} and {@code chat_history-node<i>.txt}, its offline
+ * messages to {@code mailbox/node<i>} and its search index to
+ * {@code search/node<i>}. With the tcp bus
+ * (the default) the nodes talk over loopback TCP on {@code base-port + 1000 + i},
+ * exactly as separate processes started with {@code --cluster} and {@code --node}
+ * would; the loopback bus connects them in memory instead.
+ */
+public final class ClusterLauncher {
+    private ClusterLauncher() { }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.out.println("Usage: java chat.ClusterLauncher <nodes> [--base-port=12345] [--bus=tcp|loopback]"
+                    + " [server options]");
+            return;
+        }
+        int nodes = Integer.parseInt(args[0]);
+        int basePort = ServerConfig.DEFAULT_PORT;
+        boolean loopback = false;
+        List<String> options = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("--base-port=")) basePort = Integer.parseInt(args[i].substring(12));
+            else if (args[i].equals("--bus=loopback")) loopback = true;
+            else if (!args[i].equals("--bus=tcp")) options.add(args[i]);
+        }
+
+        List<MessageBus> buses;
+        if (loopback) {
+            buses = LoopbackBus.network(nodes);
+        } else {
+            List<InetSocketAddress> addresses = new ArrayList<>();
+            for (int i = 0; i < nodes; i++) addresses.add(new InetSocketAddress("127.0.0.1", basePort + 1000 + i));
+            buses = new ArrayList<>();
+            for (int i = 0; i < nodes; i++) buses.add(new TcpBus(i, addresses));
+        }
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            List<String> nodeArgs = new ArrayList<>(options);
+            nodeArgs.add("--port=" + (basePort + i));
+            nodeArgs.add("--history-dir=history/node" + i);
+            nodeArgs.add("--history=chat_history-node" + i + ".txt");
+            nodeArgs.add("--mailbox-dir=mailbox/node" + i);
+            nodeArgs.add("--search-dir=search/node" + i);
+            ChatServer server = new ChatServer(ServerConfig.parse(nodeArgs.toArray(new String[0])), buses.get(i));
+            Thread t = new Thread(server::start, "node-" + i);
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t : threads) t.join();
+    }
+}
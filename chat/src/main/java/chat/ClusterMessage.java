@@ -0,0 +1,158 @@
+package chat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * One message between cluster nodes. Chat lines travel as the bytes built by
+ * {@link TextProtocol#formatChat}, so the receiving node fans them out and stores
+ * them without formatting again.
+ *
+ * On the wire: {@code int length}, then every field in declaration order.
+ */
+public final class ClusterMessage {
+    /** Asks the owner of {@code name} to register it to the sending node; {@code id} is the request. */
+    static final byte CLAIM = 1;
+    /** The owner's answer to a CLAIM: {@code ok} if the name is now the requester's. */
+    static final byte CLAIM_REPLY = 2;
+    /** {@code name} logged out of the sending node. */
+    static final byte RELEASE = 3;
+    /** A chat line for {@code room}. */
+    static final byte BROADCAST = 4;
+    /** A private message from {@code from} to {@code name}, sent by node {@code origin}. */
+    static final byte PM = 5;
+    /** {@code name}, the target of a PM from {@code from}, is offline and the PM could not be kept. */
+    static final byte PM_FAILED = 6;
+    /** {@code name}, the target of a PM from {@code from}, is offline; the owner keeps the PM for them. */
+    static final byte PM_STORED = 7;
+    /** The owner is about to forward {@code id} PMs it kept for {@code name} while they were offline. */
+    static final byte OFFLINE = 8;
+    /**
+     * A PM from {@code from} kept for {@code name} while they were offline, forwarded
+     * by the owner as part of batch {@code id}; {@code ok} on the batch's last one.
+     */
+    static final byte FORWARDED = 9;
+    /** Every PM of forwarded batch {@code id} reached {@code name}; the owner may let go of it. */
+    static final byte DELIVERED = 10;
+
+    final byte type;
+    final long id;
+    final long timestamp;
+    final int origin;
+    final boolean ok;
+    final String room;
+    final String from;
+    final String name;
+    final byte[] line;
+    final int nameLength;
+    final int payloadLength;
+
+    private ClusterMessage(byte type, long id, long timestamp, int origin, boolean ok, String room, String from,
+                           String name, byte[] line, int nameLength, int payloadLength) {
+        this.type = type;
+        this.id = id;
+        this.timestamp = timestamp;
+        this.origin = origin;
+        this.ok = ok;
+        this.room = room;
+        this.from = from;
+        this.name = name;
+        this.line = line;
+        this.nameLength = nameLength;
+        this.payloadLength = payloadLength;
+    }
+
+    static ClusterMessage claim(long request, String user) {
+        return new ClusterMessage(CLAIM, request, 0, 0, false, "", "", user, null, 0, 0);
+    }
+
+    static ClusterMessage claimReply(long request, boolean ok) {
+        return new ClusterMessage(CLAIM_REPLY, request, 0, 0, ok, "", "", "", null, 0, 0);
+    }
+
+    static ClusterMessage release(String user) {
+        return new ClusterMessage(RELEASE, 0, 0, 0, false, "", "", user, null, 0, 0);
+    }
+
+    static ClusterMessage broadcast(String room, long id, long timestamp, byte[] line, int nameLength,
+                                    int payloadLength) {
+        return new ClusterMessage(BROADCAST, id, timestamp, 0, false, room, "", "", line, nameLength, payloadLength);
+    }
+
+    static ClusterMessage pm(int origin, String from, String to, long id, long timestamp, byte[] line,
+                             int nameLength, int payloadLength) {
+        return new ClusterMessage(PM, id, timestamp, origin, false, "", from, to, line, nameLength, payloadLength);
+    }
+
+    static ClusterMessage pmFailed(String from, String to) {
+        return new ClusterMessage(PM_FAILED, 0, 0, 0, false, "", from, to, null, 0, 0);
+    }
+
+    static ClusterMessage pmStored(String from, String to) {
+        return new ClusterMessage(PM_STORED, 0, 0, 0, false, "", from, to, null, 0, 0);
+    }
+
+    static ClusterMessage offline(String user, int count) {
+        return new ClusterMessage(OFFLINE, count, 0, 0, false, "", "", user, null, 0, 0);
+    }
+
+    static ClusterMessage forwarded(long batch, boolean last, String from, String to, long timestamp, byte[] line,
+                                    int nameLength, int payloadLength) {
+        return new ClusterMessage(FORWARDED, batch, timestamp, 0, last, "", from, to, line, nameLength, payloadLength);
+    }
+
+    static ClusterMessage delivered(long batch, String user) {
+        return new ClusterMessage(DELIVERED, batch, 0, 0, false, "", "", user, null, 0, 0);
+    }
+
+    /** The length-prefixed wire form. */
+    byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + (line != null ? line.length : 0));
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(0);
+            out.writeByte(type);
+            out.writeLong(id);
+            out.writeLong(timestamp);
+            out.writeInt(origin);
+            out.writeBoolean(ok);
+            out.writeUTF(room);
+            out.writeUTF(from);
+            out.writeUTF(name);
+            out.writeInt(line != null ? line.length : -1);
+            if (line != null) out.write(line);
+            out.writeInt(nameLength);
+            out.writeInt(payloadLength);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        byte[] frame = bytes.toByteArray();
+        ByteBuffer.wrap(frame).putInt(0, frame.length - 4);
+        return frame;
+    }
+
+    /** Decodes a frame body, without its length prefix. */
+    static ClusterMessage decode(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        byte type = in.readByte();
+        long id = in.readLong();
+        long timestamp = in.readLong();
+        int origin = in.readInt();
+        boolean ok = in.readBoolean();
+        String room = in.readUTF();
+        String from = in.readUTF();
+        String name = in.readUTF();
+        int length = in.readInt();
+        byte[] line = null;
+        if (length > body.length) throw new IOException("bad line length " + length);
+        if (length >= 0) {
+            line = new byte[length];
+            in.readFully(line);
+        }
+        return new ClusterMessage(type, id, timestamp, origin, ok, room, from, name, line, in.readInt(), in.readInt());
+    }
+}
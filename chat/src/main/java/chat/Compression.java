@@ -0,0 +1,305 @@
+package chat;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Opt-in compression of server-to-client traffic, shared by the server and both clients.
+ *
+ * A client asks for it by answering the server's first prompt with
+ * {@link #HELLO} or {@link #HELLO_BINARY}, which name the version of the preset
+ * {@link #DICTIONARY} the client has. The server replies with a text line naming
+ * what it accepted, such as {@code OK deflate=1} or {@code OK binary deflate=1}. It
+ * leaves compression out for a version it does not have. If compression is in the
+ * reply, every byte the server sends after that line comes in chunks of the form
+ *
+ * <pre>
+ *   int    header  bit 31: reset; bits 0-30: length of the data
+ *   byte[] data    raw deflate, ending in a sync flush with its 00 00 ff ff tail left off
+ * </pre>
+ *
+ * Both sides start from the preset {@link #DICTIONARY}. A chunk without the reset
+ * bit carries on from the one before, so it may refer back to anything sent earlier;
+ * on a reset chunk the reader first starts over from the dictionary. What comes out
+ * is the text or binary protocol, exactly as it would have been sent uncompressed.
+ * Client-to-server traffic is never compressed.
+ */
+public final class Compression {
+    /** Bumped whenever a byte of {@link #DICTIONARY} changes. */
+    static final int DICTIONARY_VERSION = 1;
+    /** The hello option, and the word in the acknowledgement, for this dictionary. */
+    static final String DEFLATE = "deflate=" + DICTIONARY_VERSION;
+    public static final String HELLO = "/hello " + DEFLATE;
+    public static final String HELLO_BINARY = BinaryProtocol.HELLO + " " + DEFLATE;
+
+    /** How the server compresses for clients that ask; see the README. */
+    public enum Mode { OFF, STREAM, SHARED }
+
+    static final int LEVEL = Deflater.BEST_SPEED;
+    /** Frames a stream-mode encoder packs into one chunk stop after this much input. */
+    static final int BATCH = 32 * 1024;
+    static final int MAX_CHUNK = 1024 * 1024;
+    private static final int RESET = 0x80000000;
+    private static final byte[] TAIL = { 0, 0, (byte) 0xFF, (byte) 0xFF };
+    private static final byte[] NONE = new byte[0];
+
+    /**
+     * Strings that recur in server output, to give the first messages of a stream, and
+     * every frame of a shared one, something to refer back to. Deflate codes near
+     * distances in fewer bits, so the most common strings come last.
+     *
+     * Both ends must hold exactly these bytes, so they are spelled out here rather
+     * than taken from the server's messages, which may be reworded at any time. Any
+     * change needs a new {@link #DICTIONARY_VERSION}; clients with the old one then
+     * connect uncompressed instead of failing to inflate.
+     */
+    static final byte[] DICTIONARY = (
+            "Invalid or taken. Enter username:\n"
+            + "Welcome ! You are in #lobby. Commands: /quit, /list [room] [prefix*] [page], /join <room>, /leave,"
+            + " /pm <user> <message>, /history [n | since <time>], /search <words>\n"
+            + "Use: /search <words> [from:user] [since:yyyy-MM-dd [HH:mm]] [page:n]\n"
+            + "Some messages were missed while you were away; use /history to see them.\n"
+            + "You have messages from while you were offline:\n"
+            + "Server: could not deliver to ''; they are offline and their mailbox is full\n"
+            + "Server: user '' not found\n"
+            + "Server: is offline and will get your message when they log in.\n"
+            + "Now in # ( users). You are already in #.\n"
+            + "because could would should there their about people really think going know just like "
+            + "what when where which with have this that from your they will been were some time "
+            + "thanks thank you yes no ok okay lol haha hey hello hi all everyone how are doing today? "
+            + "good morning night see you later brb\n"
+            + "[PING]\n"
+            + "[TYPING][TYPING]\n"
+            + "[USERLIST]#lobby 1 \n"
+            + "[PRESENCE]#lobby +1 \n"
+            + "[PRESENCE]#lobby -1 \n"
+            + " has left #. has joined #.\n"
+            + " [Server]: has left the chat.\n"
+            + " [Server]: has joined the chat.\n"
+            + " -> ]: ").getBytes(StandardCharsets.UTF_8);
+
+    private static final ThreadLocal<Deflater> SHARED = ThreadLocal.withInitial(() -> new Deflater(LEVEL, true));
+
+    private Compression() { }
+
+    /** Whether the server's answer to a hello turned compression on. */
+    public static boolean accepted(String ack) {
+        return ack != null && ack.startsWith("OK") && ack.endsWith(" " + DEFLATE);
+    }
+
+    /**
+     * {@code bytes} as a reset chunk: compressed from the dictionary alone, so the
+     * same chunk can go to every compressing client. Used by {@link Frame}, which
+     * caches the result.
+     */
+    static byte[] chunk(byte[] bytes) {
+        Deflater d = SHARED.get();
+        d.reset();
+        d.setDictionary(DICTIONARY);
+        Chunk c = new Chunk(bytes.length / 2 + 64);
+        c.deflate(d, bytes);
+        return c.finish(d, true);
+    }
+
+    /** A chunk being built: a 4-byte header slot, then the deflate output. */
+    private static final class Chunk {
+        byte[] a;
+        int length = 4;
+
+        Chunk(int capacity) {
+            a = new byte[4 + capacity];
+        }
+
+        void deflate(Deflater d, byte[] input) {
+            d.setInput(input);
+            while (!d.needsInput()) drain(d, Deflater.NO_FLUSH);
+        }
+
+        /** Flushes {@code d}, drops the sync tail and fills in the header. */
+        byte[] finish(Deflater d, boolean reset) {
+            while (drain(d, Deflater.SYNC_FLUSH)) { }
+            if (length >= 8 && a[length - 4] == 0 && a[length - 3] == 0 && a[length - 2] == (byte) 0xFF
+                    && a[length - 1] == (byte) 0xFF) {
+                length -= 4;
+            }
+            int header = (length - 4) | (reset ? RESET : 0);
+            a[0] = (byte) (header >>> 24);
+            a[1] = (byte) (header >>> 16);
+            a[2] = (byte) (header >>> 8);
+            a[3] = (byte) header;
+            return length == a.length ? a : Arrays.copyOf(a, length);
+        }
+
+        /** One deflate call into the free space; true if it filled it, so there may be more. */
+        private boolean drain(Deflater d, int flush) {
+            if (a.length - length < 64) a = Arrays.copyOf(a, 2 * a.length);
+            int room = a.length - length;
+            int n = d.deflate(a, length, room, flush);
+            length += n;
+            return n == room;
+        }
+    }
+
+    /**
+     * The compressing side of one connection. Frames up to and including the hello
+     * acknowledgement go out as they are; after it, {@link #encode} turns them into
+     * chunks. The acknowledgement is a control frame, which the queue never drops or
+     * coalesces, so the writer always meets it. In stream mode a Deflater is kept for
+     * the life of the connection; in shared mode each frame's own cached reset chunk
+     * is sent. A ReentrantLock, not synchronized, keeps {@link #end} off the Deflater
+     * while the writer uses it, so a virtual-thread writer is not pinned meanwhile.
+     */
+    static final class Encoder {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Frame ack;
+        private boolean started;
+        private final Deflater deflater;
+        private boolean ended;
+
+        Encoder(Frame ack, Mode mode) {
+            this.ack = ack;
+            if (mode == Mode.STREAM) {
+                deflater = new Deflater(LEVEL, true);
+                deflater.setDictionary(DICTIONARY);
+            } else {
+                deflater = null;
+            }
+        }
+
+        /**
+         * The wire bytes for {@code first}; in stream mode, together with whatever else
+         * is ready in {@code queue}, up to {@link #BATCH} bytes of input, as one chunk.
+         * Called by the connection's single writer.
+         */
+        byte[] encode(Frame first, OutboundQueue queue, boolean binary) {
+            lock.lock();
+            try {
+                if (!started) {
+                    if (first == ack) started = true;
+                    return first.bytes(binary);
+                }
+                if (deflater == null) return first.chunk(binary);
+                if (ended) return NONE;
+                byte[] bytes = first.bytes(binary);
+                Chunk c = new Chunk(Math.max(256, bytes.length));
+                c.deflate(deflater, bytes);
+                int in = bytes.length;
+                Frame next;
+                while (in < BATCH && (next = queue.poll()) != null) {
+                    bytes = next.bytes(binary);
+                    c.deflate(deflater, bytes);
+                    in += bytes.length;
+                }
+                return c.finish(deflater, false);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Frees the Deflater's native memory; later calls to {@link #encode} send nothing. */
+        void end() {
+            lock.lock();
+            try {
+                if (deflater == null || ended) return;
+                ended = true;
+                deflater.end();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * The client side: reads chunks from the server and returns what they decompress
+     * to. Wrap the socket's stream in it right after reading an acknowledgement that
+     * {@link #accepted} compression.
+     */
+    public static final class InflatingInputStream extends InputStream {
+        private final DataInputStream in;
+        private final Inflater inflater = new Inflater(true);
+        private byte[] input = new byte[4096];
+        private final byte[] output = new byte[8192];
+        private int pos;
+        private int limit;
+
+        public InflatingInputStream(InputStream in) {
+            this.in = new DataInputStream(new BufferedInputStream(in));
+            inflater.setDictionary(DICTIONARY);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos == limit && !fill()) return -1;
+            return output[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (pos == limit && !fill()) return -1;
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(output, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return limit - pos;
+        }
+
+        /** Inflates more output, reading chunks as needed; false at the end of the stream. */
+        private boolean fill() throws IOException {
+            try {
+                while (true) {
+                    // Only read on once the last chunk is fully out; a match can still be pending after its input is.
+                    int n = inflater.inflate(output);
+                    if (n > 0) {
+                        pos = 0;
+                        limit = n;
+                        return true;
+                    }
+                    if (!inflater.needsInput()) throw new IOException("Bad compressed chunk");
+                    if (!readChunk()) return false;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Bad compressed chunk: " + e.getMessage());
+            }
+        }
+
+        private boolean readChunk() throws IOException {
+            int header;
+            try {
+                header = in.readInt();
+            } catch (EOFException e) {
+                return false;
+            }
+            int length = header & ~RESET;
+            if (length > MAX_CHUNK) throw new IOException("Compressed chunk too large: " + length);
+            if (input.length < length + TAIL.length) input = new byte[length + TAIL.length];
+            in.readFully(input, 0, length);
+            System.arraycopy(TAIL, 0, input, length, TAIL.length);
+            if ((header & RESET) != 0) {
+                inflater.reset();
+                inflater.setDictionary(DICTIONARY);
+            }
+            inflater.setInput(input, 0, length + TAIL.length);
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package chat;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One outgoing message, encoded to wire bytes at most once per protocol.
+ *
+ * A broadcast builds a single Frame and hands the same instance to every
+ * recipient's {@link OutboundQueue}. The text and binary encodings are produced
+ * lazily the first time a writer of that protocol asks for them and are then
+ * shared; the bytes are never modified. Each writer keeps its own read offset
+ * instead of copying or duplicating a buffer, so fan-out allocates nothing per
+ * recipient.
+ */
+public final class Frame {
+    final byte type;
+    final long id;
+    final long timestamp;
+    private final String name;
+    private final String payload;
+    private final byte[] payloadBytes;
+    /** The line text-protocol clients see, or null to use the payload as is. */
+    private final String textLine;
+    /** For frames built from a {@link TextProtocol#formatChat} line: the field lengths within it. */
+    private final int nameLength;
+    private final int payloadLength;
+    /** Handshake and session frames: never merged with others or dropped by an {@link OutboundQueue}. */
+    final boolean control;
+
+    private volatile byte[] text;
+    private volatile byte[] binary;
+    /** The encodings above as shared-mode {@link Compression} chunks, made on first use. */
+    private volatile byte[] textChunk;
+    private volatile byte[] binaryChunk;
+
+    private Frame(byte type, long id, long timestamp, String name, String payload, byte[] payloadBytes,
+                  String textLine, boolean control) {
+        this.type = type;
+        this.id = id;
+        this.timestamp = timestamp;
+        this.name = name;
+        this.payload = payload;
+        this.payloadBytes = payloadBytes;
+        this.textLine = textLine;
+        this.nameLength = -1;
+        this.payloadLength = -1;
+        this.control = control;
+    }
+
+    private Frame(byte type, long id, long timestamp, byte[] line, int nameLength, int payloadLength) {
+        this.type = type;
+        this.id = id;
+        this.timestamp = timestamp;
+        this.name = null;
+        this.payload = null;
+        this.payloadBytes = null;
+        this.textLine = null;
+        this.nameLength = nameLength;
+        this.payloadLength = payloadLength;
+        this.control = false;
+        this.text = line;
+    }
+
+    private Frame(byte[] encoded, boolean control) {
+        this.type = 0;
+        this.id = 0;
+        this.timestamp = 0;
+        this.name = null;
+        this.payload = null;
+        this.payloadBytes = null;
+        this.textLine = null;
+        this.nameLength = -1;
+        this.payloadLength = -1;
+        this.control = control;
+        // Pre-encoded frames are sent unchanged in either protocol.
+        this.text = encoded;
+        this.binary = encoded;
+    }
+
+    /** A server notice: a plain line in text mode, a SYSTEM frame in binary mode. */
+    public static Frame text(String line) {
+        return new Frame(BinaryProtocol.SYSTEM, 0, 0, null, line, null, null, false);
+    }
+
+    /**
+     * A user message. Binary clients get the structured fields; text clients get
+     * {@code textLine}, the same formatted line that goes to the history file.
+     */
+    static Frame message(byte type, long id, long timestamp, String sender, String message, String textLine) {
+        return new Frame(type, id, timestamp, sender, message, null, textLine, false);
+    }
+
+    /** A {@link #message} that queues treat as {@link #control}, such as SESSION and RESUME. */
+    static Frame control(byte type, long id, String name, String payload) {
+        return new Frame(type, id, 0, name, payload, null, null, true);
+    }
+
+    /**
+     * A user message whose text encoding is {@code line}, as built by
+     * {@link TextProtocol#formatChat}; the binary encoding is cut from the same bytes
+     * when first needed. The array must not be modified afterwards.
+     */
+    static Frame line(byte type, long id, long timestamp, byte[] line, int nameLength, int payloadLength) {
+        return new Frame(type, id, timestamp, line, nameLength, payloadLength);
+    }
+
+    /** A replayed history line given as UTF-8 bytes without the newline. */
+    static Frame history(byte[] utf8) {
+        return new Frame(BinaryProtocol.HISTORY, 0, 0, null, null, utf8, null, false);
+    }
+
+    /** Wraps bytes that are already encoded; the array must not be modified afterwards. */
+    static Frame wrap(byte[] encoded) {
+        return new Frame(encoded, false);
+    }
+
+    /** Like {@link #wrap}, for a handshake line that must go out on its own, such as a hello acknowledgement. */
+    static Frame control(byte[] encoded) {
+        return new Frame(encoded, true);
+    }
+
+    /** The wire bytes for one protocol, encoding them on first use. */
+    byte[] bytes(boolean binaryProtocol) {
+        byte[] b = binaryProtocol ? binary : text;
+        if (b != null) return b;
+        // Racing writers may both encode; the results are identical, so either may win.
+        if (binaryProtocol) {
+            if (nameLength >= 0) {
+                byte[] line = text;
+                b = BinaryProtocol.encode(type, id, timestamp, line, TextProtocol.NAME_OFFSET, nameLength,
+                        TextProtocol.payloadOffset(line, payloadLength), payloadLength);
+            } else if (payloadBytes != null) {
+                b = BinaryProtocol.encode(type, id, timestamp, new byte[0], payloadBytes);
+            } else {
+                b = BinaryProtocol.encode(type, id, timestamp, name, payload);
+            }
+            binary = b;
+        } else {
+            b = payloadBytes != null ? withNewline(payloadBytes)
+                    : ((textLine != null ? textLine : payload) + "\n").getBytes(StandardCharsets.UTF_8);
+            text = b;
+        }
+        return b;
+    }
+
+    /** The wire bytes for one protocol as a reset chunk, compressed once for every recipient. */
+    byte[] chunk(boolean binaryProtocol) {
+        byte[] c = binaryProtocol ? binaryChunk : textChunk;
+        if (c != null) return c;
+        c = Compression.chunk(bytes(binaryProtocol));
+        if (binaryProtocol) binaryChunk = c;
+        else textChunk = c;
+        return c;
+    }
+
+    private static byte[] withNewline(byte[] utf8) {
+        byte[] bytes = new byte[utf8.length + 1];
+        System.arraycopy(utf8, 0, bytes, 0, utf8.length);
+        bytes[utf8.length] = '\n';
+        return bytes;
+    }
+}
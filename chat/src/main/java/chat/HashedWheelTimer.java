@@ -0,0 +1,114 @@
+package chat;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single-threaded timer for very many coarse timeouts. Time is cut into ticks
+ * and tasks hang in a ring of buckets by deadline, so scheduling is an O(1)
+ * queue insert from any thread and each tick touches only one bucket, however
+ * many tasks are pending; deadlines further out than one turn of the wheel
+ * wait a number of rounds in their bucket. Tasks fire up to one tick late.
+ *
+ * Tasks run on the timer thread and must be short.
+ */
+public final class HashedWheelTimer {
+    private static final class Entry {
+        final Runnable task;
+        /** Nanos since the timer started. */
+        final long deadline;
+        long rounds;
+
+        Entry(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+    }
+
+    private final long tickNanos;
+    private final ArrayDeque<Entry>[] wheel;
+    private final int mask;
+    /** Newly scheduled entries, moved into the wheel by the timer thread once per tick. */
+    private final Queue<Entry> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final long start = System.nanoTime();
+    private final Thread worker;
+    private volatile boolean closed;
+    private long tick;
+
+    /** {@code wheelSize} is rounded up to a power of two. */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        int n = 1;
+        while (n < wheelSize) n <<= 1;
+        wheel = new ArrayDeque[n];
+        for (int i = 0; i < n; i++) wheel[i] = new ArrayDeque<>();
+        mask = n - 1;
+        tickNanos = Math.max(1, unit.toNanos(tickDuration));
+        worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /** Runs {@code task} once, {@code delay} from now; safe to call from any thread. */
+    public void schedule(Runnable task, long delay, TimeUnit unit) {
+        if (closed) return;
+        pending.incrementAndGet();
+        incoming.add(new Entry(task, System.nanoTime() - start + unit.toNanos(delay)));
+    }
+
+    /** Tasks scheduled and not yet run. */
+    public int pending() {
+        return pending.get();
+    }
+
+    public void close() {
+        closed = true;
+        worker.interrupt();
+    }
+
+    private void run() {
+        while (!closed) {
+            long sleep = (tick + 1) * tickNanos - (System.nanoTime() - start);
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            transferIncoming();
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void transferIncoming() {
+        Entry e;
+        while ((e = incoming.poll()) != null) {
+            long due = Math.max(e.deadline / tickNanos, tick);
+            e.rounds = (due - tick) / wheel.length;
+            wheel[(int) (due & mask)].add(e);
+        }
+    }
+
+    private void expire(ArrayDeque<Entry> bucket) {
+        for (int n = bucket.size(); n > 0; n--) {
+            Entry e = bucket.poll();
+            if (e.rounds > 0) {
+                e.rounds--;
+                bucket.add(e);
+                continue;
+            }
+            pending.decrementAndGet();
+            try {
+                e.task.run();
+            } catch (RuntimeException ex) {
+                System.err.println("Timer task failed: " + ex);
+            }
+        }
+    }
+}
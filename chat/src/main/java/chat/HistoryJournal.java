@@ -0,0 +1,233 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Append-only chat history written by a single background thread.
+ *
+ * Senders only push onto a lock-free queue; the journal thread drains whatever
+ * has accumulated, writes it to the file in one {@link FileChannel} call (group
+ * commit) and forces it to disk according to the {@link Fsync} policy.
+ *
+ * Entries may carry a tag (the room, written in front of the line) and a
+ * {@link HistoryStore}; those are also appended to that store in the same batch,
+ * so users joining a room can be sent its recent history. The journal only writes
+ * to the stores; their owner closes them after {@link #close()}.
+ */
+public class HistoryJournal {
+    public enum Fsync {
+        /** Leave flushing to the OS page cache. */
+        NONE,
+        /** force() at most once per configured interval. */
+        INTERVAL,
+        /** force() after every N entries. */
+        EVERY_N
+    }
+
+    private static final int BATCH_BYTES = 64 * 1024;
+
+    private final Queue<Entry> pending = new ConcurrentLinkedQueue<>();
+    private final FileChannel channel;
+    private final Fsync fsync;
+    private final long intervalNanos;
+    private final int everyN;
+    private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_BYTES);
+    private final byte[] newline = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    private final Thread writer;
+
+    private volatile boolean sleeping;
+    private volatile boolean closed;
+    private long lastForce = System.nanoTime();
+    private int unforced;
+    /** Stores written in the current batch, and since the last force (journal thread only). */
+    private final Set<HistoryStore> dirty = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<HistoryStore> unforcedStores = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+    /** Run on the journal thread after each batch reaches the file; null if unset. */
+    private volatile Runnable onWrite;
+
+    public HistoryJournal(String file, Fsync fsync, long intervalMillis, int everyN) throws IOException {
+        this(Paths.get(file), fsync, intervalMillis, everyN);
+    }
+
+    public HistoryJournal(Path file, Fsync fsync, long intervalMillis, int everyN) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        this.fsync = fsync;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.everyN = Math.max(1, everyN);
+        writer = new Thread(this::run, "history-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** How long each batch took to write, including any force that followed it. */
+    public LatencyHistogram writeLatency() {
+        return writeLatency;
+    }
+
+    /** Sets a callback for the journal thread to run after each batch it writes; it must not block. */
+    public void onWrite(Runnable listener) {
+        this.onWrite = listener;
+    }
+
+    /** Queues one untagged history line; never blocks on disk. */
+    public void append(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        append(null, bytes, bytes.length, null);
+    }
+
+    /**
+     * Queues the first {@code length} UTF-8 bytes of {@code line} (no newline) without
+     * copying, prefixed with {@code tag} in the file if given, and also appended to
+     * {@code store} for replay if given. The arrays must not be modified afterwards.
+     */
+    public void append(byte[] tag, byte[] line, int length, HistoryStore store) {
+        if (closed) return;
+        pending.add(new Entry(tag, line, length, store, store != null ? System.currentTimeMillis() : -1));
+        if (sleeping) LockSupport.unpark(writer);
+    }
+
+    private void run() {
+        while (true) {
+            boolean wrote = false;
+            try {
+                long start = System.nanoTime();
+                wrote = drainOnce();
+                if (wrote || unforced > 0) maybeForce();
+                if (wrote) writeLatency.record(System.nanoTime() - start);
+                Runnable listener = onWrite;
+                if (wrote && listener != null) listener.run();
+            } catch (IOException e) {
+                System.err.println("History write failed: " + e.getMessage());
+            }
+            if (wrote) continue;
+            if (closed && pending.isEmpty()) break;
+
+            sleeping = true;
+            // Re-check after publishing the flag so an append() racing with us is not missed.
+            if (pending.isEmpty() && !closed) {
+                LockSupport.parkNanos(this, unforced > 0 ? intervalNanos : TimeUnit.SECONDS.toNanos(1));
+            }
+            sleeping = false;
+        }
+        try {
+            if (unforced > 0 && fsync != Fsync.NONE) force();
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("History close failed: " + e.getMessage());
+        }
+    }
+
+    /** Writes one batch of queued lines; returns false if there was nothing to write. */
+    private boolean drainOnce() throws IOException {
+        batch.clear();
+        int entries = 0;
+        Entry e;
+        while ((e = pending.peek()) != null) {
+            int tagLength = e.tag != null ? e.tag.length : 0;
+            if (tagLength + e.length + newline.length > batch.remaining()) {
+                if (entries > 0) break;
+                // A single oversized line: write it on its own.
+                pending.poll();
+                if (e.tag != null) writeFully(ByteBuffer.wrap(e.tag));
+                writeFully(ByteBuffer.wrap(e.line, 0, e.length));
+                writeFully(ByteBuffer.wrap(newline));
+                if (e.store != null) storeAppend(e);
+                unforced++;
+                flushStore();
+                return true;
+            }
+            pending.poll();
+            if (e.tag != null) batch.put(e.tag);
+            batch.put(e.line, 0, e.length).put(newline);
+            if (e.store != null) storeAppend(e);
+            entries++;
+        }
+        if (entries == 0) return false;
+        batch.flip();
+        writeFully(batch);
+        flushStore();
+        unforced += entries;
+        return true;
+    }
+
+    private void storeAppend(Entry e) {
+        try {
+            e.store.append(e.timestamp, e.line, e.length);
+            dirty.add(e.store);
+        } catch (IOException ex) {
+            System.err.println("History store append failed: " + ex.getMessage());
+        }
+    }
+
+    private void flushStore() throws IOException {
+        for (HistoryStore s : dirty) s.flush();
+        unforcedStores.addAll(dirty);
+        dirty.clear();
+    }
+
+    private void writeFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) channel.write(buf);
+    }
+
+    private void maybeForce() throws IOException {
+        boolean force;
+        switch (fsync) {
+            case EVERY_N: force = unforced >= everyN; break;
+            case INTERVAL: force = System.nanoTime() - lastForce >= intervalNanos; break;
+            default: unforced = 0; return;
+        }
+        if (!force) return;
+        force();
+        lastForce = System.nanoTime();
+        unforced = 0;
+    }
+
+    private void force() throws IOException {
+        channel.force(false);
+        for (HistoryStore s : unforcedStores) s.force();
+        unforcedStores.clear();
+    }
+
+    private static final class Entry {
+        final byte[] tag;
+        final byte[] line;
+        final int length;
+        /** Where to store the line for replay, or null for entries that only go to the text file. */
+        final HistoryStore store;
+        final long timestamp;
+
+        Entry(byte[] tag, byte[] line, int length, HistoryStore store, long timestamp) {
+            this.tag = tag;
+            this.line = line;
+            this.length = length;
+            this.store = store;
+            this.timestamp = timestamp;
+        }
+    }
+
+    /** Stops accepting entries, writes everything still queued and closes the file. */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
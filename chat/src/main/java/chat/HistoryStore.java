@@ -0,0 +1,449 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Segmented on-disk message log that supports replaying recent history.
+ *
+ * Records are appended to the active segment file ({@code <baseOrdinal>.log}) as
+ * {@code [int length][long timestamp][utf-8 line]}. A segment is sealed and a new
+ * one started once it reaches the size or age limit. Every segment keeps a sparse
+ * in-memory index (one entry per few KB) of record ordinal, timestamp and file
+ * position, persisted to {@code <baseOrdinal>.idx} when the segment is sealed.
+ *
+ * Appends come from a single writer thread (the {@link HistoryJournal}); cursors
+ * can be opened from any thread and read memory-mapped segments, so a replay never
+ * pulls more than the current record onto the heap.
+ */
+public class HistoryStore {
+    private static final int RECORD_HEADER = 4 + 8;
+    private static final int INDEX_INTERVAL_BYTES = 4 * 1024;
+    private static final int WRITE_BUFFER_BYTES = 64 * 1024;
+
+    private final Path dir;
+    private final long maxSegmentBytes;
+    private final long maxSegmentMillis;
+    private final ByteBuffer writeBuf = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES);
+    private volatile Segment[] segments;
+    private Segment active;
+
+    public HistoryStore(Path dir, long maxSegmentBytes, long maxSegmentMillis) throws IOException {
+        this.dir = dir;
+        // Index positions are ints, so a segment must stay below 2 GB.
+        this.maxSegmentBytes = Math.min(maxSegmentBytes, Integer.MAX_VALUE);
+        this.maxSegmentMillis = maxSegmentMillis;
+        Files.createDirectories(dir);
+        segments = recover();
+        if (segments.length == 0) {
+            segments = new Segment[] { Segment.create(dir, 0) };
+        }
+        active = segments[segments.length - 1];
+        active.openForAppend();
+    }
+
+    private Segment[] recover() throws IOException {
+        List<Long> bases = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.log")) {
+            for (Path f : files) {
+                String name = f.getFileName().toString();
+                bases.add(Long.parseLong(name.substring(0, name.length() - 4)));
+            }
+        }
+        bases.sort(null);
+        Segment[] result = new Segment[bases.size()];
+        for (int i = 0; i < result.length; i++) {
+            boolean last = i == result.length - 1;
+            result[i] = Segment.load(dir, bases.get(i), !last);
+        }
+        return result;
+    }
+
+    // ---- writer side (journal thread only) ----
+
+    /** Buffers one record; it becomes visible to readers after the next {@link #flush()}. */
+    public void append(long timestamp, byte[] line) throws IOException {
+        append(timestamp, line, line.length);
+    }
+
+    /** Appends the first {@code length} bytes of {@code line}. */
+    public void append(long timestamp, byte[] line, int length) throws IOException {
+        if (active.size + writeBuf.position() >= maxSegmentBytes
+                || (active.pendingCount > 0 && timestamp - active.firstTimestamp >= maxSegmentMillis)) {
+            roll();
+        }
+        if (RECORD_HEADER + length > writeBuf.remaining()) {
+            flush();
+            if (RECORD_HEADER + length > writeBuf.capacity()) {
+                throw new IOException("history record too large: " + length + " bytes");
+            }
+        }
+        long position = active.size + writeBuf.position();
+        active.noteAppend(timestamp, position);
+        writeBuf.putInt(length).putLong(timestamp).put(line, 0, length);
+    }
+
+    /** Writes buffered records and publishes them to readers. */
+    public void flush() throws IOException {
+        if (writeBuf.position() == 0) return;
+        writeBuf.flip();
+        while (writeBuf.hasRemaining()) active.channel.write(writeBuf);
+        writeBuf.clear();
+        active.publish();
+    }
+
+    public void force() throws IOException {
+        active.channel.force(false);
+    }
+
+    private void roll() throws IOException {
+        flush();
+        active.seal();
+        Segment next = Segment.create(dir, active.baseOrdinal + active.count);
+        next.openForAppend();
+        Segment[] grown = Arrays.copyOf(segments, segments.length + 1);
+        grown[grown.length - 1] = next;
+        active = next;
+        segments = grown;
+    }
+
+    public void close() throws IOException {
+        flush();
+        active.seal();
+    }
+
+    // ---- reader side (any thread) ----
+
+    /** Ordinal the next appended record will get; records below it are readable. */
+    public long endOrdinal() {
+        Segment[] segs = segments;
+        Segment last = segs[segs.length - 1];
+        return last.baseOrdinal + last.count;
+    }
+
+    /** The last {@code n} records, oldest first. */
+    public Iterator<byte[]> tail(int n) {
+        Segment[] segs = segments;
+        long end = endOrdinal();
+        long start = Math.max(segs[0].baseOrdinal, end - n);
+        return new Cursor(segs, start, end);
+    }
+
+    /** Records stamped at or after {@code timestamp}, at most {@code limit} of them. */
+    public Iterator<byte[]> since(long timestamp, int limit) {
+        Segment[] segs = segments;
+        long end = endOrdinal();
+        int i = 0;
+        while (i < segs.length - 1 && segs[i].lastTimestamp < timestamp) i++;
+        Cursor c = new Cursor(segs, i, timestamp);
+        return c.limit(end, limit);
+    }
+
+    /** Streams records straight out of memory-mapped segments. */
+    private static final class Cursor implements Iterator<byte[]> {
+        private final Segment[] segs;
+        private int segIndex;
+        private ByteBuffer buf;
+        private long ordinal;
+        private long end;
+
+        /** Positions at record {@code start}. */
+        Cursor(Segment[] segs, long start, long end) {
+            this.segs = segs;
+            this.end = end;
+            segIndex = find(segs, start);
+            Segment s = segs[segIndex];
+            int n = s.indexCount;
+            Index idx = s.index;
+            open(s, idx, idx.floorByOrdinal((int) (start - s.baseOrdinal), n));
+            while (ordinal < start && hasNext()) skip();
+        }
+
+        /** Positions at the first record of segment {@code segIndex} stamped at or after {@code timestamp}. */
+        Cursor(Segment[] segs, int segIndex, long timestamp) {
+            this.segs = segs;
+            this.end = Long.MAX_VALUE;
+            this.segIndex = segIndex;
+            Segment s = segs[segIndex];
+            int n = s.indexCount;
+            Index idx = s.index;
+            open(s, idx, idx.floorByTimestamp(timestamp, n));
+            while (hasNext() && peekTimestamp() < timestamp) skip();
+        }
+
+        Cursor limit(long end, int limit) {
+            this.end = Math.min(end, ordinal + limit);
+            return this;
+        }
+
+        private static int find(Segment[] segs, long ordinal) {
+            int lo = 0, hi = segs.length - 1;
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+                if (segs[mid].baseOrdinal <= ordinal) lo = mid;
+                else hi = mid - 1;
+            }
+            return lo;
+        }
+
+        private void open(Segment s, Index idx, int indexEntry) {
+            buf = s.mapped();
+            if (indexEntry >= 0) {
+                buf.position(idx.pos[indexEntry]);
+                ordinal = s.baseOrdinal + idx.rel[indexEntry];
+            } else {
+                ordinal = s.baseOrdinal;
+            }
+        }
+
+        private boolean advanceSegment() {
+            while (!buf.hasRemaining()) {
+                if (segIndex + 1 >= segs.length) return false;
+                Segment s = segs[++segIndex];
+                buf = s.mapped();
+                ordinal = s.baseOrdinal;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return ordinal < end && advanceSegment();
+        }
+
+        private long peekTimestamp() {
+            return buf.getLong(buf.position() + 4);
+        }
+
+        private void skip() {
+            int len = buf.getInt();
+            buf.position(buf.position() + 8 + len);
+            ordinal++;
+        }
+
+        @Override
+        public byte[] next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            int len = buf.getInt();
+            buf.getLong();
+            byte[] line = new byte[len];
+            buf.get(line);
+            ordinal++;
+            return line;
+        }
+    }
+
+    /** Sparse index arrays; replaced wholesale when they grow. */
+    private static final class Index {
+        final int[] rel;
+        final long[] ts;
+        final int[] pos;
+
+        Index(int capacity) {
+            rel = new int[capacity];
+            ts = new long[capacity];
+            pos = new int[capacity];
+        }
+
+        Index grow() {
+            Index bigger = new Index(rel.length * 2);
+            System.arraycopy(rel, 0, bigger.rel, 0, rel.length);
+            System.arraycopy(ts, 0, bigger.ts, 0, ts.length);
+            System.arraycopy(pos, 0, bigger.pos, 0, pos.length);
+            return bigger;
+        }
+
+        /** Last entry with relative ordinal <= {@code target}, or -1. */
+        int floorByOrdinal(int target, int count) {
+            int lo = 0, hi = count - 1, found = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (rel[mid] <= target) { found = mid; lo = mid + 1; }
+                else hi = mid - 1;
+            }
+            return found;
+        }
+
+        /** Last entry stamped before {@code timestamp}, or -1. */
+        int floorByTimestamp(long timestamp, int count) {
+            int lo = 0, hi = count - 1, found = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (ts[mid] < timestamp) { found = mid; lo = mid + 1; }
+                else hi = mid - 1;
+            }
+            return found;
+        }
+    }
+
+    private static final class Segment {
+        final long baseOrdinal;
+        final Path logFile;
+        final Path indexFile;
+        FileChannel channel;
+
+        // Published state, read without locks by cursors. Readers must read indexCount
+        // before index: the writer swaps in a grown index before raising the count.
+        volatile long size;
+        volatile int count;
+        volatile int indexCount;
+        volatile Index index = new Index(64);
+        volatile long firstTimestamp;
+        volatile long lastTimestamp;
+        /** Shared by all cursors; remapped once the published size outgrows it. */
+        private volatile MappedByteBuffer map;
+
+        // Writer-side state not yet published.
+        private int pendingCount;
+        private int pendingIndexCount;
+        private long pendingLastTimestamp;
+        private long lastIndexedPosition = -INDEX_INTERVAL_BYTES;
+
+        private Segment(Path dir, long baseOrdinal) {
+            this.baseOrdinal = baseOrdinal;
+            String name = String.format("%020d", baseOrdinal);
+            logFile = dir.resolve(name + ".log");
+            indexFile = dir.resolve(name + ".idx");
+        }
+
+        static Segment create(Path dir, long baseOrdinal) {
+            return new Segment(dir, baseOrdinal);
+        }
+
+        /** Loads a segment from disk, using its index file when it was sealed cleanly. */
+        static Segment load(Path dir, long baseOrdinal, boolean sealed) throws IOException {
+            Segment s = new Segment(dir, baseOrdinal);
+            if (sealed && Files.exists(s.indexFile) && s.readIndexFile()) return s;
+            s.rebuild();
+            if (sealed) s.seal();
+            return s;
+        }
+
+        void openForAppend() throws IOException {
+            channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            channel.position(size);
+            Files.deleteIfExists(indexFile);
+        }
+
+        void noteAppend(long timestamp, long position) {
+            int rel = pendingCount;
+            if (rel == 0 && count == 0) firstTimestamp = timestamp;
+            if (position - lastIndexedPosition >= INDEX_INTERVAL_BYTES) {
+                Index idx = index;
+                if (pendingIndexCount == idx.rel.length) {
+                    idx = idx.grow();
+                    index = idx;
+                }
+                idx.rel[pendingIndexCount] = rel;
+                idx.ts[pendingIndexCount] = timestamp;
+                idx.pos[pendingIndexCount] = (int) position;
+                pendingIndexCount++;
+                lastIndexedPosition = position;
+            }
+            pendingCount++;
+            pendingLastTimestamp = timestamp;
+        }
+
+        void publish() throws IOException {
+            // size first: a reader that sees the new index or count must also see the bytes.
+            size = channel.position();
+            lastTimestamp = pendingLastTimestamp;
+            indexCount = pendingIndexCount;
+            count = pendingCount;
+        }
+
+        /**
+         * A read-only view of the published part of this segment. Sealed segments are
+         * mapped once; the active one only again when it has grown past its mapping.
+         */
+        ByteBuffer mapped() {
+            long limit = size;
+            MappedByteBuffer m = map;
+            if (m == null || m.capacity() < limit) {
+                try (FileChannel ch = FileChannel.open(logFile, StandardOpenOption.READ)) {
+                    m = ch.map(FileChannel.MapMode.READ_ONLY, 0, limit);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot map history segment " + logFile, e);
+                }
+                // Racing cursors may each remap; any mapping that covers their limit will do.
+                map = m;
+            }
+            ByteBuffer view = m.duplicate();
+            view.limit((int) limit);
+            return view;
+        }
+
+        void seal() throws IOException {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+            writeIndexFile();
+        }
+
+        /** Rebuilds count, timestamps and index by scanning, dropping a torn trailing record. */
+        private void rebuild() throws IOException {
+            try (FileChannel ch = FileChannel.open(logFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long fileSize = ch.size();
+                MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+                long pos = 0;
+                while (pos + RECORD_HEADER <= fileSize) {
+                    int len = map.getInt((int) pos);
+                    if (len < 0 || pos + RECORD_HEADER + len > fileSize) break;
+                    noteAppend(map.getLong((int) pos + 4), pos);
+                    pos += RECORD_HEADER + len;
+                }
+                if (pos < fileSize) ch.truncate(pos);
+                lastTimestamp = pendingLastTimestamp;
+                indexCount = pendingIndexCount;
+                size = pos;
+                count = pendingCount;
+            }
+        }
+
+        private void writeIndexFile() throws IOException {
+            int n = indexCount;
+            ByteBuffer out = ByteBuffer.allocate(8 + 4 + 8 + 8 + 4 + n * 16);
+            out.putLong(size).putInt(count).putLong(firstTimestamp).putLong(lastTimestamp).putInt(n);
+            Index idx = index;
+            for (int i = 0; i < n; i++) out.putInt(idx.rel[i]).putLong(idx.ts[i]).putInt(idx.pos[i]);
+            out.flip();
+            try (FileChannel ch = FileChannel.open(indexFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (out.hasRemaining()) ch.write(out);
+            }
+        }
+
+        private boolean readIndexFile() throws IOException {
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(indexFile));
+            if (in.remaining() < 32) return false;
+            long sz = in.getLong();
+            if (sz != Files.size(logFile)) return false;
+            int cnt = in.getInt();
+            long first = in.getLong(), last = in.getLong();
+            int n = in.getInt();
+            if (in.remaining() != n * 16) return false;
+            Index idx = new Index(Math.max(64, n));
+            for (int i = 0; i < n; i++) {
+                idx.rel[i] = in.getInt();
+                idx.ts[i] = in.getLong();
+                idx.pos[i] = in.getInt();
+            }
+            index = idx;
+            indexCount = n;
+            firstTimestamp = first;
+            lastTimestamp = last;
+            size = sz;
+            count = cnt;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package chat;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * One immutable, memory-mapped segment of the search index, covering documents
+ * {@code [docBase, docBase + docCount)}.
+ *
+ * The file holds the postings lists ({@link Postings}), then the term dictionary
+ * in unsigned UTF-8 byte order ({@code short length, bytes, int postings position}),
+ * then each document's offset in the history file ({@code long}), then a footer.
+ * Only every {@link #SAMPLE}th term is kept on the heap; a lookup binary-searches
+ * those and scans at most that many entries of the mapped dictionary.
+ */
+final class IndexSegment {
+    private static final int MAGIC = 0x53524348;
+    private static final int FOOTER = 4 + 4 + 4 + 4 + 4 + 4;
+    private static final int SAMPLE = 32;
+
+    final Path file;
+    final int docBase;
+    final int docCount;
+    private final MappedByteBuffer map;
+    private final int dictPos;
+    private final int termCount;
+    private final int docsPos;
+    private final byte[][] sampleTerms;
+    private final int[] samplePos;
+
+    private IndexSegment(Path file) throws IOException {
+        this.file = file;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (ch.size() < FOOTER || ch.size() > Integer.MAX_VALUE) throw new IOException("Bad index segment " + file);
+            map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        int f = map.capacity() - FOOTER;
+        dictPos = map.getInt(f);
+        termCount = map.getInt(f + 4);
+        docsPos = map.getInt(f + 8);
+        docBase = map.getInt(f + 12);
+        docCount = map.getInt(f + 16);
+        if (map.getInt(f + 20) != MAGIC || docsPos + 8L * docCount != f) {
+            throw new IOException("Bad index segment " + file);
+        }
+        int samples = (termCount + SAMPLE - 1) / SAMPLE;
+        sampleTerms = new byte[samples][];
+        samplePos = new int[samples];
+        int p = dictPos;
+        for (int i = 0; i < termCount; i++) {
+            int len = map.getShort(p) & 0xFFFF;
+            if (i % SAMPLE == 0) {
+                byte[] t = new byte[len];
+                for (int k = 0; k < len; k++) t[k] = map.get(p + 2 + k);
+                sampleTerms[i / SAMPLE] = t;
+                samplePos[i / SAMPLE] = p;
+            }
+            p += 2 + len + 4;
+        }
+    }
+
+    static IndexSegment open(Path file) throws IOException {
+        return new IndexSegment(file);
+    }
+
+    int docEnd() {
+        return docBase + docCount;
+    }
+
+    long size() {
+        return map.capacity();
+    }
+
+    /** Where document {@code doc} (a global id in this segment) starts in the history file. */
+    long offset(int doc) {
+        return map.getLong(docsPos + 8 * (doc - docBase));
+    }
+
+    /** A cursor over the term's postings, or null if no document here has it. */
+    Postings.Cursor cursor(byte[] term) {
+        int s = Arrays.binarySearch(sampleTerms, term, IndexSegment::compare);
+        if (s == -1) return null;
+        int i = s >= 0 ? s : -s - 2;
+        int p = samplePos[i];
+        int end = Math.min(termCount, (i + 1) * SAMPLE);
+        for (int k = i * SAMPLE; k < end; k++) {
+            int len = map.getShort(p) & 0xFFFF;
+            int c = compare(term, p + 2, len);
+            if (c == 0) return new Postings.EncodedCursor(map, map.getInt(p + 2 + len));
+            if (c < 0) return null;
+            p += 2 + len + 4;
+        }
+        return null;
+    }
+
+    private int compare(byte[] term, int p, int len) {
+        int n = Math.min(term.length, len);
+        for (int k = 0; k < n; k++) {
+            int c = (term[k] & 0xFF) - (map.get(p + k) & 0xFF);
+            if (c != 0) return c;
+        }
+        return term.length - len;
+    }
+
+    static int compare(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int k = 0; k < n; k++) {
+            int c = (a[k] & 0xFF) - (b[k] & 0xFF);
+            if (c != 0) return c;
+        }
+        return a.length - b.length;
+    }
+
+    /** The terms of this segment in dictionary order, with their postings. */
+    private final class Terms {
+        final IndexSegment segment = IndexSegment.this;
+        final int order;
+        private int index;
+        private int p = dictPos;
+        byte[] term;
+        int postings;
+
+        Terms(int order) {
+            this.order = order;
+        }
+
+        boolean next() {
+            if (index++ == termCount) return false;
+            int len = map.getShort(p) & 0xFFFF;
+            term = new byte[len];
+            for (int k = 0; k < len; k++) term[k] = map.get(p + 2 + k);
+            postings = map.getInt(p + 2 + len);
+            p += 2 + len + 4;
+            return true;
+        }
+    }
+
+    /** Builds a segment file; terms must be added in {@link #compare} order. */
+    static final class Writer implements AutoCloseable {
+        private final Path file;
+        private final Path tmp;
+        private final DataOutputStream out;
+        private final Postings.Bytes encoded = new Postings.Bytes();
+        private final Postings.Bytes scratch = new Postings.Bytes();
+        private final List<byte[]> terms = new ArrayList<>();
+        private int[] positions = new int[1024];
+        private long written;
+
+        Writer(Path file) throws IOException {
+            this.file = file;
+            this.tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024));
+        }
+
+        void add(byte[] term, int[] docs, int n) throws IOException {
+            if (written > Integer.MAX_VALUE - (1L << 20)) throw new IOException("Index segment too large");
+            if (terms.size() == positions.length) positions = Arrays.copyOf(positions, 2 * positions.length);
+            positions[terms.size()] = (int) written;
+            terms.add(term);
+            encoded.length = 0;
+            Postings.encode(docs, n, encoded, scratch);
+            out.write(encoded.a, 0, encoded.length);
+            written += encoded.length;
+        }
+
+        /** Writes the dictionary, the document offsets and the footer, and moves the file into place. */
+        IndexSegment finish(int docBase, long[] offsets, int docCount) throws IOException {
+            long dictPos = written;
+            for (int i = 0; i < terms.size(); i++) {
+                byte[] t = terms.get(i);
+                out.writeShort(t.length);
+                out.write(t);
+                out.writeInt(positions[i]);
+                written += 2 + t.length + 4;
+            }
+            long docsPos = written;
+            for (int i = 0; i < docCount; i++) out.writeLong(offsets[i]);
+            if (docsPos + 8L * docCount + FOOTER > Integer.MAX_VALUE) throw new IOException("Index segment too large");
+            out.writeInt((int) dictPos);
+            out.writeInt(terms.size());
+            out.writeInt((int) docsPos);
+            out.writeInt(docBase);
+            out.writeInt(docCount);
+            out.writeInt(MAGIC);
+            out.close();
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                ch.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+            return open(file);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Merges adjacent segments, oldest first, into {@code file}. Their document
+     * ranges follow on from each other, so each term's postings are just the
+     * inputs' lists one after another.
+     */
+    static IndexSegment merge(List<IndexSegment> inputs, Path file) throws IOException {
+        int docBase = inputs.get(0).docBase;
+        int docCount = 0;
+        for (IndexSegment s : inputs) docCount += s.docCount;
+        long[] offsets = new long[docCount];
+        int k = 0;
+        for (IndexSegment s : inputs) {
+            for (int d = s.docBase; d < s.docEnd(); d++) offsets[k++] = s.offset(d);
+        }
+        PriorityQueue<Terms> heads = new PriorityQueue<>((a, b) -> {
+            int c = compare(a.term, b.term);
+            return c != 0 ? c : Integer.compare(a.order, b.order);
+        });
+        for (int i = 0; i < inputs.size(); i++) {
+            Terms t = inputs.get(i).new Terms(i);
+            if (t.next()) heads.add(t);
+        }
+        int[] docs = new int[1024];
+        try (Writer w = new Writer(file)) {
+            while (!heads.isEmpty()) {
+                byte[] term = heads.peek().term;
+                int n = 0;
+                // Equal terms come out in input order, so the ids stay ascending.
+                while (!heads.isEmpty() && compare(heads.peek().term, term) == 0) {
+                    Terms t = heads.poll();
+                    Postings.Cursor c = new Postings.EncodedCursor(t.segment.map, t.postings);
+                    if (n + c.size() > docs.length) docs = Arrays.copyOf(docs, Math.max(2 * docs.length, n + c.size()));
+                    for (int d = c.next(); d != Postings.NO_MORE; d = c.next()) docs[n++] = d;
+                    if (t.next()) heads.add(t);
+                }
+                w.add(term, docs, n);
+            }
+            return w.finish(docBase, offsets, docCount);
+        }
+    }
+}
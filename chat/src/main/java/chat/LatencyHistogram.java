@@ -0,0 +1,69 @@
+package chat;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations in nanoseconds. Buckets are log-linear,
+ * eight per power of two, so a value is known to within 12.5% over the whole
+ * range of a long. Recording is one atomic increment. Readers take snapshots
+ * and work out percentiles over the difference between two of them.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB = 1 << SUB_BITS;
+    /** Values below this get a bucket each. */
+    private static final int LINEAR = 2 * SUB;
+    private static final int BUCKETS = LINEAR + (63 - SUB_BITS - 1) * SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public void record(long nanos) {
+        counts.incrementAndGet(index(nanos));
+    }
+
+    /** The bucket counts so far. */
+    public long[] snapshot() {
+        long[] s = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) s[i] = counts.get(i);
+        return s;
+    }
+
+    /** What was recorded between snapshots {@code before} and {@code after}. */
+    static long[] since(long[] after, long[] before) {
+        long[] d = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) d[i] = after[i] - before[i];
+        return d;
+    }
+
+    static long count(long[] counts) {
+        long n = 0;
+        for (long c : counts) n += c;
+        return n;
+    }
+
+    /** The upper bound of the bucket holding quantile {@code q} (0 to 1); 0 if empty. */
+    static long percentile(long[] counts, double q) {
+        long total = count(counts);
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return upper(i);
+        }
+        return upper(counts.length - 1);
+    }
+
+    private static int index(long v) {
+        if (v < LINEAR) return (int) Math.max(v, 0);
+        int e = 63 - Long.numberOfLeadingZeros(v);
+        return LINEAR + (e - SUB_BITS - 1) * SUB + (int) ((v >>> (e - SUB_BITS)) & (SUB - 1));
+    }
+
+    private static long upper(int i) {
+        if (i < LINEAR) return i;
+        int e = (i - LINEAR) / SUB + SUB_BITS + 1;
+        int s = (i - LINEAR) % SUB;
+        return ((long) (SUB + s + 1) << (e - SUB_BITS)) - 1;
+    }
+}
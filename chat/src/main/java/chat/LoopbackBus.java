@@ -0,0 +1,94 @@
+package chat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * In-process {@link MessageBus} for running several nodes in one JVM, e.g. with
+ * {@link ClusterLauncher} {@code --bus=loopback}. Each node delivers on its own
+ * single thread, so messages between two nodes keep their order, as over TCP.
+ * Messages are handed over as objects, not encoded. Each task captures the
+ * listener it was queued for, so closing a bus stops new deliveries to it but
+ * lets those already queued drain.
+ */
+public final class LoopbackBus implements MessageBus {
+    private final int nodeId;
+    private final LoopbackBus[] network;
+    private final ExecutorService inbox;
+    private volatile Listener listener;
+
+    private LoopbackBus(int nodeId, LoopbackBus[] network) {
+        this.nodeId = nodeId;
+        this.network = network;
+        this.inbox = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "loopback-bus-" + nodeId);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** A connected network of {@code nodes} buses; bus i is node i. */
+    public static List<MessageBus> network(int nodes) {
+        LoopbackBus[] network = new LoopbackBus[nodes];
+        for (int i = 0; i < nodes; i++) network[i] = new LoopbackBus(i, network);
+        List<MessageBus> list = new ArrayList<>(nodes);
+        for (LoopbackBus bus : network) list.add(bus);
+        return list;
+    }
+
+    @Override
+    public int nodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public int nodeCount() {
+        return network.length;
+    }
+
+    @Override
+    public void start(Listener listener) {
+        this.listener = listener;
+        for (LoopbackBus peer : network) {
+            Listener other = peer.listener;
+            if (peer == this || other == null) continue;
+            peer.deliver(() -> other.nodeUp(nodeId));
+            deliver(() -> listener.nodeUp(peer.nodeId));
+        }
+    }
+
+    @Override
+    public void send(int node, ClusterMessage message) {
+        LoopbackBus peer = network[node];
+        Listener other = peer.listener;
+        if (other != null) peer.deliver(() -> other.onMessage(nodeId, message));
+    }
+
+    @Override
+    public void publish(ClusterMessage message) {
+        for (int node = 0; node < network.length; node++) {
+            if (node != nodeId) send(node, message);
+        }
+    }
+
+    private void deliver(Runnable task) {
+        try {
+            inbox.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Closed since the caller looked; nothing is listening any more.
+        }
+    }
+
+    @Override
+    public void close() {
+        listener = null;
+        inbox.shutdown();
+        for (LoopbackBus peer : network) {
+            Listener other = peer.listener;
+            if (peer != this && other != null) peer.deliver(() -> other.nodeDown(nodeId));
+        }
+    }
+}
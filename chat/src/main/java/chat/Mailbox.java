@@ -0,0 +1,511 @@
+package chat;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Durable store-and-forward for private messages to users who are offline.
+ *
+ * Recipients are spread over shards by name hash. Each shard is one append-only
+ * file, {@code <shard>.mbox}, of records
+ * <pre>
+ *   int   length     bytes that follow this field
+ *   byte  kind       MESSAGE or DELIVERED
+ *   long  seq        increasing within the shard
+ *   long  timestamp  epoch millis
+ *   short toLength
+ *   byte[toLength] to          utf-8 recipient
+ *   MESSAGE only:  short nameLength, int payloadLength, byte[] line (a {@link TextProtocol#formatChat} line)
+ * </pre>
+ * A DELIVERED record marks every message to {@code to} up to its {@code seq} as
+ * delivered. Only an index stays in memory: per recipient, the seq, file
+ * position, size and time of each undelivered message. Message bodies are read
+ * back from disk a batch at a time when they are delivered.
+ *
+ * Each recipient holds at most {@code maxPerUser} messages, each shard at most
+ * {@code maxShardBytes} of them, and messages older than {@code maxAgeMillis} are
+ * dropped. Once delivered and expired records take up more of a shard than live
+ * ones, the shard is compacted: live records are copied to a new file, which then
+ * replaces the old one.
+ *
+ * All disk reads and writes, and compactions, run one at a time on the mailbox's
+ * own I/O thread, so neither a sender's thread nor a connection's writer ever waits
+ * on the disk, and a shard's lock only guards its in-memory index. Records are
+ * written straight to the file, so they survive a crash of the server process;
+ * they are forced to disk when a shard is compacted or closed.
+ */
+public class Mailbox {
+    /** An offline message on its way out. */
+    static final class Message {
+        final long seq;
+        final long timestamp;
+        final byte[] line;
+        final int nameLength;
+        final int payloadLength;
+
+        Message(long seq, long timestamp, byte[] line, int nameLength, int payloadLength) {
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.line = line;
+            this.nameLength = nameLength;
+            this.payloadLength = payloadLength;
+        }
+    }
+
+    private static final byte MESSAGE = 0;
+    private static final byte DELIVERED = 1;
+    private static final int HEADER = 4 + 1 + 8 + 8 + 2;
+    /** Messages read from disk, and acknowledged, per step of a delivery. */
+    static final int BATCH = 64;
+    private static final long COMPACT_MIN_BYTES = 1024 * 1024;
+    private static final long SWEEP_INTERVAL_MILLIS = 60_000;
+
+    private final Shard[] shards;
+    private final ExecutorService io;
+    private final int maxPerUser;
+    private final long maxAgeMillis;
+    private final long maxShardBytes;
+
+    public Mailbox(Path dir, int shardCount, int maxPerUser, long maxAgeMillis, long maxShardBytes)
+            throws IOException {
+        this.maxPerUser = maxPerUser;
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxShardBytes = maxShardBytes;
+        Files.createDirectories(dir);
+        shards = new Shard[Math.max(1, shardCount)];
+        for (int i = 0; i < shards.length; i++) shards[i] = new Shard(dir.resolve(i + ".mbox"));
+        io = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "mailbox-io");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private Shard shard(String user) {
+        int h = user.hashCode();
+        return shards[Math.floorMod(h ^ (h >>> 16), shards.length)];
+    }
+
+    /**
+     * Keeps a private message for {@code to}, written on the I/O thread. Completes
+     * there with false if their mailbox or its shard is full, the write failed, or
+     * the mailbox is closed.
+     */
+    CompletableFuture<Boolean> store(String to, long timestamp, byte[] line, int nameLength, int payloadLength) {
+        return onIo(() -> write(to, timestamp, line, nameLength, payloadLength), false);
+    }
+
+    /** {@link #store}; I/O thread only. */
+    private boolean write(String to, long timestamp, byte[] line, int nameLength, int payloadLength) {
+        Shard s = shard(to);
+        byte[] toBytes = to.getBytes(StandardCharsets.UTF_8);
+        int size = HEADER + toBytes.length + 2 + 4 + line.length;
+        long seq;
+        s.lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            s.sweep(now);
+            Box box = s.boxes.get(to);
+            if (box != null) s.expire(box, now);
+            if (box != null && box.count >= maxPerUser) return false;
+            if (s.live + size > maxShardBytes) return false;
+            seq = s.nextSeq++;
+        } finally {
+            s.lock.unlock();
+        }
+        try {
+            ByteBuffer b = ByteBuffer.allocate(size);
+            header(b, size, MESSAGE, seq, timestamp, toBytes);
+            b.putShort((short) nameLength).putInt(payloadLength).put(line);
+            b.flip();
+            long pos = s.append(b);
+            s.lock.lock();
+            try {
+                Box box = s.boxes.get(to);
+                if (box == null) s.boxes.put(to, box = new Box());
+                box.add(seq, pos, timestamp, size);
+                s.live += size;
+            } finally {
+                s.lock.unlock();
+            }
+            s.compactIfNeeded();
+            return true;
+        } catch (IOException e) {
+            System.err.println("Mailbox write failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /** How many undelivered messages {@code user} has. */
+    int count(String user) {
+        Shard s = shard(user);
+        s.lock.lock();
+        try {
+            Box box = s.boxes.get(user);
+            if (box == null) return 0;
+            s.expire(box, System.currentTimeMillis());
+            if (box.count == 0) s.boxes.remove(user);
+            return box.count;
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    /** The user's messages, oldest first, a batch at a time; see {@link Delivery}. */
+    Delivery deliver(String user) {
+        return new Delivery(user);
+    }
+
+    /** Runs {@code task} on the I/O thread; once the mailbox is closed, completes with {@code closed} instead. */
+    private <T> CompletableFuture<T> onIo(Supplier<T> task, T closed) {
+        try {
+            return CompletableFuture.supplyAsync(task, io);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.completedFuture(closed);
+        }
+    }
+
+    private static void header(ByteBuffer b, int size, byte kind, long seq, long timestamp, byte[] to) {
+        b.putInt(size - 4).put(kind).putLong(seq).putLong(timestamp).putShort((short) to.length).put(to);
+    }
+
+    /** Finishes the reads and writes already asked for, then closes the files. */
+    public void close() {
+        io.shutdown();
+        try {
+            if (!io.awaitTermination(10, TimeUnit.SECONDS)) System.err.println("Mailbox I/O did not finish in time");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Shard s : shards) {
+            s.lock.lock();
+            try {
+                s.channel.force(true);
+                s.channel.close();
+            } catch (IOException e) {
+                System.err.println("Mailbox close failed for " + s.file + ": " + e.getMessage());
+            } finally {
+                s.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * One user's messages on their way out. Each {@link #next} reads the next
+     * {@link #BATCH} from disk on the I/O thread, and first marks the batch before it
+     * delivered; an empty batch means there are no more. If the caller stops early,
+     * its last batch is delivered again next time.
+     */
+    final class Delivery {
+        private final String user;
+        private final byte[] userBytes;
+        /** Seq of the last message handed out or skipped; acknowledged on the next read. I/O thread only. */
+        private long through;
+
+        Delivery(String user) {
+            this.user = user;
+            this.userBytes = user.getBytes(StandardCharsets.UTF_8);
+        }
+
+        CompletableFuture<Message[]> next() {
+            return onIo(this::advance, new Message[0]);
+        }
+
+        /** Acknowledges what was handed out so far and reads the next batch; I/O thread only. */
+        private Message[] advance() {
+            Shard s = shard(user);
+            long acknowledged = through;
+            int first;
+            int n;
+            Box box;
+            s.lock.lock();
+            try {
+                box = s.boxes.get(user);
+                if (box != null && acknowledged > 0) {
+                    s.drop(user, box, acknowledged);
+                    box = s.boxes.get(user);
+                }
+                if (box != null) s.expire(box, System.currentTimeMillis());
+                first = box != null ? box.head : 0;
+                n = box != null ? Math.min(BATCH, box.count) : 0;
+            } finally {
+                s.lock.unlock();
+            }
+            // Positions only change in a compaction, which runs on this thread too.
+            try {
+                if (acknowledged > 0) {
+                    ByteBuffer b = ByteBuffer.allocate(HEADER + userBytes.length);
+                    header(b, b.capacity(), DELIVERED, acknowledged, System.currentTimeMillis(), userBytes);
+                    b.flip();
+                    s.append(b);
+                }
+                Message[] out = new Message[n];
+                for (int i = 0; i < n; i++) out[i] = s.read(box, first + i);
+                if (n > 0) through = out[n - 1].seq;
+                if (acknowledged > 0) s.compactIfNeeded();
+                return out;
+            } catch (IOException e) {
+                System.err.println("Mailbox read failed for " + user + ": " + e.getMessage());
+                return new Message[0];
+            }
+        }
+    }
+
+    /** One recipient's undelivered messages, oldest first, in entries {@code [head, head + count)}. */
+    private static final class Box {
+        long[] seq = new long[4];
+        long[] pos = new long[4];
+        long[] time = new long[4];
+        int[] size = new int[4];
+        int head;
+        int count;
+
+        void add(long s, long p, long t, int sz) {
+            if (head + count == seq.length) {
+                if (head > 0) {
+                    System.arraycopy(seq, head, seq, 0, count);
+                    System.arraycopy(pos, head, pos, 0, count);
+                    System.arraycopy(time, head, time, 0, count);
+                    System.arraycopy(size, head, size, 0, count);
+                    head = 0;
+                }
+                if (count == seq.length) {
+                    seq = Arrays.copyOf(seq, 2 * count);
+                    pos = Arrays.copyOf(pos, 2 * count);
+                    time = Arrays.copyOf(time, 2 * count);
+                    size = Arrays.copyOf(size, 2 * count);
+                }
+            }
+            int i = head + count++;
+            seq[i] = s;
+            pos[i] = p;
+            time[i] = t;
+            size[i] = sz;
+        }
+    }
+
+    /** A box's entries {@code [head, head + pos.length)} as they were when a compaction began, and their new positions. */
+    private static final class Moved {
+        final Box box;
+        final int head;
+        final long[] pos;
+
+        Moved(Box box, int head, int count) {
+            this.box = box;
+            this.head = head;
+            this.pos = new long[count];
+        }
+    }
+
+    /**
+     * One shard file and its index. The index ({@link #boxes}, {@link #live},
+     * {@link #nextSeq}) is guarded by {@link #lock}; the file, {@link #end} and the
+     * positions in the index are only touched on the I/O thread.
+     */
+    private final class Shard {
+        final ReentrantLock lock = new ReentrantLock();
+        final Map<String, Box> boxes = new HashMap<>();
+        final Path file;
+        FileChannel channel;
+        /** File length, and bytes of it taken by undelivered messages. */
+        long end;
+        long live;
+        long nextSeq = 1;
+        long lastSweep = System.currentTimeMillis();
+
+        Shard(Path file) throws IOException {
+            this.file = file;
+            Files.deleteIfExists(tmpFile());
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            recover();
+            compactIfNeeded();
+        }
+
+        private Path tmpFile() {
+            return file.resolveSibling(file.getFileName() + ".tmp");
+        }
+
+        /** Rebuilds the index from the file, cutting off a record torn by a crash. */
+        private void recover() throws IOException {
+            long size = channel.size();
+            long p = 0;
+            long now = System.currentTimeMillis();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(channel.position(0)), 64 * 1024));
+            try {
+                while (p + 4 <= size) {
+                    int length = in.readInt();
+                    if (length < HEADER - 4 || p + 4 + length > size) break;
+                    byte kind = in.readByte();
+                    long seq = in.readLong();
+                    long timestamp = in.readLong();
+                    byte[] to = new byte[in.readUnsignedShort()];
+                    in.readFully(to);
+                    int rest = length - (HEADER - 4) - to.length;
+                    if (rest < 0) break;
+                    in.skipBytes(rest);
+                    String user = new String(to, StandardCharsets.UTF_8);
+                    nextSeq = Math.max(nextSeq, seq + 1);
+                    Box box = boxes.get(user);
+                    if (kind == MESSAGE && now - timestamp < maxAgeMillis) {
+                        if (box == null) boxes.put(user, box = new Box());
+                        box.add(seq, p, timestamp, 4 + length);
+                        live += 4 + length;
+                    } else if (kind == DELIVERED && box != null) {
+                        drop(user, box, seq);
+                    }
+                    p += 4 + length;
+                }
+            } catch (EOFException e) {
+                // torn record; cut below
+            }
+            if (p < size) {
+                System.err.println("Mailbox " + file + ": dropping " + (size - p) + " bytes of a torn record");
+                channel.truncate(p);
+            }
+            end = p;
+        }
+
+        /** Appends a record at the end of the file; returns its position. */
+        long append(ByteBuffer b) throws IOException {
+            long pos = end;
+            while (b.hasRemaining()) end += channel.write(b, end);
+            return pos;
+        }
+
+        Message read(Box box, int i) throws IOException {
+            ByteBuffer b = ByteBuffer.allocate(box.size[i]);
+            while (b.hasRemaining()) {
+                if (channel.read(b, box.pos[i] + b.position()) < 0) throw new EOFException(file.toString());
+            }
+            b.position(HEADER - 2);
+            int toLength = b.getShort() & 0xffff;
+            b.position(HEADER + toLength);
+            int nameLength = b.getShort() & 0xffff;
+            int payloadLength = b.getInt();
+            byte[] line = new byte[b.remaining()];
+            b.get(line);
+            return new Message(box.seq[i], box.time[i], line, nameLength, payloadLength);
+        }
+
+        /** Forgets {@code user}'s messages up to {@code seq}. */
+        void drop(String user, Box box, long seq) {
+            while (box.count > 0 && box.seq[box.head] <= seq) {
+                live -= box.size[box.head];
+                box.head++;
+                box.count--;
+            }
+            if (box.count == 0) boxes.remove(user);
+        }
+
+        /** Forgets the box's messages older than the age cap; they were never delivered. */
+        void expire(Box box, long now) {
+            while (box.count > 0 && now - box.time[box.head] >= maxAgeMillis) {
+                live -= box.size[box.head];
+                box.head++;
+                box.count--;
+            }
+        }
+
+        /** Expires old messages in every box, at most once per {@link #SWEEP_INTERVAL_MILLIS}. */
+        void sweep(long now) {
+            if (now - lastSweep < SWEEP_INTERVAL_MILLIS) return;
+            lastSweep = now;
+            Iterator<Box> it = boxes.values().iterator();
+            while (it.hasNext()) {
+                Box box = it.next();
+                expire(box, now);
+                if (box.count == 0) it.remove();
+            }
+        }
+
+        /**
+         * Rewrites the shard with only undelivered messages once dead records outweigh
+         * them; I/O thread only. The new positions are worked out on the side and only
+         * take effect, together with the new file, once it has replaced the old one; if
+         * anything fails before that, the shard carries on with the old file.
+         */
+        void compactIfNeeded() {
+            List<Moved> moved = new ArrayList<>();
+            lock.lock();
+            try {
+                long dead = end - live;
+                if (dead < COMPACT_MIN_BYTES || dead < live) return;
+                for (Box box : boxes.values()) moved.add(new Moved(box, box.head, box.count));
+            } finally {
+                lock.unlock();
+            }
+            Path tmp = tmpFile();
+            long p = 0;
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                for (Moved m : moved) {
+                    for (int k = 0; k < m.pos.length; k++) {
+                        int i = m.head + k;
+                        long done = 0;
+                        while (done < m.box.size[i]) {
+                            done += channel.transferTo(m.box.pos[i] + done, m.box.size[i] - done, out);
+                        }
+                        m.pos[k] = p;
+                        p += m.box.size[i];
+                    }
+                }
+                out.force(true);
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.err.println("Mailbox compaction of " + file + " failed: " + e.getMessage());
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ignored) {
+                    // removed on the next start
+                }
+                return;
+            }
+            FileChannel old = channel;
+            try {
+                channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                // The old channel still reads the old file, which the old positions point into.
+                System.err.println("Mailbox " + file + " cannot be reopened after compaction: " + e.getMessage());
+                return;
+            }
+            end = p;
+            lock.lock();
+            try {
+                // Expiries meanwhile only moved heads forward; the entries left are the snapshot's last ones.
+                for (Moved m : moved) {
+                    int skipped = m.box.head - m.head;
+                    for (int k = 0; k < m.box.count; k++) m.box.pos[m.box.head + k] = m.pos[skipped + k];
+                }
+            } finally {
+                lock.unlock();
+            }
+            try {
+                old.close();
+            } catch (IOException ignored) {
+                // nothing more is read from it
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package chat;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Transport between the nodes of a chat cluster. Nodes are numbered 0 to
+ * {@code nodeCount() - 1}; each node's {@link Cluster} sends and receives
+ * {@link ClusterMessage}s through one of these.
+ *
+ * Delivery is at most once. Messages from one node to another arrive in the
+ * order they were sent.
+ */
+public interface MessageBus extends Closeable {
+    /** Receives messages and link changes; called from the bus's own threads. */
+    interface Listener {
+        void onMessage(int fromNode, ClusterMessage message);
+
+        /** The link to {@code node} is (again) up. */
+        void nodeUp(int node);
+
+        /** {@code node} went away; anything it held is gone. */
+        void nodeDown(int node);
+    }
+
+    int nodeId();
+
+    int nodeCount();
+
+    void start(Listener listener) throws IOException;
+
+    /** Sends to one other node. */
+    void send(int node, ClusterMessage message);
+
+    /** Sends to every other node. */
+    void publish(ClusterMessage message);
+
+    @Override
+    void close();
+}
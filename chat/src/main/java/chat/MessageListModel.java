@@ -0,0 +1,297 @@
+package chat;
+
+import javax.swing.AbstractListModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounded, paged list model behind the GUI's chat view.
+ *
+ * Every message is appended to a spill file, so the recent conversation stays
+ * reachable without living on the heap. The model exposes a window of at most
+ * {@code capacity} consecutive messages held in a ring buffer. While the window is
+ * at the tail (the normal case) new messages are pushed in and the oldest drop out;
+ * {@link #pageOlder()} and {@link #pageNewer()} read pages back from the spill file
+ * and drop rows from the other end.
+ *
+ * The spill file is a ring of temporary segment files of equal message counts:
+ * once there are {@value #SEGMENTS}, starting a new one deletes the oldest, so
+ * disk use stays around {@code spillLimit} messages and the heap holds the window
+ * plus one file offset per kept message. {@link #close()} deletes the segments.
+ *
+ * Used on the event dispatch thread only.
+ */
+public final class MessageListModel extends AbstractListModel<ChatMessage> {
+    private static final long serialVersionUID = 1L;
+    private static final int SPILL_BUFFER = 64 * 1024;
+    private static final int SEGMENTS = 8;
+    /** Messages kept on disk when no limit is given. */
+    public static final int DEFAULT_SPILL_LIMIT = 100_000;
+
+    private final int capacity;
+    private final int page;
+    private final ChatMessage[] ring;
+    private int head;
+    private int size;
+    /** Index, in the whole conversation, of window row 0. */
+    private int first;
+    private int total;
+
+    /** Messages per segment file. */
+    private final int segmentSize;
+    /** Oldest first; the last one is being written. */
+    private final List<Segment> segments = new ArrayList<>();
+    /** Index, in the whole conversation, of the oldest message still on disk. */
+    private int oldest;
+    private boolean closed;
+    /** Records not yet written to the last segment; they start at {@link #flushed}. */
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private final DataOutputStream pendingOut = new DataOutputStream(pending);
+    private long flushed;
+
+    public MessageListModel(int capacity, int page) throws IOException {
+        this(capacity, page, DEFAULT_SPILL_LIMIT);
+    }
+
+    /** Keeps about {@code spillLimit} messages on disk, and never fewer than {@code capacity}. */
+    public MessageListModel(int capacity, int page, int spillLimit) throws IOException {
+        this.capacity = Math.max(1, capacity);
+        this.page = Math.max(1, Math.min(page, this.capacity));
+        this.ring = new ChatMessage[this.capacity];
+        // Rounded up, so that the segments left after deleting the oldest still hold the limit.
+        int kept = Math.max(spillLimit, this.capacity);
+        this.segmentSize = Math.max(this.page, (kept + SEGMENTS - 2) / (SEGMENTS - 1));
+        segments.add(new Segment(0, segmentSize));
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public ChatMessage getElementAt(int index) {
+        return ring[(head + index) % capacity];
+    }
+
+    /** Whether the newest message is in the window, so new ones are shown as they arrive. */
+    public boolean atTail() {
+        return first + size == total;
+    }
+
+    /** Whether older messages than the window's can still be read back from disk. */
+    public boolean hasOlder() {
+        return first > oldest;
+    }
+
+    public void add(ChatMessage m) {
+        if (closed) return;
+        boolean follow = atTail();
+        spill(m);
+        if (!follow) return; // scrolled back; pageNewer() catches up later
+        if (size == capacity) {
+            dropFirst(1);
+            fireIntervalRemoved(this, 0, 0);
+        }
+        ring[(head + size) % capacity] = m;
+        size++;
+        fireIntervalAdded(this, size - 1, size - 1);
+    }
+
+    /**
+     * Appends a batch with at most one removed and one added event, so the list
+     * lays out once per batch rather than once per message.
+     */
+    public void addAll(List<ChatMessage> batch) {
+        int n = batch.size();
+        if (n == 0 || closed) return;
+        boolean follow = atTail();
+        for (ChatMessage m : batch) spill(m);
+        if (!follow) return;
+        // Only the newest capacity messages can be in the window.
+        int skip = Math.max(0, n - capacity);
+        int keep = n - skip;
+        int drop = size + keep - capacity;
+        if (drop > 0) {
+            dropFirst(drop);
+            fireIntervalRemoved(this, 0, drop - 1);
+        }
+        first += skip;
+        for (int i = skip; i < n; i++) ring[(head + size++) % capacity] = batch.get(i);
+        fireIntervalAdded(this, size - keep, size - 1);
+    }
+
+    /** Loads up to one page of older messages at the top; returns how many. */
+    public int pageOlder() {
+        int n = Math.min(page, first - oldest);
+        if (n <= 0 || closed) return 0;
+        ChatMessage[] older = read(first - n, n);
+        int drop = size + n - capacity;
+        if (drop > 0) {
+            for (int i = size - drop; i < size; i++) ring[(head + i) % capacity] = null;
+            size -= drop;
+            fireIntervalRemoved(this, size, size + drop - 1);
+        }
+        head = (head - n + capacity) % capacity;
+        for (int i = 0; i < n; i++) ring[(head + i) % capacity] = older[i];
+        size += n;
+        first -= n;
+        fireIntervalAdded(this, 0, n - 1);
+        return n;
+    }
+
+    /** Loads up to one page of newer messages at the bottom; returns how many. */
+    public int pageNewer() {
+        if (closed) return 0;
+        if (first + size < oldest) {
+            // What followed the window has been deleted; carry on from the oldest message kept.
+            int gone = size;
+            if (gone > 0) {
+                dropFirst(gone);
+                fireIntervalRemoved(this, 0, gone - 1);
+            }
+            first = oldest;
+        }
+        int n = Math.min(page, total - (first + size));
+        if (n == 0) return 0;
+        ChatMessage[] newer = read(first + size, n);
+        int drop = size + n - capacity;
+        if (drop > 0) {
+            dropFirst(drop);
+            fireIntervalRemoved(this, 0, drop - 1);
+        }
+        for (int i = 0; i < n; i++) ring[(head + size + i) % capacity] = newer[i];
+        size += n;
+        fireIntervalAdded(this, size - n, size - 1);
+        return n;
+    }
+
+    private void dropFirst(int n) {
+        for (int i = 0; i < n; i++) ring[(head + i) % capacity] = null;
+        head = (head + n) % capacity;
+        size -= n;
+        first += n;
+    }
+
+    private void spill(ChatMessage m) {
+        try {
+            Segment s = segments.get(segments.size() - 1);
+            if (s.count == segmentSize) s = nextSegment();
+            pendingOut.writeByte((m.system ? 1 : 0) | (m.me ? 2 : 0));
+            writeString(m.sender);
+            writeString(m.text);
+            writeString(m.time);
+            total++;
+            s.offsets[++s.count] = flushed + pending.size();
+            if (pending.size() >= SPILL_BUFFER) flushSpill();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Starts a new segment after the full last one, deleting the oldest if there are too many. */
+    private Segment nextSegment() throws IOException {
+        flushSpill();
+        Segment s = new Segment(total, segmentSize);
+        segments.add(s);
+        flushed = 0;
+        if (segments.size() > SEGMENTS) {
+            segments.remove(0).delete();
+            oldest = segments.get(0).start;
+        }
+        return s;
+    }
+
+    private void writeString(String s) throws IOException {
+        byte[] b = s == null ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+        pendingOut.writeInt(b.length);
+        pendingOut.write(b);
+    }
+
+    private void flushSpill() throws IOException {
+        if (pending.size() == 0) return;
+        RandomAccessFile spill = segments.get(segments.size() - 1).data;
+        spill.seek(flushed);
+        spill.write(pending.toByteArray());
+        flushed += pending.size();
+        pending.reset();
+    }
+
+    /** Reads {@code n} messages starting at conversation index {@code from}, which must still be on disk. */
+    private ChatMessage[] read(int from, int n) {
+        try {
+            flushSpill();
+            ChatMessage[] out = new ChatMessage[n];
+            for (int done = 0; done < n; ) {
+                Segment s = segments.get((from + done - oldest) / segmentSize);
+                int i = from + done - s.start;
+                int k = Math.min(n - done, s.count - i);
+                byte[] bytes = new byte[(int) (s.offsets[i + k] - s.offsets[i])];
+                s.data.seek(s.offsets[i]);
+                s.data.readFully(bytes);
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+                for (int j = 0; j < k; j++) {
+                    int flags = in.readByte();
+                    String sender = readString(in);
+                    String text = readString(in);
+                    String time = readString(in);
+                    out[done++] = new ChatMessage((flags & 1) != 0, (flags & 2) != 0,
+                            (flags & 1) != 0 ? null : sender, text, time);
+                }
+            }
+            return out;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /** Deletes the spill files; messages added afterwards are ignored. */
+    public void close() {
+        if (closed) return;
+        closed = true;
+        for (Segment s : segments) s.delete();
+        segments.clear();
+    }
+
+    /** One spill file: {@code count} messages from conversation index {@code start} on. */
+    private static final class Segment {
+        final int start;
+        final File file;
+        final RandomAccessFile data;
+        /** File offset of each message; offsets[count] is where the next one goes. */
+        final long[] offsets;
+        int count;
+
+        Segment(int start, int size) throws IOException {
+            this.start = start;
+            this.offsets = new long[size + 1];
+            file = File.createTempFile("chat-scrollback", ".bin");
+            file.deleteOnExit();
+            data = new RandomAccessFile(file, "rw");
+        }
+
+        void delete() {
+            try {
+                data.close();
+            } catch (IOException e) {
+                // Deleting it below is all that matters.
+            }
+            if (!file.delete()) System.err.println("Could not delete scrollback file " + file);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One non-blocking client channel owned by a {@link NioServer.EventLoop}.
+ *
+ * Reads go through the attached {@link ClientHandler}'s {@link WireDecoder}, which
+ * frames them into lines or binary frames. Writes may be queued from any thread on the handler's
+ * {@link OutboundQueue}; the owning loop copies them through a per-connection
+ * buffer into the channel.
+ */
+public class NioConnection {
+    private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+
+    private final NioServer.EventLoop loop;
+    private final SocketChannel channel;
+    SelectionKey key;
+    private ClientHandler handler;
+
+    private final ByteBuffer writeBuf = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private byte[] partial;
+    private int partialOffset;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    NioConnection(NioServer.EventLoop loop, SocketChannel channel) {
+        this.loop = loop;
+        this.channel = channel;
+        writeBuf.flip();
+    }
+
+    void attach(ClientHandler handler) {
+        this.handler = handler;
+        handler.start();
+    }
+
+    /** Called on the loop thread when the channel is readable. */
+    void onReadable() {
+        try {
+            int n = channel.read(handler.decoder().buffer());
+            if (n > 0) handler.touch();
+            if (n < 0 || !handler.decoder().decode()) {
+                close();
+                return;
+            }
+            // A login waiting for its cluster claim: read nothing more until it is done.
+            if (handler.loggingIn()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                return;
+            }
+            // Over a rate limit: stop reading for a while and let TCP push back.
+            long pause = handler.readPauseNanos();
+            if (pause > 0) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                loop.schedule(pause, this::resumeReads);
+            }
+        } catch (IOException e) {
+            System.err.println("Connection error: " + e.getMessage());
+            close();
+        }
+    }
+
+    /** Runs the task on this connection's loop thread; safe to call from any thread. */
+    void execute(Runnable task) {
+        loop.execute(task);
+    }
+
+    /**
+     * Carries on after a login that waited for its cluster claim: decodes what arrived
+     * behind it, then reads again. Loop thread only.
+     */
+    void loginFinished() {
+        if (closed.get() || !key.isValid()) return;
+        try {
+            if (!handler.decoder().decode()) {
+                close();
+                return;
+            }
+        } catch (IOException e) {
+            System.err.println("Connection error: " + e.getMessage());
+            close();
+            return;
+        }
+        if (!handler.loggingIn()) resumeReads();
+    }
+
+    private void resumeReads() {
+        if (closed.get() || !key.isValid()) return;
+        long pause = handler.readPauseNanos();
+        if (pause > 0) loop.schedule(pause, this::resumeReads);
+        else key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+    }
+
+    /** Schedules a flush of the handler's outbound queue; safe to call from any thread. */
+    void requestFlush() {
+        if (closed.get()) return;
+        if (flushScheduled.compareAndSet(false, true)) {
+            if (loop.inLoop()) flush();
+            else loop.execute(this::flush);
+        }
+    }
+
+    /** Drains the outbound queue into the channel; loop thread only. */
+    void flush() {
+        flushScheduled.set(false);
+        if (closed.get()) return;
+        try {
+            while (true) {
+                if (!writeBuf.hasRemaining()) {
+                    writeBuf.clear();
+                    fillWriteBuffer();
+                    writeBuf.flip();
+                    if (!writeBuf.hasRemaining()) break;
+                }
+                channel.write(writeBuf);
+                if (writeBuf.hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            System.err.println("Connection error: " + e.getMessage());
+            close();
+        }
+    }
+
+    private void fillWriteBuffer() {
+        while (writeBuf.hasRemaining()) {
+            if (partial == null) {
+                Frame next = handler.outbound().poll();
+                if (next == null) return;
+                partial = handler.encode(next);
+                partialOffset = 0;
+            }
+            int len = Math.min(writeBuf.remaining(), partial.length - partialOffset);
+            writeBuf.put(partial, partialOffset, len);
+            partialOffset += len;
+            if (partialOffset == partial.length) partial = null;
+        }
+    }
+
+    /**
+     * Closes the channel and disconnects the handler; safe to call from any thread.
+     * The key is only ever cancelled on the loop thread, so the loop never finds it
+     * cancelled halfway through handling it.
+     */
+    void close() {
+        if (!loop.inLoop() && loop.isRunning()) {
+            if (!closed.get()) loop.execute(this::close);
+            return;
+        }
+        if (!closed.compareAndSet(false, true)) return;
+        if (key != null) key.cancel();
+        try { channel.close(); } catch (IOException ignored) { }
+        if (handler != null) handler.disconnect();
+    }
+}
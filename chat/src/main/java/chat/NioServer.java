@@ -0,0 +1,186 @@
+package chat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking front end for {@link ChatServer}: one acceptor plus a fixed set of
+ * selector event loops. Accepted channels are spread round-robin over the loops
+ * and stay on the same loop for their whole life.
+ */
+public class NioServer {
+    private final ChatServer server;
+    private final ServerSocketChannel acceptChannel;
+    private final EventLoop[] loops;
+    private volatile boolean running = true;
+
+    public NioServer(ChatServer server, int port, int loopCount) throws IOException {
+        this.server = server;
+        acceptChannel = ServerSocketChannel.open();
+        acceptChannel.bind(new InetSocketAddress(port));
+        loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) loops[i] = new EventLoop(i);
+    }
+
+    public int getLocalPort() {
+        return acceptChannel.socket().getLocalPort();
+    }
+
+    /** Starts the event loops and runs the accept loop on the calling thread. */
+    public void start() {
+        for (EventLoop loop : loops) loop.thread.start();
+        int next = 0;
+        try {
+            while (running) {
+                SocketChannel ch = acceptChannel.accept();
+                ch.configureBlocking(false);
+                ch.socket().setTcpNoDelay(true);
+                // Finds dead peers of clients that do not answer heartbeats.
+                ch.socket().setKeepAlive(true);
+                EventLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+                loop.register(ch);
+            }
+        } catch (IOException e) {
+            System.out.println("Server stopped: " + e.getMessage());
+        }
+    }
+
+    public void close() {
+        running = false;
+        try { acceptChannel.close(); } catch (IOException ignored) { }
+        for (EventLoop loop : loops) loop.close();
+    }
+
+    /** A task due at a System.nanoTime deadline. */
+    private static final class Timer implements Comparable<Timer> {
+        final long deadline;
+        final Runnable task;
+
+        Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer o) {
+            return Long.compare(deadline - o.deadline, 0);
+        }
+    }
+
+    /** A single selector thread owning a subset of the connections. */
+    final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        /** Delayed tasks; loop thread only. */
+        private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+        final Thread thread;
+
+        EventLoop(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "nio-loop-" + index);
+            thread.setDaemon(true);
+        }
+
+        void register(SocketChannel ch) {
+            execute(() -> {
+                NioConnection conn = new NioConnection(this, ch);
+                try {
+                    conn.key = ch.register(selector, SelectionKey.OP_READ, conn);
+                } catch (IOException e) {
+                    conn.close();
+                    return;
+                }
+                conn.attach(new ClientHandler(server, conn));
+            });
+        }
+
+        /** Runs the task on this loop's thread; safe to call from any thread. */
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread) selector.wakeup();
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        /** Whether queued tasks will still run: false once the loop has closed its selector. */
+        boolean isRunning() {
+            return selector.isOpen();
+        }
+
+        /** Runs the task on this loop after {@code delayNanos}; loop thread only. */
+        void schedule(long delayNanos, Runnable task) {
+            timers.add(new Timer(System.nanoTime() + delayNanos, task));
+        }
+
+        /** How long select may block: until the next timer, or 0 (no limit) without one. */
+        private long selectTimeoutMillis() {
+            if (!tasks.isEmpty()) return 1;
+            Timer next = timers.peek();
+            if (next == null) return 0;
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis(next.deadline - System.nanoTime() + 999_999));
+        }
+
+        private void runTimers() {
+            long now = System.nanoTime();
+            Timer t;
+            while ((t = timers.peek()) != null && t.deadline - now <= 0) {
+                timers.poll();
+                run(t.task);
+            }
+        }
+
+        private void run(Runnable task) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("Event loop task failed: " + e);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (selector.isOpen()) {
+                try {
+                    selector.select(selectTimeoutMillis());
+                } catch (IOException | ClosedSelectorException e) {
+                    break;
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NioConnection conn = (NioConnection) key.attachment();
+                    try {
+                        if (!key.isValid()) { conn.close(); continue; }
+                        if (key.isReadable()) conn.onReadable();
+                        if (key.isValid() && key.isWritable()) conn.flush();
+                    } catch (CancelledKeyException e) {
+                        conn.close();
+                    }
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) run(task);
+                runTimers();
+            }
+        }
+
+        void close() {
+            execute(() -> {
+                for (SelectionKey key : selector.keys()) {
+                    Object att = key.attachment();
+                    if (att instanceof NioConnection) ((NioConnection) att).close();
+                }
+                try { selector.close(); } catch (IOException ignored) { }
+            });
+        }
+    }
+}
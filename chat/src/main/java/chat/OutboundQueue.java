@@ -0,0 +1,196 @@
+package chat;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded per-client queue of encoded {@link Frame}s waiting to be written.
+ *
+ * Senders only ever enqueue, so a client with a full TCP window backs up its own
+ * queue instead of stalling everyone else's broadcast. What happens when the queue
+ * is full is decided by the {@link Overflow} policy.
+ *
+ * {@link Frame#control} frames (handshake acknowledgements, session frames) are
+ * never merged or dropped; the client would lose its place in the protocol. A
+ * full queue may run over its capacity by the few of them it holds.
+ *
+ * A queue can also carry a lazily read backlog (such as a history replay). The
+ * writer pulls backlog frames one at a time ahead of live traffic, so a long
+ * replay never sits in memory or counts against the capacity.
+ */
+public class OutboundQueue {
+    public enum Overflow {
+        /** Discard the oldest queued frame to make room. */
+        DROP_OLDEST,
+        /** Refuse the frame; the caller disconnects the slow consumer. */
+        DISCONNECT,
+        /** Append the frame to the last queued chunk so it goes out in the same write. */
+        COALESCE
+    }
+
+    private static final int MAX_COALESCED_BYTES = 64 * 1024;
+
+    private final ArrayDeque<Frame> items;
+    private final int capacity;
+    private final Overflow policy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private boolean closed;
+    private volatile boolean binary;
+    private final AtomicReference<Iterator<Frame>> backlog = new AtomicReference<>();
+
+    private volatile int depth;
+    private volatile long dropped;
+    private volatile long coalesced;
+
+    public OutboundQueue(int capacity, Overflow policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.items = new ArrayDeque<>(Math.min(capacity, 64));
+    }
+
+    /**
+     * Queues one frame. Returns false only under {@link Overflow#DISCONNECT}
+     * when the queue is full, in which case the frame is not queued.
+     */
+    public boolean offer(Frame frame) {
+        lock.lock();
+        try {
+            if (closed) return true;
+            if (items.size() >= capacity && !frame.control) {
+                switch (policy) {
+                    case DISCONNECT:
+                        dropped++;
+                        return false;
+                    case COALESCE:
+                        Frame last = items.peekLast();
+                        if (!last.control) {
+                            byte[] tail = last.bytes(binary);
+                            byte[] next = frame.bytes(binary);
+                            if (tail.length + next.length <= MAX_COALESCED_BYTES) {
+                                // Frames are shared with other recipients, so merge into a copy.
+                                byte[] merged = new byte[tail.length + next.length];
+                                System.arraycopy(tail, 0, merged, 0, tail.length);
+                                System.arraycopy(next, 0, merged, tail.length, next.length);
+                                items.pollLast();
+                                items.addLast(Frame.wrap(merged));
+                                coalesced++;
+                                return true;
+                            }
+                        }
+                        // The tail is a control frame or already at its size cap; fall back to dropping.
+                        dropOldest();
+                        break;
+                    default:
+                        dropOldest();
+                }
+            }
+            items.addLast(frame);
+            depth = items.size();
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Drops the oldest frame that is not a control frame, if there is one. */
+    private void dropOldest() {
+        for (Iterator<Frame> it = items.iterator(); it.hasNext(); ) {
+            if (!it.next().control) {
+                it.remove();
+                dropped++;
+                return;
+            }
+        }
+    }
+
+    /** Coalesced chunks are encoded for the binary protocol from now on. */
+    void useBinary() {
+        binary = true;
+    }
+
+    /**
+     * Queues {@code frames} behind whatever of the backlog is still unsent. Only the
+     * single writer ever iterates it, so the iterator need not be thread-safe.
+     */
+    public void addBacklog(final Iterator<Frame> frames) {
+        lock.lock();
+        try {
+            if (closed) return;
+            final Iterator<Frame> current = backlog.get();
+            backlog.set(current == null ? frames : new Iterator<Frame>() {
+                @Override public boolean hasNext() { return current.hasNext() || frames.hasNext(); }
+                @Override public Frame next() { return current.hasNext() ? current.next() : frames.next(); }
+            });
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Frame pollBacklog() {
+        Iterator<Frame> b = backlog.get();
+        if (b == null) return null;
+        if (b.hasNext()) return b.next();
+        backlog.compareAndSet(b, null);
+        return null;
+    }
+
+    /** Next queued frame, or null if the queue is empty. */
+    public Frame poll() {
+        Frame replay = pollBacklog();
+        if (replay != null) return replay;
+        lock.lock();
+        try {
+            Frame frame = items.pollFirst();
+            depth = items.size();
+            return frame;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Waits for the next frame; returns null once the queue has been closed. */
+    public Frame take() throws InterruptedException {
+        while (true) {
+            Frame replay = pollBacklog();
+            if (replay != null) return replay;
+            lock.lock();
+            try {
+                if (closed) return null;
+                Frame frame = items.pollFirst();
+                if (frame != null) {
+                    depth = items.size();
+                    return frame;
+                }
+                if (backlog.get() == null) notEmpty.await();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** Discards everything queued and wakes the writer so it can exit. */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            items.clear();
+            backlog.set(null);
+            depth = 0;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int depth() { return depth; }
+
+    public long dropped() { return dropped; }
+
+    public long coalesced() { return coalesced; }
+}
@@ -0,0 +1,224 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Postings lists of the search index: ascending document ids, stored as deltas
+ * in variable-length ints (7 bits per byte, high bit set on all but the last).
+ *
+ * A list is {@code varint df}, then the deltas in blocks of {@link #BLOCK}. A
+ * list longer than one block starts with a skip table of every block's last id
+ * and byte length, so {@link Cursor#advance} jumps over blocks without decoding
+ * them. Intersecting a rare term with a common one then reads a few blocks of
+ * the common list, not all of it.
+ */
+final class Postings {
+    static final int BLOCK = 128;
+    /** Returned by cursors once they are past the last document. */
+    static final int NO_MORE = Integer.MAX_VALUE;
+
+    private Postings() { }
+
+    /** A growable byte array with varint writes. */
+    static final class Bytes {
+        byte[] a = new byte[256];
+        int length;
+
+        void varint(int v) {
+            if (length + 5 > a.length) a = Arrays.copyOf(a, Math.max(2 * a.length, length + 5));
+            while ((v & ~0x7F) != 0) {
+                a[length++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            a[length++] = (byte) v;
+        }
+
+        void write(Bytes b) {
+            if (length + b.length > a.length) a = Arrays.copyOf(a, Math.max(2 * a.length, length + b.length));
+            System.arraycopy(b.a, 0, a, length, b.length);
+            length += b.length;
+        }
+    }
+
+    /** Appends the encoding of {@code docs[0, n)} to {@code out}; {@code scratch} is reused. */
+    static void encode(int[] docs, int n, Bytes out, Bytes scratch) {
+        out.varint(n);
+        if (n <= BLOCK) {
+            int prev = -1;
+            for (int i = 0; i < n; i++) {
+                out.varint(docs[i] - prev);
+                prev = docs[i];
+            }
+            return;
+        }
+        scratch.length = 0;
+        int prev = -1;
+        for (int start = 0; start < n; start += BLOCK) {
+            int end = Math.min(n, start + BLOCK);
+            int before = scratch.length;
+            for (int i = start; i < end; i++) {
+                scratch.varint(docs[i] - prev);
+                prev = docs[i];
+            }
+            int lastBefore = start == 0 ? -1 : docs[start - 1];
+            out.varint(docs[end - 1] - lastBefore);
+            out.varint(scratch.length - before);
+        }
+        out.write(scratch);
+    }
+
+    static int readVarint(ByteBuffer buf, int[] pos) {
+        int p = pos[0];
+        int v = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buf.get(p++);
+            v |= (b & 0x7F) << shift;
+            if (b >= 0) break;
+        }
+        pos[0] = p;
+        return v;
+    }
+
+    /** Walks a list in ascending order. */
+    abstract static class Cursor {
+        /** The number of documents in the list. */
+        abstract int size();
+
+        /** The next document, or {@link #NO_MORE}. */
+        abstract int next();
+
+        /** The first document at or after {@code target}, moving forward only; {@link #NO_MORE} if none. */
+        abstract int advance(int target);
+    }
+
+    /** A cursor over ids held in memory. */
+    static final class ArrayCursor extends Cursor {
+        private final int[] docs;
+        private final int n;
+        private int i = -1;
+
+        ArrayCursor(int[] docs, int n) {
+            this.docs = docs;
+            this.n = n;
+        }
+
+        @Override int size() { return n; }
+
+        @Override int next() {
+            return ++i < n ? docs[i] : NO_MORE;
+        }
+
+        @Override int advance(int target) {
+            if (i >= 0 && i < n && docs[i] >= target) return docs[i];
+            int from = Math.max(i + 1, 0);
+            if (from >= n) {
+                i = n;
+                return NO_MORE;
+            }
+            int k = Arrays.binarySearch(docs, from, n, target);
+            i = k >= 0 ? k : -k - 1;
+            return i < n ? docs[i] : NO_MORE;
+        }
+    }
+
+    /** A cursor over an encoded list at {@code start} in {@code buf}, read with absolute gets. */
+    static final class EncodedCursor extends Cursor {
+        private final ByteBuffer buf;
+        private final int df;
+        private final int blocks;
+        /** Per block: its last id and where its deltas start; null for a single block. */
+        private int[] blockLast;
+        private int[] blockStart;
+        private final int[] pos = new int[1];
+        private int block = -1;
+        private int left;
+        private int doc = -1;
+
+        EncodedCursor(ByteBuffer buf, int start) {
+            this.buf = buf;
+            pos[0] = start;
+            df = readVarint(buf, pos);
+            blocks = (df + BLOCK - 1) / BLOCK;
+            if (df > BLOCK) {
+                blockLast = new int[blocks];
+                blockStart = new int[blocks];
+                int last = -1;
+                int[] lengths = new int[blocks];
+                for (int b = 0; b < blocks; b++) {
+                    last += readVarint(buf, pos);
+                    blockLast[b] = last;
+                    lengths[b] = readVarint(buf, pos);
+                }
+                int p = pos[0];
+                for (int b = 0; b < blocks; b++) {
+                    blockStart[b] = p;
+                    p += lengths[b];
+                }
+            }
+        }
+
+        @Override int size() { return df; }
+
+        private void enter(int b) {
+            block = b;
+            if (blockStart != null) pos[0] = blockStart[b];
+            doc = b == 0 ? -1 : blockLast[b - 1];
+            left = Math.min(BLOCK, df - b * BLOCK);
+        }
+
+        @Override int next() {
+            if (left == 0) {
+                if (block + 1 >= blocks) return doc = NO_MORE;
+                enter(block + 1);
+            }
+            left--;
+            return doc += readVarint(buf, pos);
+        }
+
+        @Override int advance(int target) {
+            if (doc >= target) return doc;
+            if (blockLast != null && (block < 0 || target > blockLast[block])) {
+                // Skip straight to the first block that can hold target.
+                int lo = Math.max(block, 0);
+                int hi = blocks - 1;
+                if (target > blockLast[hi]) return doc = NO_MORE;
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if (blockLast[mid] < target) lo = mid + 1;
+                    else hi = mid;
+                }
+                if (lo != block) enter(lo);
+            }
+            int d;
+            while ((d = next()) < target) { }
+            return d;
+        }
+    }
+
+    /**
+     * Emits, in ascending order, the documents at or after {@code from} that are in
+     * every list. Leads with the shortest list and lets the others skip ahead to it.
+     */
+    static int[] intersect(Cursor[] lists, int from) {
+        Cursor[] c = lists.clone();
+        Arrays.sort(c, (a, b) -> Integer.compare(a.size(), b.size()));
+        int[] out = new int[16];
+        int n = 0;
+        int doc = c[0].advance(from);
+        outer:
+        while (doc != NO_MORE) {
+            for (int i = 1; i < c.length; i++) {
+                int d = c[i].advance(doc);
+                if (d != doc) {
+                    doc = d == NO_MORE ? NO_MORE : c[0].advance(d);
+                    continue outer;
+                }
+            }
+            if (n == out.length) out = Arrays.copyOf(out, 2 * n);
+            out[n++] = doc;
+            doc = c[0].next();
+        }
+        return Arrays.copyOf(out, n);
+    }
+}
@@ -0,0 +1,106 @@
+package chat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Flood protection for one connection: its own message and byte buckets plus
+ * the server-wide ones it shares with every other connection. A bucket that is
+ * off is null.
+ *
+ * A message the buckets can absorb is admitted and, if they ran short, sets a
+ * read pause: the connection stops reading until they recover, so TCP pushes
+ * back on the sender. Messages that arrive anyway (already buffered) and would
+ * put one of its own buckets more than --max-throttle-ms in debt are dropped,
+ * each a strike; --flood-strikes strikes without a quiet spell in between
+ * disconnect. The server-wide buckets only ever throttle: when they are that far
+ * behind, the message still goes through and the connection pauses for
+ * --max-throttle-ms, since a busy server is not this sender's fault.
+ *
+ * Used by the connection's reader only, apart from the shared buckets and counters.
+ */
+final class RateLimiter {
+    enum Verdict { ADMIT, DROP, DISCONNECT }
+
+    /** Server-wide counters. */
+    static final class Counters {
+        final LongAdder throttled = new LongAdder();
+        final LongAdder dropped = new LongAdder();
+        final LongAdder disconnected = new LongAdder();
+    }
+
+    /** Strikes are forgotten after this long without one. */
+    private static final long STRIKE_RESET_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final TokenBucket messages;
+    private final TokenBucket bytes;
+    private final TokenBucket globalMessages;
+    private final TokenBucket globalBytes;
+    private final long maxWaitNanos;
+    private final int maxStrikes;
+    private final Counters counters;
+
+    private long pauseUntil;
+    private int strikes;
+    private long lastStrike;
+
+    RateLimiter(TokenBucket messages, TokenBucket bytes, TokenBucket globalMessages, TokenBucket globalBytes,
+                long maxWaitNanos, int maxStrikes, Counters counters) {
+        this.messages = messages;
+        this.bytes = bytes;
+        this.globalMessages = globalMessages;
+        this.globalBytes = globalBytes;
+        this.maxWaitNanos = maxWaitNanos;
+        this.maxStrikes = maxStrikes;
+        this.counters = counters;
+        long now = System.nanoTime();
+        pauseUntil = now;
+        lastStrike = now - STRIKE_RESET_NANOS;
+    }
+
+    /** Accounts for one inbound message of {@code length} bytes. */
+    Verdict admit(int length) {
+        long now = System.nanoTime();
+        // A bucket that refuses keeps whatever the ones before it took; the sender pays for that.
+        long wait = take(0, messages, 1, now);
+        wait = take(wait, bytes, length, now);
+        if (wait >= 0) {
+            long global = take(0, globalMessages, 1, now);
+            global = take(global, globalBytes, length, now);
+            wait = Math.max(wait, global < 0 ? maxWaitNanos : global);
+        }
+        if (wait < 0) {
+            counters.dropped.increment();
+            pauseUntil = Math.max(pauseUntil, now + maxWaitNanos);
+            if (now - lastStrike > STRIKE_RESET_NANOS) strikes = 0;
+            lastStrike = now;
+            if (maxStrikes > 0 && ++strikes >= maxStrikes) {
+                counters.disconnected.increment();
+                return Verdict.DISCONNECT;
+            }
+            return Verdict.DROP;
+        }
+        if (wait > 0) {
+            counters.throttled.increment();
+            pauseUntil = Math.max(pauseUntil, now + wait);
+        }
+        return Verdict.ADMIT;
+    }
+
+    /** Takes from {@code bucket} unless an earlier one refused: the longer of the two waits, or -1 if refused. */
+    private long take(long wait, TokenBucket bucket, long cost, long now) {
+        if (wait < 0 || bucket == null) return wait;
+        long w = bucket.acquire(cost, now, maxWaitNanos);
+        return w < 0 ? -1 : Math.max(wait, w);
+    }
+
+    /** Whether this drop is the first of a spell, worth telling the user about. */
+    boolean firstStrike() {
+        return strikes == 1;
+    }
+
+    /** How long the reader should stop reading, from now; 0 if it may go on. */
+    long pauseNanos() {
+        return Math.max(0, pauseUntil - System.nanoTime());
+    }
+}
@@ -0,0 +1,240 @@
+package chat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Queue;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A named channel: its members, its replay history and its recent messages.
+ *
+ * Members are kept in a copy-on-write array. Joins and leaves copy it under a
+ * lock; a broadcast reads the current array once and iterates it without
+ * copying, so fan-out cost depends only on the size of this room.
+ *
+ * Every message gets the room's next sequence number and a slot in a ring of
+ * recent messages under the same lock as joins and leaves, together with the
+ * member array of that moment. Fan-out happens after the lock is released: one
+ * publisher at a time drains the numbered messages in order and queues each for
+ * the members it was published to, while other publishers just leave theirs for
+ * it. Each member therefore receives the room's messages in sequence order, and
+ * a leave finishes the fan-out of earlier messages before returning, so none
+ * arrive from a room after leaving it; a dropped session can then be resumed with
+ * only the messages after the last number it saw. Socket flushes and
+ * slow-consumer disconnects run after the fan-out.
+ *
+ * Every join and leave also bumps the room's presence version and updates a
+ * sorted index of member names, which backs paged and prefix-filtered /list
+ * replies and the snapshots of the presence feed.
+ */
+public final class Room {
+    public static final String LOBBY = "lobby";
+
+    final String name;
+    /** {@code "#name "}, prefixed to this room's lines in the history file. */
+    final byte[] tag;
+    final HistoryStore history;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Held by whichever thread is draining {@link #pending}. */
+    private final ReentrantLock fanOut = new ReentrantLock();
+    /** Numbered messages not yet queued for their members, in sequence order; added to under {@link #lock}. */
+    private final Queue<Published> pending = new ConcurrentLinkedQueue<>();
+    private volatile ClientHandler[] members = new ClientHandler[0];
+    private final NavigableSet<String> names = new ConcurrentSkipListSet<>();
+    /** Bumped on every membership change; written under {@link #lock}. */
+    private long version;
+    /** The last message's sequence number; written under {@link #lock}. */
+    private volatile long seq;
+    /** Message {@code n} is at {@code n % length} until overwritten; null when resuming is off. */
+    private final Frame[] recent;
+
+    Room(String name, HistoryStore history, int recentCapacity) {
+        this.name = name;
+        this.tag = ("#" + name + " ").getBytes(StandardCharsets.UTF_8);
+        this.history = history;
+        this.recent = recentCapacity > 0 ? new Frame[recentCapacity] : null;
+    }
+
+    /** Room names are case-insensitive: 1-32 letters, digits, '-' or '_', with an optional leading '#'. */
+    static String normalize(String requested) {
+        String n = requested.startsWith("#") ? requested.substring(1) : requested;
+        if (!n.matches("[A-Za-z0-9_-]{1,32}")) return null;
+        return n.toLowerCase();
+    }
+
+    /** Adds a member; returns the new presence version, or -1 if already a member. */
+    long add(ClientHandler h) {
+        lock.lock();
+        try {
+            ClientHandler[] m = members;
+            for (ClientHandler x : m) if (x == h) return -1;
+            ClientHandler[] grown = Arrays.copyOf(m, m.length + 1);
+            grown[m.length] = h;
+            members = grown;
+            names.add(h.username());
+            return ++version;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Removes a member; returns the new presence version, or -1 if not a member. */
+    long remove(ClientHandler h) {
+        long v = -1;
+        lock.lock();
+        try {
+            ClientHandler[] m = members;
+            for (int i = 0; i < m.length; i++) {
+                if (m[i] != h) continue;
+                ClientHandler[] shrunk = new ClientHandler[m.length - 1];
+                System.arraycopy(m, 0, shrunk, 0, i);
+                System.arraycopy(m, i + 1, shrunk, i, m.length - i - 1);
+                members = shrunk;
+                names.remove(h.username());
+                v = ++version;
+                break;
+            }
+        } finally {
+            lock.unlock();
+        }
+        // Whatever was published while h was a member reaches it before anything it is sent next.
+        if (v >= 0) deliver(true);
+        return v;
+    }
+
+    /**
+     * Numbers a {@link TextProtocol#formatChat} line with the next sequence number
+     * and queues it for every member; the line is shared, not copied. If another
+     * publisher is already fanning out, the message is left for it to deliver.
+     */
+    void publish(byte type, long timestamp, byte[] line, int nameLength, int payloadLength) {
+        lock.lock();
+        try {
+            long n = seq + 1;
+            Frame frame = Frame.line(type, n, timestamp, line, nameLength, payloadLength);
+            if (recent != null) recent[(int) (n % recent.length)] = frame;
+            seq = n;
+            pending.add(new Published(frame, members));
+        } finally {
+            lock.unlock();
+        }
+        deliver(false);
+    }
+
+    /** Fans out pending messages unless another thread already is; with {@code wait}, waits for that thread and then drains too. */
+    private void deliver(boolean wait) {
+        if (wait) fanOut.lock();
+        else if (!fanOut.tryLock()) return;
+        do {
+            List<ClientHandler> slow;
+            try {
+                slow = drain();
+            } finally {
+                fanOut.unlock();
+            }
+            if (slow != null) for (ClientHandler h : slow) h.slowConsumer();
+            // A message added just before the unlock found the lock held and was left to us.
+        } while (!pending.isEmpty() && fanOut.tryLock());
+    }
+
+    /** Queues every pending message for its members and flushes them; returns the slow consumers found. Holds {@link #fanOut}. */
+    private List<ClientHandler> drain() {
+        List<ClientHandler> slow = null;
+        Published p;
+        while ((p = pending.poll()) != null) {
+            for (ClientHandler h : p.to) {
+                if (h.offer(p.frame)) continue;
+                if (slow == null) slow = new ArrayList<>();
+                slow.add(h);
+            }
+            for (ClientHandler h : p.to) h.flushQueued();
+        }
+        return slow;
+    }
+
+    /** The sequence number of the room's latest message; 0 before the first. */
+    long seq() {
+        return seq;
+    }
+
+    /**
+     * Puts {@code next} in {@code old}'s place, without a presence change, and
+     * queues the kept messages numbered after {@code after} as {@code next}'s
+     * backlog, ahead of anything published from now on. Returns them; if the
+     * first one is numbered above {@code after + 1}, older ones were lost.
+     * Returns null if {@code old} is not a member.
+     */
+    Frame[] resume(ClientHandler old, ClientHandler next, long after) {
+        lock.lock();
+        try {
+            ClientHandler[] m = members.clone();
+            int i = 0;
+            while (i < m.length && m[i] != old) i++;
+            if (i == m.length) return null;
+            m[i] = next;
+            members = m;
+            long from = Math.max(after + 1, recent != null ? seq - recent.length + 1 : seq + 1);
+            Frame[] missed = new Frame[(int) Math.max(0, seq - from + 1)];
+            for (int k = 0; k < missed.length; k++) missed[k] = recent[(int) ((from + k) % recent.length)];
+            next.backlog(missed);
+            return missed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** The current members; the array is a snapshot and must not be modified. */
+    ClientHandler[] members() {
+        return members;
+    }
+
+    public int size() {
+        return members.length;
+    }
+
+    /** A presence snapshot line, {@code [USERLIST]#<room> <version> name,name,...}, consistent with its version. */
+    String presenceSnapshot() {
+        lock.lock();
+        try {
+            StringJoiner list = new StringJoiner(",", TextProtocol.USERLIST + "#" + name + " " + version + " ", "");
+            for (String name : names) list.add(name);
+            return list.toString();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** The member names starting with {@code prefix} (empty for all), in name order. */
+    NavigableSet<String> names(String prefix) {
+        if (prefix.isEmpty()) return names;
+        return names.subSet(prefix, true, prefix + Character.MAX_VALUE, false);
+    }
+
+    /** Page {@code page} (from 0) of {@link #names(String)}, {@code size} names per page. */
+    List<String> page(String prefix, int page, int size) {
+        List<String> out = new ArrayList<>(size);
+        Iterator<String> it = names(prefix).iterator();
+        for (long skip = (long) page * size; skip > 0 && it.hasNext(); skip--) it.next();
+        while (out.size() < size && it.hasNext()) out.add(it.next());
+        return out;
+    }
+
+    /** A numbered message and the members it was published to. */
+    private static final class Published {
+        final Frame frame;
+        final ClientHandler[] to;
+
+        Published(Frame frame, ClientHandler[] to) {
+            this.frame = frame;
+            this.to = to;
+        }
+    }
+}
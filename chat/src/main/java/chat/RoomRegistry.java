@@ -0,0 +1,117 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * All rooms, split into independently locked shards by name hash, so creating or
+ * looking up rooms on different shards never contends. The hot path does not go
+ * through the registry at all: each {@link ClientHandler} holds its current room.
+ *
+ * Each room has its own {@link HistoryStore}: the lobby uses the history directory
+ * itself (where the single shared store used to live), other rooms use
+ * {@code rooms/<name>} below it. Rooms are kept once created.
+ */
+public final class RoomRegistry {
+    private static final class Shard {
+        final ReentrantLock lock = new ReentrantLock();
+        final Map<String, Room> rooms = new HashMap<>();
+    }
+
+    private final Shard[] shards;
+    private final int mask;
+    private final Path historyDir;
+    private final long segmentBytes;
+    private final long segmentMillis;
+    private final int maxRooms;
+    private final int recentCapacity;
+    private final AtomicInteger count = new AtomicInteger();
+    private final Room lobby;
+
+    /** {@code recentCapacity} is how many recent messages each room keeps for resuming sessions. */
+    public RoomRegistry(int shardCount, int maxRooms, Path historyDir, long segmentBytes, long segmentMillis,
+                        int recentCapacity) throws IOException {
+        int n = 1;
+        while (n < shardCount) n <<= 1;
+        shards = new Shard[n];
+        for (int i = 0; i < n; i++) shards[i] = new Shard();
+        mask = n - 1;
+        this.historyDir = historyDir;
+        this.segmentBytes = segmentBytes;
+        this.segmentMillis = segmentMillis;
+        this.maxRooms = maxRooms;
+        this.recentCapacity = recentCapacity;
+        lobby = getOrCreate(Room.LOBBY);
+    }
+
+    public Room lobby() {
+        return lobby;
+    }
+
+    private Shard shard(String name) {
+        int h = name.hashCode();
+        return shards[(h ^ (h >>> 16)) & mask];
+    }
+
+    /** The room with this normalized name, or null. */
+    public Room get(String name) {
+        Shard s = shard(name);
+        s.lock.lock();
+        try {
+            return s.rooms.get(name);
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    /**
+     * The room with this normalized name, created (and its history opened) on
+     * first use. Throws IllegalStateException once --max-rooms rooms exist.
+     */
+    public Room getOrCreate(String name) throws IOException {
+        Shard s = shard(name);
+        s.lock.lock();
+        try {
+            Room room = s.rooms.get(name);
+            if (room != null) return room;
+            if (count.get() >= maxRooms) throw new IllegalStateException("too many rooms");
+            Path dir = name.equals(Room.LOBBY) ? historyDir : historyDir.resolve("rooms").resolve(name);
+            room = new Room(name, new HistoryStore(dir, segmentBytes, segmentMillis), recentCapacity);
+            s.rooms.put(name, room);
+            count.incrementAndGet();
+            return room;
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    public List<Room> all() {
+        List<Room> all = new ArrayList<>();
+        for (Shard s : shards) {
+            s.lock.lock();
+            try {
+                all.addAll(s.rooms.values());
+            } finally {
+                s.lock.unlock();
+            }
+        }
+        return all;
+    }
+
+    /** Closes every room's history; call after the journal has drained. */
+    public void close() {
+        for (Room room : all()) {
+            try {
+                room.history.close();
+            } catch (IOException e) {
+                System.err.println("History close failed for #" + room.name + ": " + e.getMessage());
+            }
+        }
+    }
+}
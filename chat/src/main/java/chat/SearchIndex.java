@@ -0,0 +1,572 @@
+package chat;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Full-text search over the broadcasts in the history file, for /search.
+ *
+ * The index follows the history file, not the broadcast path. A background
+ * thread reads whatever the journal has appended since it last looked (the
+ * journal wakes it after each batch) and adds every chat line to an in-memory
+ * segment. Each document is just the line's offset in the history file, which
+ * keeps the only copy of the text. Every {@link #FLUSH_DOCS} documents the
+ * in-memory segment is written out as an immutable {@link IndexSegment}. A
+ * second thread merges runs of {@link #MERGE_FACTOR} segments of similar size,
+ * so a query only looks at a logarithmic number of them.
+ *
+ * The manifest lists the segments and how far into the history file they reach.
+ * On startup indexing carries on from there. A missing or damaged index, or a
+ * history file shorter than the manifest says, is rebuilt from the whole file.
+ *
+ * The terms of a line are the lower-cased words of its message, plus
+ * {@code #room} (lobby for lines from before rooms) and {@code @sender}, so a query is an intersection of postings
+ * lists. Results come newest first. Queries run on a small pool of their own
+ * with a bounded queue, so a burst of them is refused rather than piling up.
+ */
+public final class SearchIndex {
+    /** Results per page, and how many pages deep a query can go. */
+    static final int PAGE = 10;
+    static final int MAX_PAGES = 100;
+    private static final int FLUSH_DOCS = 64 * 1024;
+    private static final int MERGE_FACTOR = 4;
+    /** Segments are mapped whole, so merges stop well short of 2 GB. */
+    private static final long MAX_MERGE_BYTES = 1L << 30;
+    private static final int READ_BYTES = 64 * 1024;
+    private static final int MAX_TERM_CHARS = 64;
+    private static final int QUERY_THREADS = 2;
+    private static final int QUERY_BACKLOG = 64;
+    private static final String MANIFEST = "manifest";
+
+    /** The segments and the in-memory segment after them, swapped together. */
+    private static final class View {
+        final IndexSegment[] segments;
+        final MemSegment mem;
+
+        View(IndexSegment[] segments, MemSegment mem) {
+            this.segments = segments;
+            this.mem = mem;
+        }
+    }
+
+    /** One page of results. */
+    static final class Result {
+        /** Matching history lines without their room tag, newest first. */
+        final List<byte[]> lines;
+        final boolean more;
+        /** The index is still catching up with the history file, so older matches may be missing. */
+        final boolean partial;
+
+        Result(List<byte[]> lines, boolean more, boolean partial) {
+            this.lines = lines;
+            this.more = more;
+            this.partial = partial;
+        }
+    }
+
+    private final Path dir;
+    private final FileChannel history;
+    private volatile View view;
+    private final Thread indexer;
+    private final ExecutorService merger;
+    private final ThreadPoolExecutor queries;
+    private volatile boolean closed;
+    private volatile boolean caughtUp;
+    /** Indexer thread only: where the next unread line starts, the next document id, and whether to drop a line. */
+    private long tail;
+    private int nextDoc;
+    private boolean skipping;
+    /** How far into the history file the segments on disk reach; guarded by this. */
+    private long checkpoint;
+
+    public SearchIndex(Path dir, Path historyFile) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        history = FileChannel.open(historyFile, StandardOpenOption.READ);
+        IndexSegment[] segments;
+        try {
+            segments = recover();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Rebuilding search index: " + e.getMessage());
+            segments = null;
+        }
+        if (segments == null) {
+            if (history.size() > 0) System.out.println("Building search index from " + historyFile);
+            deleteAllBut(new HashSet<>());
+            segments = new IndexSegment[0];
+            checkpoint = 0;
+        }
+        tail = checkpoint;
+        nextDoc = segments.length > 0 ? segments[segments.length - 1].docEnd() : 0;
+        view = new View(segments, new MemSegment(nextDoc));
+        merger = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "search-merger");
+            t.setDaemon(true);
+            return t;
+        });
+        AtomicInteger queryThreads = new AtomicInteger();
+        queries = new ThreadPoolExecutor(QUERY_THREADS, QUERY_THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(QUERY_BACKLOG), r -> {
+                    Thread t = new Thread(r, "search-query-" + queryThreads.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        indexer = new Thread(this::run, "search-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+        merger.execute(this::mergeSome);
+    }
+
+    /** Reads the manifest and opens its segments; null if there is no usable index. */
+    private IndexSegment[] recover() throws IOException {
+        Path manifest = dir.resolve(MANIFEST);
+        if (!Files.exists(manifest)) return null;
+        List<String> lines = Files.readAllLines(manifest, StandardCharsets.UTF_8);
+        checkpoint = Long.parseLong(lines.get(0).trim());
+        if (checkpoint > history.size()) throw new IOException("history file is shorter than the index");
+        List<IndexSegment> segments = new ArrayList<>();
+        Set<String> keep = new HashSet<>();
+        keep.add(MANIFEST);
+        int expected = 0;
+        for (String name : lines.subList(1, lines.size())) {
+            if (name.isEmpty()) continue;
+            IndexSegment s = IndexSegment.open(dir.resolve(name));
+            if (s.docBase != expected) throw new IOException("gap in index segments at " + name);
+            expected = s.docEnd();
+            segments.add(s);
+            keep.add(name);
+        }
+        deleteAllBut(keep);
+        return segments.toArray(new IndexSegment[0]);
+    }
+
+    private void deleteAllBut(Set<String> keep) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path f : files) {
+                if (!keep.contains(f.getFileName().toString())) Files.deleteIfExists(f);
+            }
+        }
+    }
+
+    /** Tells the indexer the history file has grown; called by the journal after each batch. */
+    void wake() {
+        LockSupport.unpark(indexer);
+    }
+
+    private void run() {
+        ByteBuffer buf = ByteBuffer.allocate(READ_BYTES);
+        while (true) {
+            boolean progressed = false;
+            try {
+                progressed = tailOnce(buf);
+                if (view.mem.docCount() >= FLUSH_DOCS) flush();
+            } catch (IOException e) {
+                System.err.println("Search indexing failed: " + e.getMessage());
+            }
+            if (progressed) continue;
+            caughtUp = true;
+            if (closed) break;
+            LockSupport.parkNanos(this, TimeUnit.SECONDS.toNanos(1));
+        }
+        try {
+            if (view.mem.docCount() > 0) flush();
+            else saveCheckpoint();
+        } catch (IOException e) {
+            System.err.println("Search index flush failed: " + e.getMessage());
+        }
+    }
+
+    /** Indexes the complete lines appended since the last call; false if there were none. */
+    private boolean tailOnce(ByteBuffer buf) throws IOException {
+        buf.clear();
+        int n = history.read(buf, tail);
+        if (n <= 0) return false;
+        byte[] b = buf.array();
+        int start = 0;
+        int nl;
+        while ((nl = TextProtocol.indexOf(b, start, n, (byte) '\n')) >= 0) {
+            if (skipping) skipping = false;
+            else index(b, start, nl, tail);
+            start = nl + 1;
+        }
+        if (start == 0 && n == b.length) {
+            // Longer than the buffer: no chat line is that long, so drop it up to its newline.
+            skipping = true;
+            start = n;
+        }
+        tail += start;
+        return start > 0;
+    }
+
+    /**
+     * Adds {@code b[s, e)}, read from history offset {@code base}, if it is a room's
+     * chat line. Lines written before there were rooms have no {@code #room} tag;
+     * their broadcasts went to everyone, so they count as the lobby's. Untagged
+     * PMs, from then or now, are left out.
+     */
+    private void index(byte[] b, int s, int e, long base) {
+        if (e > s && b[e - 1] == '\r') e--;
+        if (e - s < 2) return;
+        String room = Room.LOBBY;
+        int ts = s;
+        if (b[s] == '#') {
+            int space = TextProtocol.indexOf(b, s, e, (byte) ' ');
+            if (space < 0) return;
+            room = new String(b, s + 1, space - s - 1, StandardCharsets.UTF_8);
+            ts = space + 1;
+        }
+        int name = ts + TextProtocol.TIMESTAMP_LENGTH + 2;
+        if (name >= e || b[name - 2] != ' ' || b[name - 1] != '[') return;
+        int close = TextProtocol.indexOf(b, name, e, (byte) ']');
+        if (close < 0 || close + 2 >= e || b[close + 1] != ':') return;
+        String sender = new String(b, name, close - name, StandardCharsets.UTF_8);
+        // Join and leave notices are not worth finding, and PMs are not for everyone.
+        if (sender.equals("Server") || (ts == s && sender.contains(" -> "))) return;
+        List<String> terms = terms(new String(b, close + 3, e - close - 3, StandardCharsets.UTF_8));
+        terms.add("#" + room);
+        terms.add("@" + sender.toLowerCase(Locale.ROOT));
+        view.mem.add(nextDoc++, base + ts, terms);
+    }
+
+    /** The lower-cased words of {@code text}: runs of letters and digits, up to 64 characters. */
+    static List<String> terms(String text) {
+        List<String> out = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); ) {
+            int cp = i < text.length() ? text.codePointAt(i) : ' ';
+            if (Character.isLetterOrDigit(cp)) {
+                word.appendCodePoint(Character.toLowerCase(cp));
+            } else if (word.length() > 0) {
+                if (word.length() <= MAX_TERM_CHARS) out.add(word.toString());
+                word.setLength(0);
+            }
+            i += i < text.length() ? Character.charCount(cp) : 1;
+        }
+        return out;
+    }
+
+    /** Writes the in-memory segment out and starts a new one; indexer thread only. */
+    private void flush() throws IOException {
+        MemSegment mem = view.mem;
+        IndexSegment segment = mem.write(dir.resolve(fileName(mem.docBase, nextDoc)));
+        synchronized (this) {
+            IndexSegment[] old = view.segments;
+            IndexSegment[] segments = Arrays.copyOf(old, old.length + 1);
+            segments[old.length] = segment;
+            view = new View(segments, new MemSegment(nextDoc));
+            checkpoint = tail;
+            writeManifest();
+        }
+        merger.execute(this::mergeSome);
+    }
+
+    private synchronized void saveCheckpoint() throws IOException {
+        if (tail == checkpoint) return;
+        checkpoint = tail;
+        writeManifest();
+    }
+
+    private static String fileName(int docBase, int docEnd) {
+        return docBase + "-" + docEnd + ".seg";
+    }
+
+    /** Caller holds this. */
+    private void writeManifest() throws IOException {
+        StringBuilder s = new StringBuilder().append(checkpoint).append('\n');
+        for (IndexSegment seg : view.segments) s.append(seg.file.getFileName()).append('\n');
+        Path tmp = dir.resolve(MANIFEST + ".tmp");
+        Files.write(tmp, s.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, dir.resolve(MANIFEST), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /** Merges runs of similar segments until none are left; merger thread only. */
+    private void mergeSome() {
+        while (!closed) {
+            IndexSegment[] segments = view.segments;
+            int at = findRun(segments);
+            if (at < 0) return;
+            List<IndexSegment> inputs = Arrays.asList(segments).subList(at, at + MERGE_FACTOR);
+            IndexSegment merged;
+            try {
+                merged = IndexSegment.merge(inputs,
+                        dir.resolve(fileName(inputs.get(0).docBase, inputs.get(MERGE_FACTOR - 1).docEnd())));
+            } catch (IOException e) {
+                System.err.println("Search index merge failed: " + e.getMessage());
+                return;
+            }
+            synchronized (this) {
+                // Only flushes ran meanwhile, and they only append.
+                IndexSegment[] now = view.segments;
+                IndexSegment[] next = new IndexSegment[now.length - MERGE_FACTOR + 1];
+                System.arraycopy(now, 0, next, 0, at);
+                next[at] = merged;
+                System.arraycopy(now, at + MERGE_FACTOR, next, at + 1, now.length - at - MERGE_FACTOR);
+                view = new View(next, view.mem);
+                try {
+                    writeManifest();
+                } catch (IOException e) {
+                    System.err.println("Search index manifest write failed: " + e.getMessage());
+                }
+            }
+            // Queries still reading the old segments keep their mappings.
+            for (IndexSegment s : inputs) {
+                try {
+                    Files.deleteIfExists(s.file);
+                } catch (IOException e) {
+                    // removed on the next startup
+                }
+            }
+        }
+    }
+
+    /** The newest run of {@link #MERGE_FACTOR} adjacent segments in the same size tier, or -1. */
+    private static int findRun(IndexSegment[] segments) {
+        for (int i = segments.length - MERGE_FACTOR; i >= 0; i--) {
+            int tier = tier(segments[i]);
+            long bytes = 0;
+            boolean same = true;
+            for (int k = i; k < i + MERGE_FACTOR && same; k++) {
+                same = tier(segments[k]) == tier;
+                bytes += segments[k].size();
+            }
+            if (same && bytes <= MAX_MERGE_BYTES) return i;
+        }
+        return -1;
+    }
+
+    /** 0 for up to one flush's worth of documents, then one more per factor of {@link #MERGE_FACTOR}. */
+    private static int tier(IndexSegment s) {
+        int t = 0;
+        for (long size = FLUSH_DOCS; s.docCount > size; size *= MERGE_FACTOR) t++;
+        return t;
+    }
+
+    /**
+     * One page of the lines in {@code room} that contain every word, sent by
+     * {@code from} if given, at or after {@code since} ({@code yyyy-MM-dd HH:mm:ss},
+     * local time) if given. Newest first; {@code page} is at most {@link #MAX_PAGES}.
+     */
+    Result search(String room, List<String> words, String from, String since, int page) {
+        page = Math.min(page, MAX_PAGES);
+        List<byte[]> terms = new ArrayList<>();
+        terms.add(("#" + room).getBytes(StandardCharsets.UTF_8));
+        if (from != null) terms.add(("@" + from.toLowerCase(Locale.ROOT)).getBytes(StandardCharsets.UTF_8));
+        for (String w : words) terms.add(w.getBytes(StandardCharsets.UTF_8));
+        try {
+            View v = view;
+            int minDoc = since != null ? firstSince(v, since.getBytes(StandardCharsets.UTF_8)) : 0;
+            int skip = (page - 1) * PAGE;
+            int[] hits = new int[skip + PAGE + 1];
+            int found = collect(v.mem.cursors(terms), v.mem.docBase, minDoc, hits, 0);
+            for (int i = v.segments.length - 1; i >= 0 && found < hits.length; i--) {
+                IndexSegment s = v.segments[i];
+                if (s.docEnd() <= minDoc) break;
+                Postings.Cursor[] cursors = new Postings.Cursor[terms.size()];
+                for (int k = 0; k < cursors.length; k++) cursors[k] = s.cursor(terms.get(k));
+                found = collect(cursors, s.docBase, minDoc, hits, found);
+            }
+            List<byte[]> lines = new ArrayList<>();
+            for (int i = skip; i < Math.min(found, skip + PAGE); i++) lines.add(line(offset(v, hits[i])));
+            return new Result(lines, found > skip + PAGE && page < MAX_PAGES, !caughtUp);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Runs {@link #search} on a query thread. Fails with a
+     * {@link RejectedExecutionException} if {@link #QUERY_BACKLOG} queries are
+     * already waiting or the index is closed.
+     */
+    CompletableFuture<Result> submit(String room, List<String> words, String from, String since, int page) {
+        try {
+            return CompletableFuture.supplyAsync(() -> search(room, words, from, since, page), queries);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<Result> refused = new CompletableFuture<>();
+            refused.completeExceptionally(e);
+            return refused;
+        }
+    }
+
+    /** Adds the matches in one segment to {@code hits}, newest first, until it is full. */
+    private static int collect(Postings.Cursor[] cursors, int docBase, int minDoc, int[] hits, int found) {
+        if (cursors == null) return found;
+        for (Postings.Cursor c : cursors) {
+            if (c == null) return found;
+        }
+        int[] matches = Postings.intersect(cursors, Math.max(minDoc, docBase));
+        for (int j = matches.length - 1; j >= 0 && found < hits.length; j--) hits[found++] = matches[j];
+        return found;
+    }
+
+    private long offset(View v, int doc) {
+        if (doc >= v.mem.docBase) return v.mem.offset(doc);
+        int lo = 0;
+        int hi = v.segments.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (v.segments[mid].docBase <= doc) lo = mid;
+            else hi = mid - 1;
+        }
+        return v.segments[lo].offset(doc);
+    }
+
+    /** The first document stamped at or after {@code since}; history lines are in time order. */
+    private int firstSince(View v, byte[] since) throws IOException {
+        int lo = 0;
+        int hi = v.mem.docEnd();
+        ByteBuffer ts = ByteBuffer.allocate(since.length);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            ts.clear();
+            history.read(ts, offset(v, mid));
+            if (IndexSegment.compare(Arrays.copyOf(ts.array(), ts.position()), since) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /** The history line starting at {@code offset}, without its newline. */
+    private byte[] line(long offset) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(512);
+        while (true) {
+            int n = history.read(buf, offset + buf.position());
+            byte[] b = buf.array();
+            int nl = TextProtocol.indexOf(b, 0, buf.position(), (byte) '\n');
+            if (nl >= 0 || n <= 0 || buf.capacity() >= READ_BYTES) {
+                int end = nl >= 0 ? nl : buf.position();
+                if (end > 0 && b[end - 1] == '\r') end--;
+                return Arrays.copyOf(b, end);
+            }
+            if (!buf.hasRemaining()) {
+                ByteBuffer bigger = ByteBuffer.allocate(2 * buf.capacity());
+                buf.flip();
+                bigger.put(buf);
+                buf = bigger;
+            }
+        }
+    }
+
+    /**
+     * Stops indexing once the history file has been read to its end, then saves the
+     * index. Queries already queued still run.
+     */
+    public void close() {
+        closed = true;
+        queries.shutdown();
+        LockSupport.unpark(indexer);
+        try {
+            indexer.join();
+            merger.shutdown();
+            merger.awaitTermination(1, TimeUnit.MINUTES);
+            queries.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            history.close();
+        } catch (IOException e) {
+            // nothing left to read
+        }
+    }
+
+    /** Documents indexed since the last flush; written by the indexer, read under this lock. */
+    private static final class MemSegment {
+        final int docBase;
+        private int docCount;
+        private long[] offsets = new long[1024];
+        private final Map<String, IntList> postings = new HashMap<>();
+
+        MemSegment(int docBase) {
+            this.docBase = docBase;
+        }
+
+        synchronized int docCount() {
+            return docCount;
+        }
+
+        synchronized int docEnd() {
+            return docBase + docCount;
+        }
+
+        synchronized long offset(int doc) {
+            return offsets[doc - docBase];
+        }
+
+        synchronized void add(int doc, long offset, List<String> terms) {
+            if (docCount == offsets.length) offsets = Arrays.copyOf(offsets, 2 * docCount);
+            offsets[docCount++] = offset;
+            for (String t : terms) {
+                IntList list = postings.get(t);
+                if (list == null) postings.put(t, list = new IntList());
+                else if (list.docs[list.size - 1] == doc) continue;
+                // Arrays are only replaced, never written below their size, so cursors can keep old ones.
+                if (list.size == list.docs.length) list.docs = Arrays.copyOf(list.docs, 2 * list.size);
+                list.docs[list.size++] = doc;
+            }
+        }
+
+        /** Cursors over what is indexed so far, one per term; null if a term has no documents. */
+        synchronized Postings.Cursor[] cursors(List<byte[]> terms) {
+            Postings.Cursor[] c = new Postings.Cursor[terms.size()];
+            for (int k = 0; k < c.length; k++) {
+                String t = new String(terms.get(k), StandardCharsets.UTF_8);
+                IntList list = postings.get(t);
+                if (list == null) return null;
+                c[k] = new Postings.ArrayCursor(list.docs, list.size);
+            }
+            return c;
+        }
+
+        /**
+         * Writes this segment's terms in byte order. Indexer thread only, which is
+         * also the only writer, so queries are not held up meanwhile.
+         */
+        IndexSegment write(Path file) throws IOException {
+            byte[][] keys = new byte[postings.size()][];
+            IntList[] lists = new IntList[keys.length];
+            int i = 0;
+            for (Map.Entry<String, IntList> e : postings.entrySet()) {
+                keys[i] = e.getKey().getBytes(StandardCharsets.UTF_8);
+                lists[i++] = e.getValue();
+            }
+            Integer[] order = new Integer[keys.length];
+            for (i = 0; i < order.length; i++) order[i] = i;
+            Arrays.sort(order, (a, b) -> IndexSegment.compare(keys[a], keys[b]));
+            try (IndexSegment.Writer w = new IndexSegment.Writer(file)) {
+                for (int k : order) w.add(keys[k], lists[k].docs, lists[k].size);
+                return w.finish(docBase, offsets, docCount);
+            }
+        }
+    }
+
+    private static final class IntList {
+        int[] docs = new int[4];
+        int size;
+    }
+}
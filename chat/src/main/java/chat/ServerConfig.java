@@ -0,0 +1,126 @@
+package chat;
+
+/**
+ * Startup options for {@link ChatServer}, parsed from the command line.
+ *
+ * The first bare argument is still the port, so {@code java ChatServer 12345}
+ * keeps working; everything else is a {@code --name=value} flag.
+ */
+public class ServerConfig {
+    public enum Mode { BLOCKING, NIO }
+
+    /** Which threads run blocking-mode {@link ClientHandler}s. */
+    public enum Executor { CACHED, VIRTUAL }
+
+    public static final int DEFAULT_PORT = 12345;
+
+    int port = DEFAULT_PORT;
+    Mode mode = Mode.BLOCKING;
+    Executor executor = Executor.CACHED;
+    int eventLoops = Runtime.getRuntime().availableProcessors();
+    int queueCapacity = 1024;
+    OutboundQueue.Overflow overflow = OutboundQueue.Overflow.DROP_OLDEST;
+    String historyFile = "chat_history.txt";
+    HistoryJournal.Fsync fsync = HistoryJournal.Fsync.INTERVAL;
+    long fsyncIntervalMillis = 1000;
+    int fsyncEvery = 100;
+    String historyDir = "history";
+    long segmentBytes = 64L * 1024 * 1024;
+    long segmentMinutes = 24 * 60;
+    int replayOnLogin = 20;
+    int replayMax = 1000;
+    int roomShards = 16;
+    int maxRooms = 1024;
+    long typingWindowMillis = 3000;
+    /** Bus addresses of all cluster nodes, {@code host:port,...}; empty for a single node. */
+    String cluster = "";
+    int node = 0;
+    /** Per-connection and server-wide limits; 0 turns a limit off. Bursts are two seconds' worth. */
+    long rateMessages = 20;
+    long rateBytes = 64 * 1024;
+    long globalRateMessages = 0;
+    long globalRateBytes = 0;
+    long maxThrottleMillis = 2000;
+    int floodStrikes = 20;
+    /** Idle time before a heartbeat, and how long to wait for any reply; 0 turns heartbeats off. */
+    long pingIntervalMillis = 30_000;
+    long pongTimeoutMillis = 10_000;
+    /** How long a dropped binary session can be resumed; 0 turns resuming off. */
+    long resumeGraceMillis = 30_000;
+    /** Recent messages kept per room for resuming sessions. */
+    int resumeBuffer = 256;
+    /** Offline private messages: where, per-recipient and per-shard caps, and age cap; mailbox-max=0 turns them off. */
+    String mailboxDir = "mailbox";
+    int mailboxShards = 8;
+    int mailboxMax = 1000;
+    long mailboxShardBytes = 64L * 1024 * 1024;
+    long mailboxMaxAgeHours = 7 * 24;
+    /** Where the /search index lives; empty turns search off. */
+    String searchDir = "search";
+    /** Local port of the plain-text metrics endpoint; 0 turns it off. */
+    int metricsPort = 0;
+    /** Echo about one in this many broadcasts to stdout; 0 echoes none. */
+    int echoSample = 0;
+    /** How to compress for clients that ask for it; OFF refuses them. */
+    Compression.Mode compression = Compression.Mode.STREAM;
+
+    public static ServerConfig parse(String[] args) {
+        ServerConfig c = new ServerConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                c.port = Integer.parseInt(arg);
+                continue;
+            }
+            int eq = arg.indexOf('=');
+            String name = eq < 0 ? arg.substring(2) : arg.substring(2, eq);
+            String value = eq < 0 ? "true" : arg.substring(eq + 1);
+            c.set(name, value);
+        }
+        return c;
+    }
+
+    private void set(String name, String value) {
+        switch (name) {
+            case "port": port = Integer.parseInt(value); break;
+            case "mode": mode = Mode.valueOf(value.toUpperCase()); break;
+            case "executor": executor = Executor.valueOf(value.toUpperCase()); break;
+            case "loops": eventLoops = Math.max(1, Integer.parseInt(value)); break;
+            case "queue": queueCapacity = Math.max(1, Integer.parseInt(value)); break;
+            case "overflow": overflow = OutboundQueue.Overflow.valueOf(value.toUpperCase().replace('-', '_')); break;
+            case "history": historyFile = value; break;
+            case "fsync": fsync = HistoryJournal.Fsync.valueOf(value.toUpperCase().replace('-', '_')); break;
+            case "fsync-interval-ms": fsyncIntervalMillis = Long.parseLong(value); break;
+            case "fsync-every": fsyncEvery = Integer.parseInt(value); break;
+            case "history-dir": historyDir = value; break;
+            case "segment-mb": segmentBytes = Long.parseLong(value) * 1024 * 1024; break;
+            case "segment-minutes": segmentMinutes = Long.parseLong(value); break;
+            case "replay": replayOnLogin = Integer.parseInt(value); break;
+            case "replay-max": replayMax = Integer.parseInt(value); break;
+            case "room-shards": roomShards = Math.max(1, Integer.parseInt(value)); break;
+            case "max-rooms": maxRooms = Math.max(1, Integer.parseInt(value)); break;
+            case "typing-window-ms": typingWindowMillis = Long.parseLong(value); break;
+            case "cluster": cluster = value; break;
+            case "node": node = Integer.parseInt(value); break;
+            case "rate-msgs": rateMessages = Long.parseLong(value); break;
+            case "rate-bytes": rateBytes = Long.parseLong(value); break;
+            case "global-rate-msgs": globalRateMessages = Long.parseLong(value); break;
+            case "global-rate-bytes": globalRateBytes = Long.parseLong(value); break;
+            case "max-throttle-ms": maxThrottleMillis = Long.parseLong(value); break;
+            case "flood-strikes": floodStrikes = Integer.parseInt(value); break;
+            case "ping-interval-ms": pingIntervalMillis = Long.parseLong(value); break;
+            case "pong-timeout-ms": pongTimeoutMillis = Long.parseLong(value); break;
+            case "resume-grace-ms": resumeGraceMillis = Long.parseLong(value); break;
+            case "resume-buffer": resumeBuffer = Integer.parseInt(value); break;
+            case "mailbox-dir": mailboxDir = value; break;
+            case "mailbox-shards": mailboxShards = Integer.parseInt(value); break;
+            case "mailbox-max": mailboxMax = Integer.parseInt(value); break;
+            case "mailbox-shard-mb": mailboxShardBytes = Long.parseLong(value) * 1024 * 1024; break;
+            case "mailbox-max-age-hours": mailboxMaxAgeHours = Long.parseLong(value); break;
+            case "search-dir": searchDir = value; break;
+            case "metrics-port": metricsPort = Integer.parseInt(value); break;
+            case "echo-sample": echoSample = Integer.parseInt(value); break;
+            case "compression": compression = Compression.Mode.valueOf(value.toUpperCase()); break;
+            default: throw new IllegalArgumentException("Unknown option --" + name);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package chat;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters, rates and latency percentiles for one server, published over JMX and,
+ * with --metrics-port, as plain text on http://127.0.0.1:port/metrics.
+ *
+ * Hot paths only bump a {@link LongAdder} or a histogram bucket. Rates and
+ * percentiles are worked out when read, from the difference between the two
+ * latest samples. The HTTP endpoint and JMX each keep their own pair, so one does
+ * not narrow the other's window. A read takes a new sample for its reader if the
+ * last one is at least a second old, so each sees figures for the time between its
+ * scrapes, and attributes read together come from the same window.
+ */
+public final class ServerMetrics implements ServerMetricsMBean {
+    private static final long SAMPLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    final LongAdder accepted = new LongAdder();
+    final LongAdder closed = new LongAdder();
+    final LongAdder inbound = new LongAdder();
+    final LongAdder outbound = new LongAdder();
+    /** Time to number a broadcast and queue it to every member of the room. */
+    final LatencyHistogram fanout = new LatencyHistogram();
+
+    private final ChatServer server;
+    /** Time to write one journal batch to the history file, with any force that follows. */
+    private final LatencyHistogram historyWrites;
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final Window scrapes;
+    private final Window jmx;
+    private ObjectName name;
+    private HttpServer http;
+
+    ServerMetrics(ChatServer server, LatencyHistogram historyWrites) {
+        this.server = server;
+        this.historyWrites = historyWrites;
+        Sample start = new Sample(System.nanoTime());
+        scrapes = new Window(start);
+        jmx = new Window(start);
+    }
+
+    /** Registers the MBean and, if {@code httpPort} is not 0, starts the scrape endpoint. */
+    void open(int serverPort, int httpPort) {
+        try {
+            name = new ObjectName("chat:type=ChatServer,port=" + serverPort);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        } catch (JMException e) {
+            name = null;
+            System.err.println("Cannot register metrics MBean: " + e.getMessage());
+        }
+        if (httpPort == 0) return;
+        try {
+            http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), httpPort), 0);
+            http.createContext("/metrics", exchange -> {
+                byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            http.start();
+        } catch (IOException e) {
+            http = null;
+            System.err.println("Cannot start metrics endpoint: " + e.getMessage());
+        }
+    }
+
+    void close() {
+        if (http != null) http.stop(0);
+        if (name == null) return;
+        try {
+            MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+            if (mbeans.isRegistered(name)) mbeans.unregisterMBean(name);
+        } catch (JMException e) {
+            // already gone
+        }
+    }
+
+    /** Everything, in the Prometheus text format. */
+    String scrape() {
+        Sample[] w = scrapes.advance();
+        Sample a = w[0];
+        Sample b = w[1];
+        long[] fan = LatencyHistogram.since(b.fanout, a.fanout);
+        long[] hist = LatencyHistogram.since(b.historyWrites, a.historyWrites);
+        StringBuilder s = new StringBuilder(2048);
+        s.append("# Rates and latencies cover the last chat_window_seconds.\n");
+        gauge(s, "chat_window_seconds", (b.nanos - a.nanos) / 1e9);
+        gauge(s, "chat_connections_active", getActiveConnections());
+        counter(s, "chat_connections_accepted_total", b.accepted);
+        gauge(s, "chat_connections_accepted_per_second", rate(a, b, b.accepted - a.accepted));
+        gauge(s, "chat_users", getLoggedInUsers());
+        counter(s, "chat_messages_in_total", b.inbound);
+        gauge(s, "chat_messages_in_per_second", rate(a, b, b.inbound - a.inbound));
+        counter(s, "chat_messages_out_total", b.outbound);
+        gauge(s, "chat_messages_out_per_second", rate(a, b, b.outbound - a.outbound));
+        summary(s, "chat_fanout_micros", fan, LatencyHistogram.count(b.fanout));
+        summary(s, "chat_history_write_micros", hist, LatencyHistogram.count(b.historyWrites));
+        gauge(s, "chat_queue_depth_max", getMaxQueueDepth());
+        gauge(s, "chat_queue_depth_total", getQueuedFrames());
+        gauge(s, "chat_threads", threads.getThreadCount());
+        gauge(s, "chat_threads_daemon", threads.getDaemonThreadCount());
+        gauge(s, "chat_threads_peak", threads.getPeakThreadCount());
+        counter(s, "chat_messages_throttled_total", server.throttledMessages());
+        counter(s, "chat_messages_dropped_total", server.droppedMessages());
+        counter(s, "chat_flood_disconnects_total", server.floodDisconnects());
+        counter(s, "chat_reaped_connections_total", server.reapedConnections());
+        counter(s, "chat_resumed_sessions_total", server.resumedSessions());
+        return s.toString();
+    }
+
+    private static void type(StringBuilder s, String name, String type) {
+        s.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void gauge(StringBuilder s, String name, long value) {
+        type(s, name, "gauge");
+        s.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder s, String name, double value) {
+        type(s, name, "gauge");
+        s.append(name).append(' ').append(String.format(Locale.ROOT, "%.3f", value)).append('\n');
+    }
+
+    private static void counter(StringBuilder s, String name, long value) {
+        type(s, name, "counter");
+        s.append(name).append(' ').append(value).append('\n');
+    }
+
+    /** Quantiles over the window's {@code counts}; {@code _count} is the running total, as Prometheus expects. */
+    private static void summary(StringBuilder s, String name, long[] counts, long total) {
+        type(s, name, "summary");
+        for (String q : new String[] { "0.5", "0.99", "0.999", "1" }) {
+            s.append(name).append("{quantile=\"").append(q).append("\"} ")
+                    .append(micros(LatencyHistogram.percentile(counts, Double.parseDouble(q)))).append('\n');
+        }
+        s.append(name).append("_count ").append(total).append('\n');
+    }
+
+    private static double rate(Sample a, Sample b, long delta) {
+        long nanos = b.nanos - a.nanos;
+        return nanos > 0 ? delta * 1e9 / nanos : 0;
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private long fanoutMicros(double q) {
+        Sample[] w = jmx.advance();
+        return micros(LatencyHistogram.percentile(LatencyHistogram.since(w[1].fanout, w[0].fanout), q));
+    }
+
+    private long historyWriteMicros(double q) {
+        Sample[] w = jmx.advance();
+        return micros(LatencyHistogram.percentile(LatencyHistogram.since(w[1].historyWrites, w[0].historyWrites), q));
+    }
+
+    @Override public long getActiveConnections() { return accepted.sum() - closed.sum(); }
+
+    @Override public long getAcceptedConnections() { return accepted.sum(); }
+
+    @Override public double getAcceptsPerSecond() {
+        Sample[] w = jmx.advance();
+        return rate(w[0], w[1], w[1].accepted - w[0].accepted);
+    }
+
+    @Override public int getLoggedInUsers() { return server.localUsers().size(); }
+
+    @Override public long getInboundMessages() { return inbound.sum(); }
+
+    @Override public double getInboundPerSecond() {
+        Sample[] w = jmx.advance();
+        return rate(w[0], w[1], w[1].inbound - w[0].inbound);
+    }
+
+    @Override public long getOutboundMessages() { return outbound.sum(); }
+
+    @Override public double getOutboundPerSecond() {
+        Sample[] w = jmx.advance();
+        return rate(w[0], w[1], w[1].outbound - w[0].outbound);
+    }
+
+    @Override public long getFanoutP50Micros() { return fanoutMicros(0.5); }
+
+    @Override public long getFanoutP99Micros() { return fanoutMicros(0.99); }
+
+    @Override public long getFanoutMaxMicros() { return fanoutMicros(1); }
+
+    @Override public long getHistoryWriteP50Micros() { return historyWriteMicros(0.5); }
+
+    @Override public long getHistoryWriteP99Micros() { return historyWriteMicros(0.99); }
+
+    @Override public long getHistoryWriteMaxMicros() { return historyWriteMicros(1); }
+
+    @Override public int getMaxQueueDepth() {
+        int max = 0;
+        for (ClientHandler h : server.handlers()) max = Math.max(max, h.queueDepth());
+        return max;
+    }
+
+    @Override public long getQueuedFrames() {
+        long total = 0;
+        for (ClientHandler h : server.handlers()) total += h.queueDepth();
+        return total;
+    }
+
+    @Override public int getThreadCount() { return threads.getThreadCount(); }
+
+    @Override public int getPeakThreadCount() { return threads.getPeakThreadCount(); }
+
+    @Override public long getThrottledMessages() { return server.throttledMessages(); }
+
+    @Override public long getDroppedMessages() { return server.droppedMessages(); }
+
+    @Override public long getFloodDisconnects() { return server.floodDisconnects(); }
+
+    @Override public long getReapedConnections() { return server.reapedConnections(); }
+
+    @Override public long getResumedSessions() { return server.resumedSessions(); }
+
+    /** One reader's two latest samples. */
+    private final class Window {
+        private Sample previous;
+        private Sample latest;
+
+        Window(Sample start) {
+            previous = latest = start;
+        }
+
+        /** The two latest samples, taking a new one if the latest is a second old. */
+        synchronized Sample[] advance() {
+            long now = System.nanoTime();
+            if (now - latest.nanos >= SAMPLE_NANOS) {
+                previous = latest;
+                latest = new Sample(now);
+            }
+            return new Sample[] { previous, latest };
+        }
+    }
+
+    /** The counters and histograms at one instant. */
+    private final class Sample {
+        final long nanos;
+        final long accepted;
+        final long inbound;
+        final long outbound;
+        final long[] fanout;
+        final long[] historyWrites;
+
+        Sample(long nanos) {
+            this.nanos = nanos;
+            this.accepted = ServerMetrics.this.accepted.sum();
+            this.inbound = ServerMetrics.this.inbound.sum();
+            this.outbound = ServerMetrics.this.outbound.sum();
+            this.fanout = ServerMetrics.this.fanout.snapshot();
+            this.historyWrites = ServerMetrics.this.historyWrites.snapshot();
+        }
+    }
+}
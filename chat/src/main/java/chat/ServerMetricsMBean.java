@@ -0,0 +1,53 @@
+package chat;
+
+/**
+ * The JMX view of {@link ServerMetrics}, registered as {@code chat:type=ChatServer,port=<port>}.
+ * Rates and latencies cover the time since the previous sample, at least a second.
+ */
+public interface ServerMetricsMBean {
+    long getActiveConnections();
+
+    long getAcceptedConnections();
+
+    double getAcceptsPerSecond();
+
+    int getLoggedInUsers();
+
+    long getInboundMessages();
+
+    double getInboundPerSecond();
+
+    long getOutboundMessages();
+
+    double getOutboundPerSecond();
+
+    long getFanoutP50Micros();
+
+    long getFanoutP99Micros();
+
+    long getFanoutMaxMicros();
+
+    long getHistoryWriteP50Micros();
+
+    long getHistoryWriteP99Micros();
+
+    long getHistoryWriteMaxMicros();
+
+    int getMaxQueueDepth();
+
+    long getQueuedFrames();
+
+    int getThreadCount();
+
+    int getPeakThreadCount();
+
+    long getThrottledMessages();
+
+    long getDroppedMessages();
+
+    long getFloodDisconnects();
+
+    long getReapedConnections();
+
+    long getResumedSessions();
+}
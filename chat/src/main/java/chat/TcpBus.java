@@ -0,0 +1,258 @@
+package chat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link MessageBus} over TCP, one listening address per node ({@code --cluster}).
+ *
+ * Each node keeps one outbound connection per peer, fed by a bounded queue and
+ * its own writer thread. The writer takes everything queued at once (up to
+ * {@link #MAX_BATCH} messages) and writes it with a single flush, so inter-node
+ * traffic is batched under load without adding delay when idle. A lost link is
+ * redialled with backoff; messages queued meanwhile are kept up to
+ * {@link #QUEUE_CAPACITY}, further ones are dropped and counted.
+ *
+ * A node listens only on its own address in the list. The bus has no
+ * authentication, so that address belongs on a private network.
+ *
+ * Inbound connections start with the sender's node id and are read on one
+ * thread each; their end is reported as {@link Listener#nodeDown} and makes the
+ * outbound link to that node redial, so an idle link notices a restarted peer
+ * (and reports {@link Listener#nodeUp}) as soon as it is back.
+ */
+public final class TcpBus implements MessageBus {
+    static final int QUEUE_CAPACITY = 64 * 1024;
+    static final int MAX_BATCH = 1024;
+    /** Far above any message a node sends; a longer length prefix means a broken or hostile peer. */
+    static final int MAX_FRAME = 1024 * 1024;
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final long MAX_BACKOFF_MILLIS = 2000;
+    /** Queued to wake a writer whose link is known to be dead; never written. */
+    private static final byte[] REDIAL = new byte[0];
+
+    private final int nodeId;
+    private final List<InetSocketAddress> addresses;
+    private final Link[] links;
+    private final List<Socket> inbound = new CopyOnWriteArrayList<>();
+    private ServerSocket server;
+    private volatile Listener listener;
+    private volatile boolean closed;
+
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final AtomicLong batchesSent = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public TcpBus(int nodeId, List<InetSocketAddress> addresses) {
+        if (nodeId < 0 || nodeId >= addresses.size()) {
+            throw new IllegalArgumentException("--node=" + nodeId + " is not in --cluster");
+        }
+        this.nodeId = nodeId;
+        this.addresses = addresses;
+        this.links = new Link[addresses.size()];
+    }
+
+    /** Parses {@code host:port,host:port,...}; node i listens on the i-th address. */
+    public static List<InetSocketAddress> parse(String spec) {
+        List<InetSocketAddress> list = new ArrayList<>();
+        for (String part : spec.split(",")) {
+            part = part.trim();
+            int colon = part.lastIndexOf(':');
+            if (colon <= 0) throw new IllegalArgumentException("Expected host:port in --cluster, got " + part);
+            list.add(new InetSocketAddress(part.substring(0, colon), Integer.parseInt(part.substring(colon + 1))));
+        }
+        return list;
+    }
+
+    @Override
+    public int nodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public int nodeCount() {
+        return addresses.size();
+    }
+
+    @Override
+    public void start(Listener listener) throws IOException {
+        this.listener = listener;
+        server = new ServerSocket();
+        server.bind(addresses.get(nodeId));
+        Thread acceptor = new Thread(this::acceptLoop, "bus-accept-" + nodeId);
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (int node = 0; node < links.length; node++) {
+            if (node == nodeId) continue;
+            links[node] = new Link(node);
+            Thread writer = new Thread(links[node], "bus-" + nodeId + "-to-" + node);
+            writer.setDaemon(true);
+            // Set before it runs, so that close() can always interrupt it.
+            links[node].thread = writer;
+            writer.start();
+        }
+    }
+
+    @Override
+    public void send(int node, ClusterMessage message) {
+        enqueue(node, message.encode());
+    }
+
+    @Override
+    public void publish(ClusterMessage message) {
+        byte[] frame = message.encode();
+        for (int node = 0; node < links.length; node++) {
+            if (node != nodeId) enqueue(node, frame);
+        }
+    }
+
+    private void enqueue(int node, byte[] frame) {
+        if (!links[node].queue.offer(frame)) dropped.incrementAndGet();
+    }
+
+    public long messagesSent() {
+        return messagesSent.get();
+    }
+
+    public long batchesSent() {
+        return batchesSent.get();
+    }
+
+    /** Messages dropped because a peer's queue was full. */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        closeQuietly(server);
+        for (Link link : links) {
+            if (link == null) continue;
+            link.thread.interrupt();
+            closeQuietly(link.socket);
+        }
+        for (Socket s : inbound) closeQuietly(s);
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket s = server.accept();
+                Thread reader = new Thread(() -> readLoop(s), "bus-read-" + nodeId);
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (!closed) System.err.println("Bus accept failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void readLoop(Socket s) {
+        inbound.add(s);
+        int node = -1;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 64 * 1024));
+            int from = in.readInt();
+            if (from < 0 || from >= links.length || from == nodeId) throw new IOException("bad node id " + from);
+            node = from;
+            while (true) {
+                int length = in.readInt();
+                if (length <= 0 || length > MAX_FRAME) throw new IOException("bad frame length " + length);
+                byte[] body = new byte[length];
+                in.readFully(body);
+                listener.onMessage(node, ClusterMessage.decode(body));
+            }
+        } catch (EOFException e) {
+            // peer closed the link
+        } catch (IOException e) {
+            if (!closed) System.err.println("Bus link from node " + node + " failed: " + e.getMessage());
+        } finally {
+            inbound.remove(s);
+            closeQuietly(s);
+            if (node >= 0 && node < links.length && links[node] != null && !closed) {
+                links[node].stale = true;
+                links[node].queue.offer(REDIAL);
+                listener.nodeDown(node);
+            }
+        }
+    }
+
+    /** The outbound side of one peer: its queue and the thread that drains it. */
+    private final class Link implements Runnable {
+        final int node;
+        final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        volatile Thread thread;
+        volatile Socket socket;
+        /** The peer went away since we connected; reconnect before writing again. */
+        volatile boolean stale;
+
+        Link(int node) {
+            this.node = node;
+        }
+
+        @Override
+        public void run() {
+            long backoff = 100;
+            List<byte[]> batch = new ArrayList<>(MAX_BATCH);
+            while (!closed) {
+                try {
+                    Socket s = new Socket();
+                    socket = s;
+                    s.connect(addresses.get(node), CONNECT_TIMEOUT_MILLIS);
+                    s.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 64 * 1024));
+                    out.writeInt(nodeId);
+                    out.flush();
+                    stale = false;
+                    backoff = 100;
+                    listener.nodeUp(node);
+                    while (!closed) {
+                        batch.add(queue.take());
+                        queue.drainTo(batch, MAX_BATCH - 1);
+                        batch.removeIf(frame -> frame == REDIAL);
+                        if (stale) throw new IOException("node " + node + " went away");
+                        for (byte[] frame : batch) out.write(frame);
+                        out.flush();
+                        messagesSent.addAndGet(batch.size());
+                        batchesSent.incrementAndGet();
+                        batch.clear();
+                    }
+                } catch (IOException e) {
+                    // The batch in flight is lost with the link: delivery is at most once.
+                    dropped.addAndGet(batch.size());
+                    batch.clear();
+                    closeQuietly(socket);
+                    try {
+                        Thread.sleep(backoff);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable c) {
+        if (c == null) return;
+        try {
+            c.close();
+        } catch (IOException e) { /* ignore */ }
+    }
+}
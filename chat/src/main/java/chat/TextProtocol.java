@@ -0,0 +1,136 @@
+package chat;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Formatting and parsing helpers for the text line protocol that work on UTF-8
+ * bytes, so the per-message path allocates only the finished line.
+ *
+ * Every chat line starts with a {@code yyyy-MM-dd HH:mm:ss} timestamp. It is
+ * formatted once per second and cached; all messages in the same second copy the
+ * cached bytes instead of running a {@link DateTimeFormatter}.
+ */
+public final class TextProtocol {
+    private static final DateTimeFormatter FMT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    static final int TIMESTAMP_LENGTH = 19;
+    /** Offset of the sender name in a line built by {@link #formatChat}. */
+    static final int NAME_OFFSET = TIMESTAMP_LENGTH + 2;
+    /** Text form of a typing event, {@code [TYPING]<user>}; older GUIs also sent it as a chat line. */
+    public static final String TYPING = "[TYPING]";
+    /** Heartbeat to an idle text client, which answers with {@link #PONG}. */
+    public static final String PING = "[PING]";
+    public static final String PONG = "/pong";
+    /**
+     * Hello option of a text client that answers {@link #PING}s. Only such clients
+     * are pinged; binary clients always are.
+     */
+    public static final String HEARTBEAT = "heartbeat";
+    /** Presence snapshot of a room, {@code [USERLIST]#<room> <version> name,name,...}. */
+    public static final String USERLIST = "[USERLIST]";
+    /** Presence delta, {@code [PRESENCE]#<room> +<version> <user>} on join or {@code -} on leave. */
+    public static final String PRESENCE = "[PRESENCE]";
+
+    private static final byte[] ARROW = " -> ".getBytes(StandardCharsets.US_ASCII);
+
+    private static volatile Stamp stamp = new Stamp(Long.MIN_VALUE);
+
+    private TextProtocol() { }
+
+    /** The formatted timestamp for one wall-clock second. */
+    private static final class Stamp {
+        final long second;
+        final byte[] bytes;
+
+        Stamp(long second) {
+            this.second = second;
+            this.bytes = second == Long.MIN_VALUE ? new byte[0]
+                    : LocalDateTime.ofInstant(Instant.ofEpochSecond(second), ZoneId.systemDefault()).format(FMT)
+                            .getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private static Stamp stamp(long nowMillis) {
+        long second = Math.floorDiv(nowMillis, 1000);
+        Stamp s = stamp;
+        if (s.second != second) {
+            // Racing threads may each format the new second; any of them may win.
+            s = new Stamp(second);
+            stamp = s;
+        }
+        return s;
+    }
+
+    /**
+     * Builds {@code "<timestamp> [sender]: message\n"} (or {@code [sender -> target]})
+     * straight from bytes, as text clients and the history file see it. The sender
+     * starts at {@link #NAME_OFFSET}.
+     */
+    public static byte[] formatChat(long nowMillis, byte[] sender, byte[] target, byte[] msg, int off, int len) {
+        byte[] ts = stamp(nowMillis).bytes;
+        int targetLen = target == null ? 0 : ARROW.length + target.length;
+        byte[] line = new byte[TIMESTAMP_LENGTH + 2 + sender.length + targetLen + 3 + len + 1];
+        int p = 0;
+        System.arraycopy(ts, 0, line, p, TIMESTAMP_LENGTH);
+        p += TIMESTAMP_LENGTH;
+        line[p++] = ' ';
+        line[p++] = '[';
+        System.arraycopy(sender, 0, line, p, sender.length);
+        p += sender.length;
+        if (target != null) {
+            System.arraycopy(ARROW, 0, line, p, ARROW.length);
+            p += ARROW.length;
+            System.arraycopy(target, 0, line, p, target.length);
+            p += target.length;
+        }
+        line[p++] = ']';
+        line[p++] = ':';
+        line[p++] = ' ';
+        System.arraycopy(msg, off, line, p, len);
+        p += len;
+        line[p] = '\n';
+        return line;
+    }
+
+    /** Offset of the message body in a line built by {@link #formatChat}. */
+    static int payloadOffset(byte[] line, int msgLen) {
+        return line.length - 1 - msgLen;
+    }
+
+    /** ASCII case-insensitive comparison of {@code b[off, off+len)} with {@code ascii}. */
+    public static boolean equalsIgnoreCase(byte[] b, int off, int len, String ascii) {
+        return len == ascii.length() && regionMatches(b, off, ascii);
+    }
+
+    /** Whether {@code b[off, off+len)} starts with {@code ascii} (case-sensitive). */
+    public static boolean startsWith(byte[] b, int off, int len, String ascii) {
+        if (len < ascii.length()) return false;
+        for (int i = 0; i < ascii.length(); i++) {
+            if (b[off + i] != ascii.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static boolean regionMatches(byte[] b, int off, String ascii) {
+        for (int i = 0; i < ascii.length(); i++) {
+            int c = b[off + i];
+            int d = ascii.charAt(i);
+            if (c == d) continue;
+            if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+            if (d >= 'A' && d <= 'Z') d += 'a' - 'A';
+            if (c != d) return false;
+        }
+        return true;
+    }
+
+    /** Index of the first {@code c} in {@code b[from, end)}, or -1. */
+    public static int indexOf(byte[] b, int from, int end, byte c) {
+        for (int i = from; i < end; i++) {
+            if (b[i] == c) return i;
+        }
+        return -1;
+    }
+}
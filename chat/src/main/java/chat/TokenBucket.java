@@ -0,0 +1,45 @@
+package chat;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket, kept as a single "theoretical arrival time" (the
+ * generic cell rate algorithm): the instant at which the bucket would be full
+ * again. Taking tokens moves it forward; one CAS per call, no lock, no thread.
+ *
+ * Callers may take tokens the bucket does not have, up to a limit, and are told
+ * how long to wait before taking more: that is how a reader is throttled rather
+ * than refused.
+ */
+public final class TokenBucket {
+    private static final long NANOS = 1_000_000_000L;
+
+    private final long rate;
+    private final long burstNanos;
+    private final AtomicLong fullAt;
+
+    /** {@code rate} tokens per second, at most {@code burst} at once. */
+    public TokenBucket(long rate, long burst) {
+        if (rate <= 0 || burst <= 0) throw new IllegalArgumentException("rate and burst must be positive");
+        this.rate = rate;
+        this.burstNanos = burst * NANOS / rate;
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes {@code cost} tokens at {@code now} (System.nanoTime). Returns 0 if they
+     * were there; otherwise how many nanoseconds the caller should wait before the
+     * bucket has recovered. If that wait would exceed {@code maxWaitNanos}, takes
+     * nothing and returns -1.
+     */
+    public long acquire(long cost, long now, long maxWaitNanos) {
+        long increment = cost * NANOS / rate;
+        while (true) {
+            long full = fullAt.get();
+            long next = Math.max(full, now) + increment;
+            long wait = next - now - burstNanos;
+            if (wait > maxWaitNanos) return -1;
+            if (fullAt.compareAndSet(full, next)) return Math.max(0, wait);
+        }
+    }
+}
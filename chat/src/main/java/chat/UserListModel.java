@@ -0,0 +1,96 @@
+package chat;
+
+import javax.swing.AbstractListModel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The GUI's online-user list: an array of names plus a name-to-index map, so
+ * contains, add and remove are all O(1). Removal moves the last name into the
+ * freed slot, so the order is join order only until someone leaves.
+ *
+ * Tracks the room and presence version it reflects; see {@link TextProtocol#PRESENCE}.
+ * Used on the event dispatch thread only.
+ */
+public final class UserListModel extends AbstractListModel<String> {
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> names = new ArrayList<>();
+    private final Map<String, Integer> index = new HashMap<>();
+    /** Room ({@code #name}) of the current contents; null before the first snapshot. */
+    private String room;
+    /** Presence version of the current contents in {@link #room}. */
+    private long version = -1;
+
+    @Override
+    public int getSize() {
+        return names.size();
+    }
+
+    @Override
+    public String getElementAt(int i) {
+        return names.get(i);
+    }
+
+    public boolean contains(String name) {
+        return index.containsKey(name);
+    }
+
+    /**
+     * Replaces the contents with a snapshot, firing one event for the change in
+     * size and one for the rows that stayed. Ignored if older than what we have
+     * for the same room; a snapshot of another room always applies.
+     */
+    public void reset(String snapshotRoom, long snapshotVersion, Collection<String> snapshot) {
+        if (snapshotRoom.equals(room) && snapshotVersion < version) return;
+        room = snapshotRoom;
+        version = snapshotVersion;
+        int old = names.size();
+        names.clear();
+        index.clear();
+        for (String name : snapshot) {
+            if (index.putIfAbsent(name, names.size()) == null) names.add(name);
+        }
+        int now = names.size();
+        if (now < old) fireIntervalRemoved(this, now, old - 1);
+        else if (now > old) fireIntervalAdded(this, old, now - 1);
+        if (Math.min(old, now) > 0) fireContentsChanged(this, 0, Math.min(old, now) - 1);
+    }
+
+    /**
+     * Applies a join or leave delta. Returns false if it does not follow the
+     * current version, in which case nothing changes and the caller should ask
+     * for a snapshot. Deltas we are already past, or for another room, are
+     * ignored and return true.
+     */
+    public boolean apply(String deltaRoom, long deltaVersion, boolean joined, String name) {
+        if (!deltaRoom.equals(room) || deltaVersion <= version) return true;
+        if (deltaVersion != version + 1) return false;
+        version = deltaVersion;
+        if (joined) add(name);
+        else remove(name);
+        return true;
+    }
+
+    private void add(String name) {
+        if (index.putIfAbsent(name, names.size()) != null) return;
+        names.add(name);
+        fireIntervalAdded(this, names.size() - 1, names.size() - 1);
+    }
+
+    private void remove(String name) {
+        Integer i = index.remove(name);
+        if (i == null) return;
+        int last = names.size() - 1;
+        String moved = names.remove(last);
+        if (i != last) {
+            names.set(i, moved);
+            index.put(moved, i);
+            fireContentsChanged(this, i, i);
+        }
+        fireIntervalRemoved(this, last, last);
+    }
+}
@@ -0,0 +1,91 @@
+package chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits inbound bytes into messages for a {@link ClientHandler}, in either protocol.
+ *
+ * Both server modes fill {@link #buffer()} (from a socket stream or a channel) and
+ * then call {@link #decode()}. Text mode cuts newline-terminated lines; once the
+ * handler has switched to the binary protocol the remaining bytes are read as
+ * length-prefixed {@link BinaryProtocol} frames.
+ */
+class WireDecoder {
+    private static final int INITIAL_SIZE = 8 * 1024;
+    private static final int MAX_MESSAGE = 64 * 1024;
+
+    private final ClientHandler handler;
+    private ByteBuffer buf = ByteBuffer.allocate(INITIAL_SIZE);
+
+    WireDecoder(ClientHandler handler) {
+        this.handler = handler;
+    }
+
+    /** The buffer to read into, in write mode, with at least some space left. */
+    ByteBuffer buffer() throws IOException {
+        if (!buf.hasRemaining()) {
+            if (buf.capacity() >= MAX_MESSAGE + 4) throw new IOException("message too long");
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(buf.capacity() * 2, MAX_MESSAGE + 4));
+            buf.flip();
+            bigger.put(buf);
+            buf = bigger;
+        }
+        return buf;
+    }
+
+    /**
+     * Hands every complete message in the buffer to the handler.
+     * Returns false when the connection should be closed.
+     */
+    boolean decode() throws IOException {
+        buf.flip();
+        try {
+            // Whatever follows a login still waiting for its claim stays buffered until the login is done.
+            while (buf.hasRemaining() && !handler.loggingIn()) {
+                int before = buf.position();
+                boolean keepOpen = handler.isBinary() ? nextFrame() : nextLine();
+                if (!keepOpen) return false;
+                if (buf.position() == before) break;
+            }
+        } finally {
+            buf.compact();
+        }
+        return true;
+    }
+
+    private boolean nextLine() {
+        byte[] arr = buf.array();
+        int start = buf.position();
+        for (int i = start; i < buf.limit(); i++) {
+            if (arr[i] != '\n') continue;
+            int end = i > start && arr[i - 1] == '\r' ? i - 1 : i;
+            buf.position(i + 1);
+            return handler.handleLine(arr, start, end - start);
+        }
+        return true;
+    }
+
+    private boolean nextFrame() throws IOException {
+        if (buf.remaining() < 4) return true;
+        int length = buf.getInt(buf.position());
+        if (length < BinaryProtocol.HEADER || length > MAX_MESSAGE) throw new IOException("bad frame length " + length);
+        if (buf.remaining() < 4 + length) return true;
+        buf.position(buf.position() + 4);
+        int start = buf.position();
+        int nameLength = buf.getShort(start + BinaryProtocol.HEADER - 2) & 0xFFFF;
+        if (buf.get(start) == BinaryProtocol.CHAT && nameLength <= length - BinaryProtocol.HEADER) {
+            // The hot path: hand the payload over in place, no Strings or Message.
+            int payload = start + BinaryProtocol.HEADER + nameLength;
+            buf.position(start + length);
+            return handler.handleChat(buf.array(), payload, length - BinaryProtocol.HEADER - nameLength);
+        }
+        BinaryProtocol.Message m;
+        try {
+            m = BinaryProtocol.decode(buf, length);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+        return handler.handleFrame(m.type, m.name, m.payload);
+    }
+}
@@ -0,0 +1,95 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+class BinaryProtocolTest {
+    private static DataInputStream in(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    @Test
+    void framesRoundTrip() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(BinaryProtocol.encode(BinaryProtocol.CHAT, 42, 1_700_000_000_123L, "zoë", "héllo 👋"));
+        out.write(BinaryProtocol.encode(BinaryProtocol.SYSTEM, 0, 0, null, "notice"));
+        out.write(BinaryProtocol.encode(BinaryProtocol.PING, 0, 0, "", ""));
+        DataInputStream in = in(out.toByteArray());
+
+        BinaryProtocol.Message m = BinaryProtocol.read(in);
+        assertEquals(BinaryProtocol.CHAT, m.type);
+        assertEquals(42, m.id);
+        assertEquals(1_700_000_000_123L, m.timestamp);
+        assertEquals("zoë", m.name);
+        assertEquals("héllo 👋", m.payload);
+
+        m = BinaryProtocol.read(in);
+        assertEquals(BinaryProtocol.SYSTEM, m.type);
+        assertEquals("", m.name);
+        assertEquals("notice", m.payload);
+
+        m = BinaryProtocol.read(in);
+        assertEquals(BinaryProtocol.PING, m.type);
+        assertEquals("", m.payload);
+        assertNull(BinaryProtocol.read(in));
+    }
+
+    @Test
+    void badLengthsAreRejected() {
+        byte[] tooShort = ByteBuffer.allocate(4).putInt(3).array();
+        assertThrows(IOException.class, () -> BinaryProtocol.read(in(tooShort)));
+        byte[] tooLong = ByteBuffer.allocate(4).putInt(BinaryProtocol.MAX_FRAME + 1).array();
+        assertThrows(IOException.class, () -> BinaryProtocol.read(in(tooLong)));
+
+        byte[] frame = BinaryProtocol.encode(BinaryProtocol.CHAT, 0, 0, "ab", "c");
+        // Name length past the end of the frame.
+        ByteBuffer.wrap(frame).putShort(4 + BinaryProtocol.HEADER - 2, (short) 100);
+        assertThrows(IOException.class, () -> BinaryProtocol.read(in(frame)));
+
+        byte[] truncated = BinaryProtocol.encode(BinaryProtocol.CHAT, 0, 0, "ab", "cdef");
+        assertThrows(IOException.class,
+                () -> BinaryProtocol.read(in(java.util.Arrays.copyOf(truncated, truncated.length - 1))));
+    }
+
+    @Test
+    void lineFramesCutTheSameFieldsAsAFreshEncoding() throws IOException {
+        byte[] sender = "alice".getBytes(StandardCharsets.UTF_8);
+        byte[] msg = "hi there".getBytes(StandardCharsets.UTF_8);
+        long now = 1_700_000_000_000L;
+        byte[] line = TextProtocol.formatChat(now, sender, null, msg, 0, msg.length);
+        Frame f = Frame.line(BinaryProtocol.CHAT, 7, now, line, sender.length, msg.length);
+
+        assertArrayEquals(line, f.bytes(false));
+        assertArrayEquals(BinaryProtocol.encode(BinaryProtocol.CHAT, 7, now, "alice", "hi there"), f.bytes(true));
+        BinaryProtocol.Message m = BinaryProtocol.read(in(f.bytes(true)));
+        assertEquals("alice", m.name);
+        assertEquals("hi there", m.payload);
+    }
+
+    @Test
+    void handshakeLineIsReadWithoutReadAhead() throws IOException {
+        byte[] frame = BinaryProtocol.encode(BinaryProtocol.LOGIN, 0, 0, "bob", "");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write((BinaryProtocol.HELLO_OK + "\r\n").getBytes(StandardCharsets.UTF_8));
+        out.write(frame);
+        InputStream raw = new ByteArrayInputStream(out.toByteArray());
+
+        assertEquals(BinaryProtocol.HELLO_OK, BinaryProtocol.readLine(raw));
+        BinaryProtocol.Message m = BinaryProtocol.read(new DataInputStream(raw));
+        assertEquals(BinaryProtocol.LOGIN, m.type);
+        assertEquals("bob", m.name);
+        assertNull(BinaryProtocol.readLine(raw));
+    }
+}
@@ -0,0 +1,402 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+class ClusterTest {
+    @TempDir
+    Path dir;
+
+    private final List<ChatServer> servers = new ArrayList<>();
+    private final List<Client> clients = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() {
+        for (Client c : clients) c.close();
+        for (ChatServer s : servers) s.stop();
+    }
+
+    /** Two started nodes on the given bus, taking clients on ephemeral ports, once each sees the other. */
+    private List<ChatServer> cluster(String bus, String mode) throws IOException, InterruptedException {
+        return cluster(bus, mode, UnaryOperator.identity());
+    }
+
+    /** As {@link #cluster(String, String)}, with each node's bus wrapped in {@code wrap}. */
+    private List<ChatServer> cluster(String bus, String mode, UnaryOperator<MessageBus> wrap)
+            throws IOException, InterruptedException {
+        List<MessageBus> buses;
+        if (bus.equals("loopback")) {
+            buses = LoopbackBus.network(2);
+        } else {
+            List<InetSocketAddress> addresses = new ArrayList<>();
+            for (int i = 0; i < 2; i++) addresses.add(new InetSocketAddress("127.0.0.1", freePort()));
+            buses = new ArrayList<>();
+            for (int i = 0; i < 2; i++) buses.add(new TcpBus(i, addresses));
+        }
+        CountDownLatch up = new CountDownLatch(2);
+        for (int i = 0; i < 2; i++) {
+            Path node = dir.resolve("node" + i);
+            ChatServer server = new ChatServer(ServerConfig.parse(new String[] { "0", "--mode=" + mode,
+                    "--fsync=none", "--replay=0", "--history=" + node.resolve("chat_history.txt"),
+                    "--history-dir=" + node.resolve("history"), "--mailbox-dir=" + node.resolve("mailbox"),
+                    "--search-dir=" }), new Watched(wrap.apply(buses.get(i)), up));
+            servers.add(server);
+            Thread t = new Thread(server::start, "node-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        // Neither bus keeps messages for a node that has not started yet.
+        assertTrue(up.await(10, TimeUnit.SECONDS));
+        return servers;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    /** A name that node {@code owner} of two keeps in its registry. */
+    private static String ownedBy(int owner, String prefix) {
+        for (int i = 0; ; i++) {
+            if (Math.floorMod((prefix + i).hashCode(), 2) == owner) return prefix + i;
+        }
+    }
+
+    private Client connect(ChatServer server) throws IOException {
+        Client c = new Client(server.getPort());
+        clients.add(c);
+        return c;
+    }
+
+    @ParameterizedTest
+    @CsvSource({ "loopback, blocking", "loopback, nio", "tcp, blocking", "tcp, nio" })
+    void namesAreUniqueAcrossNodes(String bus, String mode) throws Exception {
+        List<ChatServer> nodes = cluster(bus, mode);
+        for (int owner = 0; owner < 2; owner++) {
+            String name = ownedBy(owner, "user");
+            assertTrue(connect(nodes.get(0)).login(name), name);
+            Client second = connect(nodes.get(1));
+            assertFalse(second.login(name), name);
+            // The connection is still usable for another name.
+            assertTrue(second.login(name + "x"));
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource({ "loopback, blocking", "loopback, nio", "tcp, blocking", "tcp, nio" })
+    void broadcastsReachTheRoomOnTheOtherNode(String bus, String mode) throws Exception {
+        List<ChatServer> nodes = cluster(bus, mode);
+        // Owned by the other node, so the login waits for a claim; what follows it waits too.
+        String alice = ownedBy(1, "alice");
+        Client a = connect(nodes.get(0));
+        Client bob = connect(nodes.get(1));
+        assertTrue(bob.login("bob"));
+        a.send(alice + "\nhello from node zero");
+        String line = bob.readUntil(l -> l.contains("hello from node zero"));
+        assertTrue(line.contains(alice), line);
+    }
+
+    @ParameterizedTest
+    @CsvSource({ "loopback, blocking", "loopback, nio", "tcp, blocking", "tcp, nio" })
+    void privateMessagesGoOnlyToTheRecipientsNode(String bus, String mode) throws Exception {
+        List<ChatServer> nodes = cluster(bus, mode);
+        // Owned by the sender's node, so the PM takes the owner's forwarding hop.
+        String bob = ownedBy(0, "bob");
+        Client alice = connect(nodes.get(0));
+        Client carol = connect(nodes.get(0));
+        Client dave = connect(nodes.get(1));
+        Client b = connect(nodes.get(1));
+        assertTrue(alice.login("alice"));
+        assertTrue(carol.login("carol"));
+        assertTrue(dave.login("dave"));
+        assertTrue(b.login(bob));
+
+        alice.send("/pm " + bob + " just for you");
+        String line = b.readUntil(l -> l.contains("just for you"));
+        assertTrue(line.contains("alice"), line);
+        alice.send("end of test");
+        for (Client other : new Client[] { carol, dave, b }) {
+            assertFalse(other.readUntil(l -> l.contains("end of test") || l.contains("just for you"))
+                    .contains("just for you"));
+        }
+        assertTrue(alice.readUntil(l -> l.contains("end of test") || l.contains("could not deliver"))
+                .contains("end of test"));
+    }
+
+    @ParameterizedTest
+    @CsvSource({ "loopback", "tcp" })
+    void aClaimGrantedTooLateIsReleased(String bus) throws Exception {
+        List<HeldReplies> held = new ArrayList<>();
+        List<ChatServer> nodes = cluster(bus, "nio", b -> {
+            HeldReplies h = new HeldReplies(b);
+            held.add(h);
+            return h;
+        });
+        String name = ownedBy(1, "late");
+        HeldReplies node0 = held.get(0);
+        node0.holding = true;
+        // Refused once the claim times out, though the owner granted it.
+        assertFalse(connect(nodes.get(0)).login(name));
+        node0.release();
+        // The owner dropped the grant, so the name is free on either node.
+        assertTrue(held.get(1).released.await(10, TimeUnit.SECONDS));
+        assertTrue(connect(nodes.get(1)).login(name));
+    }
+
+    @ParameterizedTest
+    @CsvSource({ "loopback", "tcp" })
+    void aNameTakenWhileALinkWasDownEndsTheOlderSession(String bus) throws Exception {
+        List<Tapped> tapped = new ArrayList<>();
+        List<ChatServer> nodes = cluster(bus, "nio", b -> {
+            Tapped t = new Tapped(b);
+            tapped.add(t);
+            return t;
+        });
+        String name = ownedBy(1, "split");
+        Client first = connect(nodes.get(0));
+        assertTrue(first.login(name));
+        // The owner loses its link from node 0, which is still serving the user, and drops them.
+        tapped.get(1).listener.nodeDown(0);
+        assertTrue(connect(nodes.get(1)).login(name));
+        // Node 0 re-claims its users once the link is back; the owner refuses, so node 0 lets go.
+        tapped.get(0).listener.nodeUp(1);
+        // Closed, not just quiet: a read timeout would be an IOException too.
+        assertEquals("Connection closed", assertThrows(IOException.class, () -> first.readUntil(l -> false)).getMessage());
+        Client third = connect(nodes.get(0));
+        assertFalse(third.login(name));
+    }
+
+    @ParameterizedTest
+    @CsvSource({ "loopback", "tcp" })
+    void forwardedOfflineMessagesStayUntilTheyArrive(String bus) throws Exception {
+        List<Tapped> tapped = new ArrayList<>();
+        List<ChatServer> nodes = cluster(bus, "nio", b -> {
+            Tapped t = new Tapped(b);
+            tapped.add(t);
+            return t;
+        });
+        // Kept by node 0, read on node 1.
+        String bob = ownedBy(0, "bob");
+        Client alice = connect(nodes.get(0));
+        assertTrue(alice.login("alice"));
+        alice.send("/pm " + bob + " while you were out");
+        alice.readUntil(l -> l.contains("will get your message"));
+
+        // The forwarded batch is lost on the way to node 1.
+        Tapped node1 = tapped.get(1);
+        node1.dropping = ClusterMessage.FORWARDED;
+        Client first = connect(nodes.get(1));
+        assertTrue(first.login(bob));
+        assertTrue(node1.dropped.await(10, TimeUnit.SECONDS));
+        first.send("/quit");
+        // The owner has let go of the name before the next login asks for it.
+        assertTrue(tapped.get(0).released.await(10, TimeUnit.SECONDS));
+
+        node1.dropping = -1;
+        Client second = connect(nodes.get(1));
+        // The forwarded PM may come before the welcome line.
+        second.send(bob);
+        assertTrue(second.readUntil(l -> l.contains("while you were out")).contains("alice"));
+    }
+
+    /**
+     * A bus whose listener the test can call directly, to fake link changes, which
+     * drops incoming messages of type {@link #dropping}, and counts down once its
+     * node has handled a release.
+     */
+    private static final class Tapped implements MessageBus {
+        private final MessageBus bus;
+        volatile Listener listener;
+        volatile int dropping = -1;
+        final CountDownLatch dropped = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+
+        Tapped(MessageBus bus) {
+            this.bus = bus;
+        }
+
+        @Override public int nodeId() { return bus.nodeId(); }
+
+        @Override public int nodeCount() { return bus.nodeCount(); }
+
+        @Override
+        public void start(Listener listener) throws IOException {
+            this.listener = listener;
+            bus.start(new Listener() {
+                @Override public void onMessage(int fromNode, ClusterMessage message) {
+                    if (message.type == dropping) {
+                        dropped.countDown();
+                        return;
+                    }
+                    listener.onMessage(fromNode, message);
+                    if (message.type == ClusterMessage.RELEASE) released.countDown();
+                }
+
+                @Override public void nodeUp(int node) { listener.nodeUp(node); }
+
+                @Override public void nodeDown(int node) { listener.nodeDown(node); }
+            });
+        }
+
+        @Override public void send(int node, ClusterMessage message) { bus.send(node, message); }
+
+        @Override public void publish(ClusterMessage message) { bus.publish(message); }
+
+        @Override public void close() { bus.close(); }
+    }
+
+    /**
+     * A bus that, while {@link #holding}, keeps claim replies from its node until
+     * {@link #release}, and counts down once its node has handled a release.
+     */
+    private static final class HeldReplies implements MessageBus {
+        private final MessageBus bus;
+        private final Queue<Runnable> held = new ConcurrentLinkedQueue<>();
+        final CountDownLatch released = new CountDownLatch(1);
+        volatile boolean holding;
+
+        HeldReplies(MessageBus bus) {
+            this.bus = bus;
+        }
+
+        void release() {
+            holding = false;
+            Runnable r;
+            while ((r = held.poll()) != null) r.run();
+        }
+
+        @Override public int nodeId() { return bus.nodeId(); }
+
+        @Override public int nodeCount() { return bus.nodeCount(); }
+
+        @Override
+        public void start(Listener listener) throws IOException {
+            bus.start(new Listener() {
+                @Override public void onMessage(int fromNode, ClusterMessage message) {
+                    if (holding && message.type == ClusterMessage.CLAIM_REPLY) {
+                        held.add(() -> listener.onMessage(fromNode, message));
+                    } else {
+                        listener.onMessage(fromNode, message);
+                        if (message.type == ClusterMessage.RELEASE) released.countDown();
+                    }
+                }
+
+                @Override public void nodeUp(int node) { listener.nodeUp(node); }
+
+                @Override public void nodeDown(int node) { listener.nodeDown(node); }
+            });
+        }
+
+        @Override public void send(int node, ClusterMessage message) { bus.send(node, message); }
+
+        @Override public void publish(ClusterMessage message) { bus.publish(message); }
+
+        @Override public void close() { bus.close(); }
+    }
+
+    /** A bus that counts down when the link to another node first comes up. */
+    private static final class Watched implements MessageBus {
+        private final MessageBus bus;
+        private final CountDownLatch up;
+
+        Watched(MessageBus bus, CountDownLatch up) {
+            this.bus = bus;
+            this.up = up;
+        }
+
+        @Override public int nodeId() { return bus.nodeId(); }
+
+        @Override public int nodeCount() { return bus.nodeCount(); }
+
+        @Override
+        public void start(Listener listener) throws IOException {
+            bus.start(new Listener() {
+                @Override public void onMessage(int fromNode, ClusterMessage message) {
+                    listener.onMessage(fromNode, message);
+                }
+
+                @Override public void nodeUp(int node) {
+                    listener.nodeUp(node);
+                    up.countDown();
+                }
+
+                @Override public void nodeDown(int node) {
+                    listener.nodeDown(node);
+                }
+            });
+        }
+
+        @Override public void send(int node, ClusterMessage message) { bus.send(node, message); }
+
+        @Override public void publish(ClusterMessage message) { bus.publish(message); }
+
+        @Override public void close() { bus.close(); }
+    }
+
+    /** A text-protocol client. */
+    private static final class Client {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final PrintWriter out;
+
+        Client(int port) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            socket.setSoTimeout(10_000);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new PrintWriter(socket.getOutputStream(), true);
+        }
+
+        /** Sends a name; true once welcomed, false if it was refused. */
+        boolean login(String name) throws IOException {
+            send(name);
+            return readUntil(l -> l.startsWith("Welcome") || l.startsWith("Invalid or taken")).startsWith("Welcome");
+        }
+
+        void send(String line) {
+            out.print(line + "\n");
+            out.flush();
+        }
+
+        /** The first line matching; fails the test on a timeout or a closed connection. */
+        String readUntil(Predicate<String> match) throws IOException {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (match.test(line)) return line;
+            }
+            throw new IOException("Connection closed");
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
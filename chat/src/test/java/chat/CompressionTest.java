@@ -0,0 +1,196 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CompressionTest {
+    private static final Frame ACK = Frame.control(("OK " + Compression.DEFLATE + "\n").getBytes(StandardCharsets.UTF_8));
+
+    private static Frame line(String text) {
+        return Frame.text(text);
+    }
+
+    private static byte[] concat(List<byte[]> parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] p : parts) out.write(p, 0, p.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] chunks) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new Compression.InflatingInputStream(new ByteArrayInputStream(chunks))) {
+            byte[] buf = new byte[1000];
+            int n;
+            while ((n = in.read(buf, 0, buf.length)) > 0) out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /** What {@code frames} would have been on the wire without compression. */
+    private static byte[] plain(List<Frame> frames, boolean binary) {
+        List<byte[]> parts = new ArrayList<>();
+        for (Frame f : frames) parts.add(f.bytes(binary));
+        return concat(parts);
+    }
+
+    private static List<Frame> chat(int n) {
+        List<Frame> frames = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            byte[] msg = ("message number " + i + " about nothing much").getBytes(StandardCharsets.UTF_8);
+            byte[] line = TextProtocol.formatChat(System.currentTimeMillis(), "alice".getBytes(StandardCharsets.UTF_8),
+                    null, msg, 0, msg.length);
+            frames.add(Frame.line(BinaryProtocol.CHAT, i + 1, System.currentTimeMillis(), line, 5, msg.length));
+        }
+        return frames;
+    }
+
+    @Test
+    void framesUpToTheAckGoOutAsTheyAre() {
+        Compression.Encoder e = new Compression.Encoder(ACK, Compression.Mode.STREAM);
+        OutboundQueue queue = new OutboundQueue(16, OutboundQueue.Overflow.DROP_OLDEST);
+        Frame prompt = line("Enter username:");
+        queue.offer(line("not taken along"));
+        assertArrayEquals(prompt.bytes(false), e.encode(prompt, queue, false));
+        assertArrayEquals(ACK.bytes(false), e.encode(ACK, queue, false));
+        // Nothing before the ack was batched with it.
+        assertArrayEquals(line("not taken along").bytes(false), queue.poll().bytes(false));
+        e.end();
+    }
+
+    @Test
+    void streamChunksCarryOnFromEachOtherAndBatchTheQueue() throws IOException {
+        for (boolean binary : new boolean[] { false, true }) {
+            Compression.Encoder e = new Compression.Encoder(ACK, Compression.Mode.STREAM);
+            OutboundQueue queue = new OutboundQueue(1000, OutboundQueue.Overflow.DROP_OLDEST);
+            e.encode(ACK, queue, binary);
+            List<Frame> frames = chat(200);
+            frames.add(0, line("Welcome alice! You are in #lobby. Commands: /quit, /list [room] [prefix*] [page], /join <room>,"
+                    + " /leave, /pm <user> <message>, /history [n | since <time>], /search <words>"));
+            List<byte[]> chunks = new ArrayList<>();
+            chunks.add(e.encode(frames.get(0), queue, binary));
+            for (Frame f : frames.subList(1, frames.size())) queue.offer(f);
+            Frame next;
+            while ((next = queue.poll()) != null) chunks.add(e.encode(next, queue, binary));
+            e.end();
+
+            // The rest of the queue went out in one chunk, and the repetition compressed well.
+            assertEquals(2, chunks.size());
+            byte[] plain = plain(frames, binary);
+            byte[] wire = concat(chunks);
+            assertTrue(wire.length < plain.length / 4, wire.length + " of " + plain.length);
+            assertArrayEquals(plain, inflate(wire));
+        }
+    }
+
+    @Test
+    void streamBatchesStopAfterBatchBytes() throws IOException {
+        Compression.Encoder e = new Compression.Encoder(ACK, Compression.Mode.STREAM);
+        OutboundQueue queue = new OutboundQueue(10_000, OutboundQueue.Overflow.DROP_OLDEST);
+        e.encode(ACK, queue, false);
+        List<Frame> frames = chat(3000);
+        for (Frame f : frames) queue.offer(f);
+        List<byte[]> chunks = new ArrayList<>();
+        Frame next;
+        while ((next = queue.poll()) != null) chunks.add(e.encode(next, queue, false));
+        byte[] plain = plain(frames, false);
+        assertTrue(chunks.size() >= plain.length / (Compression.BATCH + 200), String.valueOf(chunks.size()));
+        assertArrayEquals(plain, inflate(concat(chunks)));
+
+        // Once ended, the encoder sends nothing more.
+        e.end();
+        assertEquals(0, e.encode(line("late"), queue, false).length);
+    }
+
+    @Test
+    void sharedChunksResetAndAreCachedPerFrame() throws IOException {
+        for (boolean binary : new boolean[] { false, true }) {
+            Compression.Encoder e = new Compression.Encoder(ACK, Compression.Mode.SHARED);
+            OutboundQueue queue = new OutboundQueue(16, OutboundQueue.Overflow.DROP_OLDEST);
+            e.encode(ACK, queue, binary);
+            List<Frame> frames = chat(5);
+            frames.add(line("Some messages were missed while you were away; use /history to see them."));
+            frames.add(frames.get(0));
+            List<byte[]> chunks = new ArrayList<>();
+            for (Frame f : frames) chunks.add(e.encode(f, queue, binary));
+            // The same frame gives the same chunk, as it would for every recipient.
+            assertSame(chunks.get(0), chunks.get(chunks.size() - 1));
+            assertTrue(chunks.get(0)[0] < 0, "reset bit");
+            assertArrayEquals(plain(frames, binary), inflate(concat(chunks)));
+        }
+    }
+
+    @Test
+    void aResetChunkMayFollowStreamChunks() throws IOException {
+        Compression.Encoder e = new Compression.Encoder(ACK, Compression.Mode.STREAM);
+        OutboundQueue queue = new OutboundQueue(16, OutboundQueue.Overflow.DROP_OLDEST);
+        e.encode(ACK, queue, false);
+        List<Frame> frames = chat(3);
+        List<byte[]> chunks = new ArrayList<>();
+        for (Frame f : frames) chunks.add(e.encode(f, queue, false));
+        Frame notice = line("Some messages were missed while you were away; use /history to see them.");
+        frames.add(notice);
+        chunks.add(notice.chunk(false));
+        e.end();
+        assertArrayEquals(plain(frames, false), inflate(concat(chunks)));
+    }
+
+    @Test
+    void badChunksAreRefused() {
+        byte[] tooLarge = { 0x7F, 0, 0, 0 };
+        assertThrows(IOException.class, () -> inflate(tooLarge));
+        byte[] garbage = { 0, 0, 0, 3, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF };
+        assertThrows(IOException.class, () -> inflate(garbage));
+    }
+
+    @Test
+    void acceptedOnlyWhenTheAckNamesThisDictionary() {
+        assertTrue(Compression.accepted("OK " + Compression.DEFLATE));
+        assertTrue(Compression.accepted(BinaryProtocol.HELLO_OK + " " + Compression.DEFLATE));
+        assertFalse(Compression.accepted("OK deflate"));
+        assertFalse(Compression.accepted("OK deflate=" + (Compression.DICTIONARY_VERSION + 1)));
+        assertFalse(Compression.accepted("OK"));
+        assertFalse(Compression.accepted(null));
+    }
+
+    @Test
+    void serverCompressesOnlyForItsOwnDictionaryVersion(@TempDir Path dir) throws IOException {
+        ChatServer server = new ChatServer(ServerConfig.parse(new String[] { "0", "--fsync=none",
+                "--history=" + dir.resolve("chat_history.txt"), "--history-dir=" + dir.resolve("history"),
+                "--mailbox-max=0", "--search-dir=" }));
+        try {
+            String other = "deflate=" + (Compression.DICTIONARY_VERSION + 1);
+            String[][] cases = {
+                    { Compression.HELLO, "OK " + Compression.DEFLATE },
+                    { Compression.HELLO_BINARY, BinaryProtocol.HELLO_OK + " " + Compression.DEFLATE },
+                    { "/hello deflate", "OK" },
+                    { "/hello " + other, "OK" },
+                    { BinaryProtocol.HELLO + " " + other, BinaryProtocol.HELLO_OK },
+            };
+            for (String[] c : cases) {
+                ClientHandler h = new ClientHandler(server, (Socket) null);
+                assertTrue(h.handleLine(c[0]));
+                byte[] ack = h.outbound().poll().bytes(false);
+                assertEquals(c[1] + "\n", new String(ack, StandardCharsets.UTF_8), c[0]);
+            }
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class HashedWheelTimerTest {
+    /** 10 ms ticks on 8 buckets: one turn of the wheel is 80 ms. */
+    private final HashedWheelTimer timer = new HashedWheelTimer("test-timer", 10, TimeUnit.MILLISECONDS, 8);
+
+    @AfterEach
+    void tearDown() {
+        timer.close();
+    }
+
+    @Test
+    void tasksFireAtOrAfterTheirDeadlineInDeadlineOrder() throws InterruptedException {
+        long[] delays = { 250, 20, 120, 40, 0, 75 };
+        List<Long> fired = Collections.synchronizedList(new ArrayList<>());
+        List<Long> early = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(delays.length);
+        for (long delay : delays) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+            timer.schedule(() -> {
+                if (System.nanoTime() < deadline) early.add(delay);
+                fired.add(delay);
+                done.countDown();
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        assertEquals(delays.length, timer.pending());
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        // Ordered to the tick, even across turns of the wheel: 120 and 250 ms wait out whole rounds.
+        assertEquals(Arrays.asList(0L, 20L, 40L, 75L, 120L, 250L), fired);
+        assertEquals(Collections.emptyList(), early);
+        assertEquals(0, timer.pending());
+    }
+
+    @Test
+    void aFailingTaskDoesNotStopTheTimer() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        timer.schedule(() -> { throw new IllegalStateException("boom"); }, 0, TimeUnit.MILLISECONDS);
+        timer.schedule(done::countDown, 30, TimeUnit.MILLISECONDS);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void closedTimerRunsNothing() throws InterruptedException {
+        CountDownLatch ran = new CountDownLatch(1);
+        timer.schedule(ran::countDown, 50, TimeUnit.MILLISECONDS);
+        timer.close();
+        timer.schedule(ran::countDown, 0, TimeUnit.MILLISECONDS);
+        assertFalse(ran.await(200, TimeUnit.MILLISECONDS));
+    }
+}
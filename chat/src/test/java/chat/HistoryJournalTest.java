@@ -0,0 +1,61 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class HistoryJournalTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void closeWritesEverythingStillQueued() throws IOException {
+        Path file = dir.resolve("history.txt");
+        HistoryJournal journal = new HistoryJournal(file, HistoryJournal.Fsync.NONE, 1000, 100);
+        AtomicInteger batches = new AtomicInteger();
+        journal.onWrite(batches::incrementAndGet);
+        int n = 50_000;
+        for (int i = 0; i < n; i++) journal.append("line " + i);
+        journal.close();
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(n, lines.size());
+        for (int i = 0; i < n; i++) assertEquals("line " + i, lines.get(i));
+        assertTrue(batches.get() > 0);
+
+        journal.append("after close");
+        assertEquals(n, Files.readAllLines(file, StandardCharsets.UTF_8).size());
+    }
+
+    @Test
+    void taggedEntriesGoToTheFileAndTheStore() throws IOException {
+        Path file = dir.resolve("history.txt");
+        HistoryStore store = new HistoryStore(dir.resolve("store"), 1 << 20, 60_000);
+        HistoryJournal journal = new HistoryJournal(file, HistoryJournal.Fsync.EVERY_N, 1000, 2);
+        byte[] tag = "#dev ".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < 5; i++) {
+            byte[] line = ("msg " + i + "xxx").getBytes(StandardCharsets.UTF_8);
+            journal.append(tag, line, line.length - 3, store);
+        }
+        journal.close();
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(5, lines.size());
+        assertEquals("#dev msg 0", lines.get(0));
+        assertEquals("#dev msg 4", lines.get(4));
+        Iterator<byte[]> tail = store.tail(2);
+        assertEquals("msg 3", new String(tail.next(), StandardCharsets.UTF_8));
+        assertEquals("msg 4", new String(tail.next(), StandardCharsets.UTF_8));
+        store.close();
+    }
+}
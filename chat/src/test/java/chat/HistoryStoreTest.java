@@ -0,0 +1,130 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class HistoryStoreTest {
+    private static final long T0 = 1_700_000_000_000L;
+    private static final String PAD = new String(new char[80]).replace('\0', 'x');
+
+    @TempDir
+    Path dir;
+
+    private static byte[] record(int i) {
+        return ("msg " + i + " " + PAD).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<Integer> ids(Iterator<byte[]> it) {
+        List<Integer> ids = new ArrayList<>();
+        while (it.hasNext()) {
+            String s = new String(it.next(), StandardCharsets.UTF_8);
+            ids.add(Integer.parseInt(s.substring(4, s.indexOf(' ', 4))));
+        }
+        return ids;
+    }
+
+    private static List<Integer> range(int from, int to) {
+        List<Integer> r = new ArrayList<>();
+        for (int i = from; i < to; i++) r.add(i);
+        return r;
+    }
+
+    private int count(String glob) throws IOException {
+        int n = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, glob)) {
+            for (Path ignored : files) n++;
+        }
+        return n;
+    }
+
+    private HistoryStore fill(int n) throws IOException {
+        HistoryStore store = new HistoryStore(dir, 64 * 1024, Long.MAX_VALUE);
+        for (int i = 0; i < n; i++) {
+            store.append(T0 + i * 1000L, record(i));
+            if (i % 100 == 99) store.flush();
+        }
+        store.flush();
+        return store;
+    }
+
+    @Test
+    void rollsBySizeAndReadsAcrossSegments() throws IOException {
+        HistoryStore store = fill(5000);
+        assertTrue(count("*.log") > 5, "expected several segments");
+        assertEquals(5000, store.endOrdinal());
+        assertEquals(range(4990, 5000), ids(store.tail(10)));
+        assertEquals(range(0, 5000), ids(store.tail(10_000)));
+        store.close();
+    }
+
+    @Test
+    void rollsByAge() throws IOException {
+        HistoryStore store = new HistoryStore(dir, 64 * 1024 * 1024, 10_000);
+        for (int i = 0; i < 35; i++) store.append(T0 + i * 1000L, record(i));
+        store.flush();
+        assertEquals(4, count("*.log"));
+        assertEquals(range(0, 35), ids(store.tail(100)));
+        store.close();
+    }
+
+    @Test
+    void sinceUsesTheTimestampIndex() throws IOException {
+        HistoryStore store = fill(5000);
+        assertEquals(range(1234, 1244), ids(store.since(T0 + 1234 * 1000L, 10)));
+        // Between two records: starts at the next one.
+        assertEquals(range(2001, 2004), ids(store.since(T0 + 2000 * 1000L + 1, 3)));
+        assertEquals(range(0, 2), ids(store.since(0, 2)));
+        assertFalse(store.since(T0 + 10_000 * 1000L, 10).hasNext());
+        store.close();
+    }
+
+    @Test
+    void cursorsSeeWhatWasAppendedAfterEarlierOnes() throws IOException {
+        HistoryStore store = new HistoryStore(dir, 64 * 1024 * 1024, Long.MAX_VALUE);
+        store.append(T0, record(0));
+        store.flush();
+        assertEquals(range(0, 1), ids(store.tail(10)));
+        for (int i = 1; i < 500; i++) store.append(T0 + i, record(i));
+        assertEquals(range(0, 1), ids(store.tail(10)), "unflushed records are not visible");
+        store.flush();
+        assertEquals(range(490, 500), ids(store.tail(10)));
+        assertEquals(range(0, 500), ids(store.tail(1000)));
+        store.close();
+    }
+
+    @Test
+    void reopensFromIndexFilesAndCutsATornRecord() throws IOException {
+        fill(3000).close();
+        assertEquals(count("*.log"), count("*.idx"));
+
+        Path last = null;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.log")) {
+            for (Path f : files) if (last == null || f.compareTo(last) > 0) last = f;
+        }
+        // A record whose header promises more bytes than were written.
+        Files.write(last, new byte[] { 0, 0, 1, 0, 1, 2, 3 }, StandardOpenOption.APPEND);
+
+        HistoryStore reopened = new HistoryStore(dir, 64 * 1024, Long.MAX_VALUE);
+        assertEquals(3000, reopened.endOrdinal());
+        assertEquals(range(2995, 3000), ids(reopened.tail(5)));
+        assertEquals(range(100, 103), ids(reopened.since(T0 + 100 * 1000L, 3)));
+        reopened.append(T0 + 3000 * 1000L, record(3000));
+        reopened.flush();
+        assertEquals(range(2998, 3001), ids(reopened.tail(3)));
+        reopened.close();
+    }
+}
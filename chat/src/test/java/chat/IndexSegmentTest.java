@@ -0,0 +1,100 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class IndexSegmentTest {
+    @TempDir
+    Path dir;
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Ids of {@code c}, or an empty array if it is null. */
+    private static int[] docs(Postings.Cursor c) {
+        if (c == null) return new int[0];
+        int[] out = new int[c.size()];
+        int n = 0;
+        for (int d = c.next(); d != Postings.NO_MORE; d = c.next()) out[n++] = d;
+        return Arrays.copyOf(out, n);
+    }
+
+    /**
+     * A segment of {@code count} documents from {@code base}: document {@code d} has
+     * offset {@code 100 * d} and the terms "all", "mod<d % 3>" and, for a few, "rare".
+     */
+    private IndexSegment segment(int base, int count) throws IOException {
+        Map<String, List<Integer>> postings = new TreeMap<>();
+        long[] offsets = new long[count];
+        for (int d = base; d < base + count; d++) {
+            offsets[d - base] = 100L * d;
+            List<String> terms = new ArrayList<>(Arrays.asList("all", "mod" + d % 3));
+            if (d % 97 == 0) terms.add("rare");
+            for (String t : terms) postings.computeIfAbsent(t, k -> new ArrayList<>()).add(d);
+        }
+        // ASCII terms: String order is byte order.
+        try (IndexSegment.Writer w = new IndexSegment.Writer(dir.resolve(base + "-" + (base + count) + ".seg"))) {
+            for (Map.Entry<String, List<Integer>> e : postings.entrySet()) {
+                int[] docs = e.getValue().stream().mapToInt(Integer::intValue).toArray();
+                w.add(bytes(e.getKey()), docs, docs.length);
+            }
+            return w.finish(base, offsets, count);
+        }
+    }
+
+    private static int[] expected(int from, int to, IntPredicate keep) {
+        return IntStream.range(from, to).filter(keep).toArray();
+    }
+
+    @Test
+    void segmentFindsItsTermsAndOffsets() throws IOException {
+        IndexSegment s = segment(1000, 500);
+        assertEquals(1500, s.docEnd());
+        assertArrayEquals(expected(1000, 1500, d -> true), docs(s.cursor(bytes("all"))));
+        assertArrayEquals(expected(1000, 1500, d -> d % 3 == 1), docs(s.cursor(bytes("mod1"))));
+        assertArrayEquals(expected(1000, 1500, d -> d % 97 == 0), docs(s.cursor(bytes("rare"))));
+        assertNull(s.cursor(bytes("absent")));
+        assertNull(s.cursor(bytes("a")));
+        assertNull(s.cursor(bytes("zzz")));
+        assertEquals(100L * 1234, s.offset(1234));
+
+        IndexSegment reopened = IndexSegment.open(s.file);
+        assertEquals(1000, reopened.docBase);
+        assertArrayEquals(docs(s.cursor(bytes("mod2"))), docs(reopened.cursor(bytes("mod2"))));
+    }
+
+    @Test
+    void mergeConcatenatesPostingsAndOffsetsInOrder() throws IOException {
+        List<IndexSegment> inputs = Arrays.asList(segment(0, 300), segment(300, 5), segment(305, 1000));
+        IndexSegment merged = IndexSegment.merge(inputs, dir.resolve("0-1305.seg"));
+        assertEquals(0, merged.docBase);
+        assertEquals(1305, merged.docCount);
+        assertArrayEquals(expected(0, 1305, d -> true), docs(merged.cursor(bytes("all"))));
+        assertArrayEquals(expected(0, 1305, d -> d % 3 == 0), docs(merged.cursor(bytes("mod0"))));
+        // "rare" is missing from the middle input.
+        assertArrayEquals(expected(0, 1305, d -> d % 97 == 0), docs(merged.cursor(bytes("rare"))));
+        for (int d = 0; d < 1305; d += 7) assertEquals(100L * d, merged.offset(d));
+        assertFalse(Files.exists(dir.resolve("0-1305.seg.tmp")));
+
+        Postings.Cursor[] both = { merged.cursor(bytes("rare")), merged.cursor(bytes("mod1")) };
+        assertArrayEquals(expected(0, 1305, d -> d % 97 == 0 && d % 3 == 1), Postings.intersect(both, 0));
+    }
+}
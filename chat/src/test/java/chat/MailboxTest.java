@@ -0,0 +1,156 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MailboxTest {
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+    /** Big enough that a few hundred messages pass the 1 MB compaction threshold. */
+    private static final String FILLER = new String(new char[4000]).replace('\0', 'x');
+
+    @TempDir
+    Path dir;
+
+    private Mailbox open() throws IOException {
+        return new Mailbox(dir, 1, 1000, DAY, 64L * 1024 * 1024);
+    }
+
+    private static boolean store(Mailbox mailbox, String to, String text) {
+        byte[] sender = "alice".getBytes(StandardCharsets.UTF_8);
+        byte[] msg = text.getBytes(StandardCharsets.UTF_8);
+        long now = System.currentTimeMillis();
+        byte[] line = TextProtocol.formatChat(now, sender, to.getBytes(StandardCharsets.UTF_8), msg, 0, msg.length);
+        return mailbox.store(to, now, line, sender.length, msg.length).join();
+    }
+
+    /** Every message left for {@code user}, by payload, acknowledging them all. */
+    private static List<String> deliverAll(Mailbox mailbox, String user) {
+        List<String> out = new ArrayList<>();
+        Mailbox.Delivery delivery = mailbox.deliver(user);
+        Mailbox.Message[] batch;
+        while ((batch = delivery.next().join()).length > 0) {
+            for (Mailbox.Message m : batch) {
+                out.add(new String(m.line, m.line.length - 1 - m.payloadLength, m.payloadLength, StandardCharsets.UTF_8));
+            }
+        }
+        return out;
+    }
+
+    private Path shardFile() {
+        return dir.resolve("0.mbox");
+    }
+
+    @Test
+    void deliversInOrderAcrossBatchesAndOnlyOnce() throws IOException {
+        Mailbox mailbox = open();
+        int n = Mailbox.BATCH * 2 + 5;
+        List<String> sent = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            sent.add("message " + i);
+            assertTrue(store(mailbox, "bob", "message " + i));
+        }
+        assertEquals(n, mailbox.count("bob"));
+        assertEquals(sent, deliverAll(mailbox, "bob"));
+        assertEquals(0, mailbox.count("bob"));
+        assertEquals(new ArrayList<String>(), deliverAll(mailbox, "bob"));
+        mailbox.close();
+    }
+
+    @Test
+    void sendersWithNamesOver32KiBComeBackWhole() throws IOException {
+        Mailbox mailbox = open();
+        byte[] sender = new String(new char[40_000]).replace('\0', 'a').getBytes(StandardCharsets.UTF_8);
+        byte[] msg = "hi".getBytes(StandardCharsets.UTF_8);
+        long now = System.currentTimeMillis();
+        byte[] line = TextProtocol.formatChat(now, sender, "bob".getBytes(StandardCharsets.UTF_8), msg, 0, msg.length);
+        assertTrue(mailbox.store("bob", now, line, sender.length, msg.length).join());
+        Mailbox.Message m = mailbox.deliver("bob").next().join()[0];
+        assertEquals(sender.length, m.nameLength);
+        mailbox.close();
+    }
+
+    @Test
+    void anUnacknowledgedBatchIsDeliveredAgain() throws IOException {
+        Mailbox mailbox = open();
+        for (int i = 0; i < 3; i++) store(mailbox, "bob", "message " + i);
+        assertEquals(3, mailbox.deliver("bob").next().join().length);
+        mailbox.close();
+
+        mailbox = open();
+        assertEquals(Arrays.asList("message 0", "message 1", "message 2"), deliverAll(mailbox, "bob"));
+        mailbox.close();
+        mailbox = open();
+        assertEquals(0, mailbox.count("bob"));
+        mailbox.close();
+    }
+
+    @Test
+    void perUserCapRefusesMore() throws IOException {
+        Mailbox mailbox = new Mailbox(dir, 1, 2, DAY, 64L * 1024 * 1024);
+        assertTrue(store(mailbox, "bob", "one"));
+        assertTrue(store(mailbox, "bob", "two"));
+        assertFalse(store(mailbox, "bob", "three"));
+        assertTrue(store(mailbox, "carol", "one"));
+        mailbox.close();
+        assertFalse(store(mailbox, "carol", "after close"));
+    }
+
+    @Test
+    void compactionKeepsUndeliveredMessagesReadable() throws IOException {
+        Mailbox mailbox = open();
+        for (int i = 0; i < 300; i++) store(mailbox, "bob", FILLER + i);
+        for (int i = 0; i < 3; i++) store(mailbox, "carol", "kept " + i);
+        long before = Files.size(shardFile());
+        assertEquals(300, deliverAll(mailbox, "bob").size());
+
+        // Bob's records were dead weight; only Carol's, and nothing of the copy, are left.
+        long after = Files.size(shardFile());
+        assertTrue(after < before / 100, before + " -> " + after);
+        assertFalse(Files.exists(dir.resolve("0.mbox.tmp")));
+        assertTrue(store(mailbox, "carol", "kept 3"));
+        assertEquals(Arrays.asList("kept 0", "kept 1", "kept 2", "kept 3"), deliverAll(mailbox, "carol"));
+        mailbox.close();
+    }
+
+    @Test
+    void compactedFileIsRecoveredOnReopen() throws IOException {
+        Mailbox mailbox = open();
+        for (int i = 0; i < 300; i++) store(mailbox, "bob", FILLER + i);
+        for (int i = 0; i < 3; i++) store(mailbox, "carol", "kept " + i);
+        deliverAll(mailbox, "bob");
+        mailbox.close();
+
+        mailbox = open();
+        assertEquals(0, mailbox.count("bob"));
+        assertEquals(Arrays.asList("kept 0", "kept 1", "kept 2"), deliverAll(mailbox, "carol"));
+        mailbox.close();
+    }
+
+    @Test
+    void failedCompactionLeavesTheShardAsItWas() throws IOException {
+        Mailbox mailbox = open();
+        for (int i = 0; i < 300; i++) store(mailbox, "bob", FILLER + i);
+        for (int i = 0; i < 3; i++) store(mailbox, "carol", "kept " + i);
+        // The copy cannot be created where a directory is in the way.
+        Files.createDirectory(dir.resolve("0.mbox.tmp"));
+        long before = Files.size(shardFile());
+        deliverAll(mailbox, "bob");
+
+        assertTrue(Files.size(shardFile()) >= before);
+        assertEquals(Arrays.asList("kept 0", "kept 1", "kept 2"), deliverAll(mailbox, "carol"));
+        mailbox.close();
+    }
+}
@@ -0,0 +1,50 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+
+class MessageListModelTest {
+    private static void add(MessageListModel model, int from, int to) {
+        for (int i = from; i < to; i++) model.add(ChatMessage.bubble("alice", "message " + i, false, "12:00"));
+    }
+
+    @Test
+    void oldSegmentsAreDroppedFromTheSpill() throws IOException {
+        // Ten messages per segment, eight segments at most.
+        MessageListModel model = new MessageListModel(10, 5, 70);
+        try {
+            add(model, 0, 200);
+            assertEquals("message 199", model.getElementAt(9).text);
+            while (model.pageOlder() > 0) { }
+            assertFalse(model.hasOlder());
+            assertEquals("message 120", model.getElementAt(0).text);
+            assertEquals("message 129", model.getElementAt(9).text);
+        } finally {
+            model.close();
+        }
+    }
+
+    @Test
+    void pagingNewerSkipsWhatWasDroppedWhileScrolledBack() throws IOException {
+        MessageListModel model = new MessageListModel(10, 5, 70);
+        try {
+            add(model, 0, 20);
+            while (model.pageOlder() > 0) { }
+            assertEquals("message 0", model.getElementAt(0).text);
+            // Scrolled back, so these are only spilled, and they push messages 0-19 out of it.
+            add(model, 20, 100);
+            assertTrue(model.pageNewer() > 0);
+            assertEquals("message 20", model.getElementAt(0).text);
+            while (model.pageNewer() > 0) { }
+            assertTrue(model.atTail());
+            assertEquals("message 99", model.getElementAt(model.getSize() - 1).text);
+        } finally {
+            model.close();
+        }
+    }
+}
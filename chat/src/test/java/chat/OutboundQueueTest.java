@@ -0,0 +1,98 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+class OutboundQueueTest {
+    private static Frame line(String s) {
+        return Frame.text(s);
+    }
+
+    private static String text(Frame f) {
+        return new String(f.bytes(false), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void dropOldestKeepsTheNewest() {
+        OutboundQueue q = new OutboundQueue(2, OutboundQueue.Overflow.DROP_OLDEST);
+        assertTrue(q.offer(line("a")));
+        assertTrue(q.offer(line("b")));
+        assertTrue(q.offer(line("c")));
+        assertEquals(1, q.dropped());
+        assertEquals("b\n", text(q.poll()));
+        assertEquals("c\n", text(q.poll()));
+        assertNull(q.poll());
+    }
+
+    @Test
+    void disconnectRefusesWhenFull() {
+        OutboundQueue q = new OutboundQueue(1, OutboundQueue.Overflow.DISCONNECT);
+        assertTrue(q.offer(line("a")));
+        assertFalse(q.offer(line("b")));
+        assertEquals(1, q.depth());
+        assertEquals(1, q.dropped());
+    }
+
+    @Test
+    void coalesceMergesIntoTheTail() {
+        OutboundQueue q = new OutboundQueue(2, OutboundQueue.Overflow.COALESCE);
+        q.offer(line("a"));
+        q.offer(line("b"));
+        q.offer(line("c"));
+        q.offer(line("d"));
+        assertEquals(2, q.coalesced());
+        assertEquals(2, q.depth());
+        assertEquals("a\n", text(q.poll()));
+        assertEquals("b\nc\nd\n", text(q.poll()));
+    }
+
+    @Test
+    void controlFramesAreNeverMergedOrDropped() {
+        Frame ack = Frame.control("OK binary\n".getBytes(StandardCharsets.UTF_8));
+        OutboundQueue q = new OutboundQueue(1, OutboundQueue.Overflow.COALESCE);
+        q.offer(ack);
+        q.offer(line("a"));
+        q.offer(line("b"));
+        assertSame(ack, q.poll());
+        assertEquals("a\nb\n", text(q.poll()));
+
+        OutboundQueue d = new OutboundQueue(1, OutboundQueue.Overflow.DROP_OLDEST);
+        d.offer(ack);
+        d.offer(line("a"));
+        d.offer(line("b"));
+        assertSame(ack, d.poll());
+        assertEquals("b\n", text(d.poll()));
+    }
+
+    @Test
+    void backlogGoesAheadOfLiveFramesAndIsNotCounted() throws InterruptedException {
+        OutboundQueue q = new OutboundQueue(1, OutboundQueue.Overflow.DISCONNECT);
+        q.offer(line("live"));
+        q.addBacklog(Arrays.asList(line("h1"), line("h2")).iterator());
+        q.addBacklog(Arrays.asList(line("h3")).iterator());
+        assertEquals("h1\n", text(q.take()));
+        assertEquals("h2\n", text(q.take()));
+        assertEquals("h3\n", text(q.take()));
+        assertEquals("live\n", text(q.take()));
+        q.close();
+        assertNull(q.take());
+    }
+
+    @Test
+    void addedBacklogWaitsForTheRestOfTheCurrentOne() throws InterruptedException {
+        OutboundQueue q = new OutboundQueue(1, OutboundQueue.Overflow.DISCONNECT);
+        q.addBacklog(Arrays.asList(line("m1"), line("m2")).iterator());
+        assertEquals("m1\n", text(q.take()));
+        q.addBacklog(Arrays.asList(line("h1")).iterator());
+        assertEquals("m2\n", text(q.take()));
+        assertEquals("h1\n", text(q.take()));
+    }
+}
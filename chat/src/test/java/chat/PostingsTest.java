@@ -0,0 +1,88 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class PostingsTest {
+    /** {@code n} ascending ids with random gaps, some of them wide enough for multi-byte varints. */
+    private static int[] docs(int n, long seed) {
+        Random random = new Random(seed);
+        int[] docs = new int[n];
+        int d = random.nextInt(3);
+        for (int i = 0; i < n; i++) {
+            docs[i] = d;
+            d += 1 + (random.nextInt(10) == 0 ? random.nextInt(100_000) : random.nextInt(20));
+        }
+        return docs;
+    }
+
+    /** The encoding of {@code docs}, behind a few bytes of something else as in a segment file. */
+    private static Postings.EncodedCursor encoded(int[] docs) {
+        Postings.Bytes out = new Postings.Bytes();
+        out.varint(300);
+        Postings.encode(docs, docs.length, out, new Postings.Bytes());
+        return new Postings.EncodedCursor(ByteBuffer.wrap(Arrays.copyOf(out.a, out.length)), 2);
+    }
+
+    private static int[] drain(Postings.Cursor c) {
+        int[] out = new int[c.size()];
+        int n = 0;
+        for (int d = c.next(); d != Postings.NO_MORE; d = c.next()) out[n++] = d;
+        return Arrays.copyOf(out, n);
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = { 0, 1, Postings.BLOCK, Postings.BLOCK + 1, 5 * Postings.BLOCK + 17 })
+    void decodesWhatWasEncoded(int n) {
+        int[] docs = docs(n, n);
+        Postings.EncodedCursor c = encoded(docs);
+        assertEquals(n, c.size());
+        assertArrayEquals(docs, drain(c));
+        assertEquals(Postings.NO_MORE, c.next());
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = { 1, Postings.BLOCK, 5 * Postings.BLOCK + 17 })
+    void advanceFindsTheFirstAtOrAfterTheTarget(int n) {
+        int[] docs = docs(n, 42 + n);
+        Random random = new Random(n);
+        for (Postings.Cursor c : new Postings.Cursor[] { encoded(docs), new Postings.ArrayCursor(docs, n) }) {
+            int target = 0;
+            while (true) {
+                target += random.nextInt(docs[n - 1] / 20 + 2);
+                int k = Arrays.binarySearch(docs, target);
+                int i = k >= 0 ? k : -k - 1;
+                int expected = i < n ? docs[i] : Postings.NO_MORE;
+                assertEquals(expected, c.advance(target), "advance(" + target + ")");
+                if (expected == Postings.NO_MORE) break;
+                // Asking for the same target again stays put.
+                assertEquals(expected, c.advance(target));
+            }
+        }
+    }
+
+    @Test
+    void intersectKeepsOnlyIdsInEveryList() {
+        int[] a = new int[1000];
+        int[] b = new int[1000];
+        for (int i = 0; i < a.length; i++) a[i] = 2 * i;
+        for (int i = 0; i < b.length; i++) b[i] = 3 * i;
+        int[] c = { 0, 6, 7, 12, 600, 894, 1800 };
+        Postings.Cursor[] lists = { encoded(a), new Postings.ArrayCursor(b, b.length), encoded(c) };
+        assertArrayEquals(new int[] { 0, 6, 12, 600, 894, 1800 }, Postings.intersect(lists, 0));
+
+        lists = new Postings.Cursor[] { new Postings.ArrayCursor(a, a.length), encoded(b) };
+        // Up to the end of the shorter list, 2 * 999.
+        int[] expected = new int[84];
+        for (int i = 0; i < expected.length; i++) expected[i] = 1500 + 6 * i;
+        assertArrayEquals(expected, Postings.intersect(lists, 1500));
+    }
+}
@@ -0,0 +1,77 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class RateLimiterTest {
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    void bucketAdmitsABurstThenAsksForAWait() {
+        TokenBucket bucket = new TokenBucket(10, 20);
+        long now = System.nanoTime();
+        for (int i = 0; i < 20; i++) assertEquals(0, bucket.acquire(1, now, SECOND));
+        // One token past the burst: a tenth of a second behind.
+        assertEquals(100 * MILLIS, bucket.acquire(1, now, SECOND));
+        // Too far behind: refused, and nothing taken.
+        assertEquals(-1, bucket.acquire(10, now, SECOND));
+        assertEquals(200 * MILLIS, bucket.acquire(1, now, SECOND));
+        // Refills at the rate: after half a second, five tokens are back.
+        assertEquals(0, bucket.acquire(3, now + 500 * MILLIS, SECOND));
+        assertEquals(0, bucket.acquire(1, now + 2 * SECOND + 300 * MILLIS, 0));
+    }
+
+    @Test
+    void bytesCountAsTokens() {
+        TokenBucket bucket = new TokenBucket(1000, 2000);
+        long now = System.nanoTime();
+        assertEquals(0, bucket.acquire(2000, now, SECOND));
+        assertEquals(SECOND / 2, bucket.acquire(500, now, SECOND));
+    }
+
+    @Test
+    void overTheLimitPausesReadsThenDropsThenDisconnects() {
+        RateLimiter.Counters counters = new RateLimiter.Counters();
+        RateLimiter limiter = new RateLimiter(new TokenBucket(1, 2), null, null, null, 2 * SECOND, 2, counters);
+        assertEquals(RateLimiter.Verdict.ADMIT, limiter.admit(10));
+        assertEquals(RateLimiter.Verdict.ADMIT, limiter.admit(10));
+        assertEquals(0, limiter.pauseNanos());
+
+        // Past the burst: still delivered, but reading stops for about a second.
+        assertEquals(RateLimiter.Verdict.ADMIT, limiter.admit(10));
+        long pause = limiter.pauseNanos();
+        assertTrue(pause > 900 * MILLIS && pause <= SECOND, String.valueOf(pause));
+        assertEquals(1, counters.throttled.sum());
+        assertEquals(RateLimiter.Verdict.ADMIT, limiter.admit(10));
+
+        // More than --max-throttle-ms behind: dropped, then disconnected on the second strike.
+        assertEquals(RateLimiter.Verdict.DROP, limiter.admit(10));
+        assertTrue(limiter.firstStrike());
+        assertEquals(RateLimiter.Verdict.DISCONNECT, limiter.admit(10));
+        assertEquals(2, counters.dropped.sum());
+        assertEquals(1, counters.disconnected.sum());
+    }
+
+    @Test
+    void sharedBucketsThrottleEveryConnection() {
+        RateLimiter.Counters counters = new RateLimiter.Counters();
+        TokenBucket global = new TokenBucket(1, 2);
+        RateLimiter a = new RateLimiter(null, null, global, null, SECOND, 0, counters);
+        RateLimiter b = new RateLimiter(null, null, global, null, SECOND, 1, counters);
+        assertEquals(RateLimiter.Verdict.ADMIT, a.admit(1));
+        assertEquals(RateLimiter.Verdict.ADMIT, b.admit(1));
+        assertEquals(RateLimiter.Verdict.ADMIT, a.admit(1));
+        assertTrue(a.pauseNanos() > 0);
+        assertEquals(0, b.pauseNanos());
+        // Far behind on the shared bucket: not b's fault, so no drops or strikes, only a full pause.
+        for (int i = 0; i < 5; i++) assertEquals(RateLimiter.Verdict.ADMIT, b.admit(1));
+        assertTrue(b.pauseNanos() > 900 * MILLIS, String.valueOf(b.pauseNanos()));
+        assertEquals(0, counters.dropped.sum());
+        assertEquals(0, counters.disconnected.sum());
+    }
+}
@@ -0,0 +1,94 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ResumeTest {
+    @TempDir
+    Path dir;
+
+    private ChatServer server;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new ChatServer(ServerConfig.parse(new String[] { "0", "--mode=nio", "--fsync=none", "--replay=0",
+                "--history=" + dir.resolve("chat_history.txt"), "--history-dir=" + dir.resolve("history"),
+                "--mailbox-dir=" + dir.resolve("mailbox"), "--search-dir=" }));
+        Thread t = new Thread(server::start, "server");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    void privateMessagesToAParkedSessionComeWithTheResume() throws Exception {
+        BinaryProtocol.Message session;
+        try (Socket first = binary()) {
+            BinaryProtocol.write(first.getOutputStream(), BinaryProtocol.LOGIN, "bob", "");
+            session = readUntil(first, BinaryProtocol.SESSION);
+        }
+        // Dropped without /quit: the session is kept for resuming.
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!server.isParked("bob")) {
+            assertTrue(System.currentTimeMillis() < deadline, "session was not parked");
+            Thread.sleep(10);
+        }
+
+        try (Socket alice = new Socket("127.0.0.1", server.getPort())) {
+            alice.setSoTimeout(10_000);
+            BufferedReader in = new BufferedReader(new InputStreamReader(alice.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = alice.getOutputStream();
+            out.write("alice\n/pm bob while you were away\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            String line;
+            while ((line = in.readLine()) != null && !line.contains("will get your message")) { }
+            assertTrue(line != null, "no notice that the PM was kept");
+        }
+
+        try (Socket next = binary()) {
+            BinaryProtocol.write(next.getOutputStream(), BinaryProtocol.RESUME, session.name,
+                    String.valueOf(session.id));
+            BinaryProtocol.Message pm = readUntil(next, BinaryProtocol.PM);
+            assertEquals("alice", pm.name);
+            assertEquals("while you were away", pm.payload);
+        }
+    }
+
+    /** A connection that has switched to binary frames. */
+    private Socket binary() throws IOException {
+        Socket s = new Socket("127.0.0.1", server.getPort());
+        s.setSoTimeout(10_000);
+        assertEquals("Enter username:", BinaryProtocol.readLine(s.getInputStream()));
+        s.getOutputStream().write((BinaryProtocol.HELLO + "\n").getBytes(StandardCharsets.UTF_8));
+        assertEquals(BinaryProtocol.HELLO_OK, BinaryProtocol.readLine(s.getInputStream()));
+        return s;
+    }
+
+    /** The first frame of this type; fails the test on a timeout or a closed connection. */
+    private static BinaryProtocol.Message readUntil(Socket s, byte type) throws IOException {
+        DataInputStream in = new DataInputStream(s.getInputStream());
+        BinaryProtocol.Message m;
+        while ((m = BinaryProtocol.read(in)) != null) {
+            if (m.type == type) return m;
+        }
+        throw new IOException("Connection closed");
+    }
+}
@@ -0,0 +1,139 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class RoomTest {
+    @TempDir
+    Path dir;
+
+    private ChatServer server;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = new ChatServer(ServerConfig.parse(new String[] { "0", "--fsync=none",
+                "--history=" + dir.resolve("chat_history.txt"), "--history-dir=" + dir.resolve("history"),
+                "--mailbox-max=0", "--search-dir=" }));
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop();
+    }
+
+    /** A logged-in user, with the login's output already taken from its queue, added to {@code room}. */
+    private ClientHandler member(Room room) {
+        ClientHandler h = new ClientHandler(server, (Socket) null);
+        h.handleLine("user" + room.size());
+        queued(h);
+        room.add(h);
+        return h;
+    }
+
+    private static void publish(Room room, int count) {
+        byte[] sender = "alice".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < count; i++) {
+            byte[] msg = ("message " + i).getBytes(StandardCharsets.UTF_8);
+            byte[] line = TextProtocol.formatChat(System.currentTimeMillis(), sender, null, msg, 0, msg.length);
+            room.publish(BinaryProtocol.CHAT, System.currentTimeMillis(), line, sender.length, msg.length);
+        }
+    }
+
+    /** The ids of the frames queued for {@code h}, in order. */
+    private static List<Long> queued(ClientHandler h) {
+        List<Long> ids = new ArrayList<>();
+        Frame f;
+        while ((f = h.outbound().poll()) != null) ids.add(f.id);
+        return ids;
+    }
+
+    private static List<Long> ids(Frame[] frames) {
+        List<Long> ids = new ArrayList<>();
+        for (Frame f : frames) ids.add(f.id);
+        return ids;
+    }
+
+    @Test
+    void resumeQueuesOnlyWhatCameAfterTheLastSeen() {
+        Room room = new Room("test", null, 8);
+        ClientHandler old = member(room);
+        publish(room, 5);
+        assertEquals(5, room.seq());
+
+        ClientHandler next = new ClientHandler(server, (Socket) null);
+        Frame[] missed = room.resume(old, next, 3);
+        assertEquals(Arrays.asList(4L, 5L), ids(missed));
+        publish(room, 1);
+        // The backlog goes out ahead of what is published after the switch, and the old connection gets nothing more.
+        assertEquals(Arrays.asList(4L, 5L, 6L), queued(next));
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L), queued(old));
+        assertSame(next, room.members()[0]);
+        assertEquals(1, room.size());
+    }
+
+    @Test
+    void concurrentPublishersReachEveryMemberInOrder() throws InterruptedException {
+        Room room = new Room("test", null, 8);
+        ClientHandler stays = member(room);
+        ClientHandler leaves = member(room);
+        queued(stays);
+        Thread[] publishers = new Thread[4];
+        for (int i = 0; i < publishers.length; i++) {
+            publishers[i] = new Thread(() -> publish(room, 100));
+            publishers[i].start();
+        }
+        room.remove(leaves);
+        List<Long> before = queued(leaves);
+        for (Thread t : publishers) t.join();
+
+        List<Long> all = new ArrayList<>();
+        for (long id = 1; id <= 400; id++) all.add(id);
+        assertEquals(all, queued(stays));
+        // What was published before the leave has all arrived by the time it returns, and nothing after.
+        assertEquals(all.subList(0, before.size()), before);
+        assertEquals(new ArrayList<Long>(), queued(leaves));
+    }
+
+    @Test
+    void messagesPastTheBufferAreReportedLost() {
+        Room room = new Room("test", null, 4);
+        ClientHandler old = member(room);
+        publish(room, 10);
+        Frame[] missed = room.resume(old, new ClientHandler(server, (Socket) null), 2);
+        // The first kept message is numbered above after + 1: 3 to 6 are gone.
+        assertEquals(Arrays.asList(7L, 8L, 9L, 10L), ids(missed));
+    }
+
+    @Test
+    void upToDateOrUnknownSessions() {
+        Room room = new Room("test", null, 4);
+        ClientHandler old = member(room);
+        publish(room, 3);
+        ClientHandler next = new ClientHandler(server, (Socket) null);
+        assertEquals(0, room.resume(old, next, 3).length);
+        assertNull(room.resume(old, new ClientHandler(server, (Socket) null), 0));
+    }
+
+    @Test
+    void withResumingOffNothingIsKept() {
+        Room room = new Room("test", null, 0);
+        ClientHandler old = member(room);
+        publish(room, 3);
+        assertEquals(3, room.seq());
+        assertEquals(0, room.resume(old, new ClientHandler(server, (Socket) null), 1).length);
+    }
+}
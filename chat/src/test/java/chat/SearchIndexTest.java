@@ -0,0 +1,58 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SearchIndexTest {
+    @TempDir
+    Path dir;
+
+    /** The matching lines, once the index has caught up with the whole file. */
+    private static List<String> search(SearchIndex index, String room, String... words) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        SearchIndex.Result r;
+        while ((r = index.search(room, Arrays.asList(words), null, null, 1)).partial) {
+            assertTrue(System.currentTimeMillis() < deadline, "index did not catch up");
+            Thread.sleep(10);
+        }
+        List<String> lines = new ArrayList<>();
+        for (byte[] line : r.lines) lines.add(new String(line, StandardCharsets.UTF_8).trim());
+        return lines;
+    }
+
+    @Test
+    void rebuildsFromHistoryWrittenBeforeRooms() throws IOException, InterruptedException {
+        Path history = dir.resolve("chat_history.txt");
+        // What the server wrote before rooms, then what it writes now.
+        Files.write(history, Arrays.asList(
+                "2024-01-01 10:00:00 [alice]: hello old world",
+                "2024-01-01 10:00:05 [alice -> bob]: hello old secret",
+                "2024-01-01 10:00:06 [Server]: bob has joined the chat.",
+                "#lobby 2025-01-01 10:00:00 [carol]: hello new world",
+                "#dev 2025-01-01 10:00:01 [dave]: hello dev world",
+                "2025-01-01 10:00:02 [carol -> dave]: hello new secret"), StandardCharsets.UTF_8);
+        SearchIndex index = new SearchIndex(dir.resolve("search"), history);
+        try {
+            assertEquals(Arrays.asList("2025-01-01 10:00:00 [carol]: hello new world",
+                    "2024-01-01 10:00:00 [alice]: hello old world"), search(index, "lobby", "hello"));
+            assertEquals(Collections.singletonList("2025-01-01 10:00:01 [dave]: hello dev world"),
+                    search(index, "dev", "hello"));
+            assertEquals(Collections.emptyList(), search(index, "lobby", "secret"));
+            assertEquals(Collections.emptyList(), search(index, "lobby", "joined"));
+        } finally {
+            index.close();
+        }
+    }
+}
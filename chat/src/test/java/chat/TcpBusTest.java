@@ -0,0 +1,121 @@
+package chat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class TcpBusTest {
+    private TcpBus bus;
+    private InetSocketAddress address;
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        int[] ports = new int[2];
+        for (int i = 0; i < 2; i++) {
+            try (ServerSocket s = new ServerSocket(0)) {
+                ports[i] = s.getLocalPort();
+            }
+        }
+        address = new InetSocketAddress("127.0.0.1", ports[0]);
+        // Node 1 never starts; node 0 just keeps redialling it.
+        bus = new TcpBus(0, Arrays.asList(address, new InetSocketAddress("127.0.0.1", ports[1])));
+        bus.start(new MessageBus.Listener() {
+            @Override public void onMessage(int fromNode, ClusterMessage message) {
+                events.add("message " + fromNode + " " + message.name);
+            }
+
+            @Override public void nodeUp(int node) {
+                events.add("up " + node);
+            }
+
+            @Override public void nodeDown(int node) {
+                events.add("down " + node);
+            }
+        });
+    }
+
+    @AfterEach
+    void tearDown() {
+        bus.close();
+    }
+
+    /** A connection posing as node {@code node}. */
+    private DataOutputStream peer(Socket s, int node) throws IOException {
+        s.setSoTimeout(10_000);
+        DataOutputStream out = new DataOutputStream(s.getOutputStream());
+        out.writeInt(node);
+        return out;
+    }
+
+    private static void assertClosedByBus(Socket s) throws IOException {
+        InputStream in = s.getInputStream();
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    void readsFramesFromAPeer() throws Exception {
+        try (Socket s = new Socket(address.getAddress(), address.getPort())) {
+            DataOutputStream out = peer(s, 1);
+            out.write(ClusterMessage.release("alice").encode());
+            out.flush();
+            assertEquals("message 1 alice", events.poll(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void dropsAPeerThatSendsABadLength() throws Exception {
+        for (int length : new int[] { -1, 0, TcpBus.MAX_FRAME + 1, Integer.MAX_VALUE }) {
+            try (Socket s = new Socket(address.getAddress(), address.getPort())) {
+                DataOutputStream out = peer(s, 1);
+                out.writeInt(length);
+                out.flush();
+                assertClosedByBus(s);
+            }
+            assertEquals("down 1", events.poll(10, TimeUnit.SECONDS));
+        }
+        assertTrue(events.isEmpty(), events.toString());
+    }
+
+    @Test
+    void dropsAPeerWithABadNodeId() throws Exception {
+        for (int node : new int[] { -1, 0, 2 }) {
+            try (Socket s = new Socket(address.getAddress(), address.getPort())) {
+                DataOutputStream out = peer(s, node);
+                out.write(ClusterMessage.release("mallory").encode());
+                out.flush();
+                assertClosedByBus(s);
+            }
+        }
+        assertTrue(events.isEmpty(), events.toString());
+    }
+
+    @Test
+    void refusesAMessageWhoseLineOverrunsItsFrame() throws Exception {
+        byte[] frame = ClusterMessage.release("alice").encode();
+        // The line length follows the prefix, type, id, timestamp, origin, ok, two empty strings and the name.
+        int at = 4 + 1 + 8 + 8 + 4 + 1 + 2 + 2 + 2 + "alice".length();
+        frame[at] = 0x7F;
+        try (Socket s = new Socket(address.getAddress(), address.getPort())) {
+            DataOutputStream out = peer(s, 1);
+            out.write(frame);
+            out.flush();
+            assertClosedByBus(s);
+        }
+        assertEquals("down 1", events.poll(10, TimeUnit.SECONDS));
+    }
+}